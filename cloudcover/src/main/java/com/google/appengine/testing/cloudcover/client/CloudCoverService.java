@@ -17,8 +17,11 @@
 package com.google.appengine.testing.cloudcover.client;
 
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.NewRunResult;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+import com.google.appengine.testing.cloudcover.client.model.RunSummaryDelta;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.gwt.user.client.rpc.RemoteService;
 import com.google.gwt.user.client.rpc.RemoteServiceRelativePath;
@@ -43,6 +46,21 @@ public interface CloudCoverService extends RemoteService {
    */
   RunSummary getRunSummary(long runId, boolean loadTestIdData);
 
+  /**
+   * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getRunSummary(long, boolean, boolean)
+   */
+  RunSummary getRunSummary(long runId, boolean loadTestIdData, boolean loadTests);
+
+  /**
+   * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getRunSummaryDelta(long, long)
+   */
+  RunSummaryDelta getRunSummaryDelta(long runId, long sinceVersion);
+
+  /**
+   * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#waitForRunChange(long, long)
+   */
+  long waitForRunChange(long runId, long changeVersion);
+
   /**
    * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getTestById(long, String)
    */
@@ -53,6 +71,16 @@ public interface CloudCoverService extends RemoteService {
    */
   Failure getFailure(long runId, String testId, String failureId);
 
+  /**
+   * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getFailureClusters(long)
+   */
+  List<FailureCluster> getFailureClusters(long runId);
+
+
+  /**
+   * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getRuns(String, String, int)
+   */
+  RunList getRuns(String suiteId, String cursor, int limit);
 
   /**
    * @see com.google.appengine.testing.cloudcover.server.CloudCoverManager#getAvailableSuiteIds()
@@ -17,8 +17,11 @@
 package com.google.appengine.testing.cloudcover.client;
 
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.NewRunResult;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+import com.google.appengine.testing.cloudcover.client.model.RunSummaryDelta;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
@@ -32,7 +35,14 @@ import java.util.List;
 public interface CloudCoverServiceAsync {
   void createNewRun(String suiteId, AsyncCallback<NewRunResult> callback);
   void getRunSummary(long runId, boolean loadTestIdData, AsyncCallback<RunSummary> callback);
+  void getRunSummary(long runId, boolean loadTestIdData, boolean loadTests,
+                     AsyncCallback<RunSummary> callback);
+  void getRunSummaryDelta(long runId, long sinceVersion,
+                          AsyncCallback<RunSummaryDelta> callback);
+  void waitForRunChange(long runId, long changeVersion, AsyncCallback<Long> callback);
   void getFailure(long runId, String testId, String failureId, AsyncCallback<Failure> callback);
+  void getFailureClusters(long runId, AsyncCallback<List<FailureCluster>> callback);
   void getTestById(long runId, String testId, AsyncCallback<Test> callback);
+  void getRuns(String suiteId, String cursor, int limit, AsyncCallback<RunList> callback);
   void getAvailableSuiteIds(AsyncCallback<List<String>> callback);
 }
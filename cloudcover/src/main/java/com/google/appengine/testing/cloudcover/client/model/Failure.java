@@ -47,6 +47,15 @@ public class Failure implements Serializable {
     return failureData;
   }
 
+  /**
+   * Returns {@code true} if this is just the id of a failure whose message
+   * and data weren't loaded along with its Test.  Writing a stub never
+   * replaces the failure it stands for.
+   */
+  public boolean isStub() {
+    return failureMsg == null;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) {
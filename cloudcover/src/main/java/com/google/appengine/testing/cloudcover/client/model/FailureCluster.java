@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A group of failures in a Run that share a fingerprint, which usually
+ * means they share a root cause.  Only a few of the failures are kept as
+ * examples.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class FailureCluster implements Serializable {
+
+  private String fingerprint;
+  // the first line of the trace of the first example
+  private String summary;
+  private int numFailures;
+  private int numTests;
+  private List<Example> examples = new ArrayList<Example>();
+  // only needed while the cluster is being built
+  private transient String lastTestId;
+
+  private FailureCluster() {}
+
+  public FailureCluster(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public String getSummary() {
+    return summary;
+  }
+
+  public void setSummary(String summary) {
+    this.summary = summary;
+  }
+
+  public int getNumFailures() {
+    return numFailures;
+  }
+
+  public int getNumTests() {
+    return numTests;
+  }
+
+  public List<Example> getExamples() {
+    return examples;
+  }
+
+  /**
+   * Adds a failure to the cluster.  Failures of the same test must be added
+   * one after the other for the number of tests to come out right.
+   */
+  public void addFailure(String testId, String failureId, int maxExamples) {
+    if (numFailures == 0 || !lastTestId.equals(testId)) {
+      numTests++;
+    }
+    lastTestId = testId;
+    numFailures++;
+    if (examples.size() < maxExamples) {
+      examples.add(new Example(testId, failureId));
+    }
+  }
+
+  /**
+   * Adds failures that were counted elsewhere to the cluster, along with
+   * some examples of them.
+   */
+  public void addFailures(int numFailures, int numTests, List<Example> examples,
+      int maxExamples) {
+    this.numFailures += numFailures;
+    this.numTests += numTests;
+    for (Example example : examples) {
+      if (this.examples.size() >= maxExamples) {
+        break;
+      }
+      this.examples.add(example);
+    }
+  }
+
+  /**
+   * Identifies a single failure of a cluster.
+   */
+  public static class Example implements Serializable {
+    private String testId;
+    private String failureId;
+
+    private Example() {}
+
+    public Example(String testId, String failureId) {
+      this.testId = testId;
+      this.failureId = failureId;
+    }
+
+    public String getTestId() {
+      return testId;
+    }
+
+    public String getFailureId() {
+      return failureId;
+    }
+  }
+}
@@ -29,6 +29,14 @@ public class NewRunResult implements Serializable {
 
   private NewRunResult() {}
 
+  /**
+   * Used for runs whose tests are still being planned.  Test id data becomes
+   * available via the run summary once planning is finished.
+   */
+  public NewRunResult(Run run) {
+    this(run, null);
+  }
+
   public NewRunResult(Run run, Map<String, Integer> testIdsToTestCounts) {
     this.run = run;
     this.testIdsToTestCounts = testIdsToTestCounts;
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The entry of a Run in the run list.  Holds just enough to describe the
+ * Run without loading it.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class RunInfo implements Serializable {
+
+  private long runId;
+  private String suiteId;
+  private Date created;
+  // IN_PROGRESS until the Run completes
+  private TestStatus status;
+  // empty until the Run completes
+  private RunStatusCounts statusCounts;
+
+  private RunInfo() {}
+
+  public RunInfo(long runId, String suiteId, Date created, TestStatus status,
+                 RunStatusCounts statusCounts) {
+    this.runId = runId;
+    this.suiteId = suiteId;
+    this.created = created;
+    this.status = status;
+    this.statusCounts = statusCounts;
+  }
+
+  public long getRunId() {
+    return runId;
+  }
+
+  public String getSuiteId() {
+    return suiteId;
+  }
+
+  public Date getCreated() {
+    return created;
+  }
+
+  public TestStatus getStatus() {
+    return status;
+  }
+
+  public RunStatusCounts getStatusCounts() {
+    return statusCounts;
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A page of the run list, most recent Run first.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class RunList implements Serializable {
+
+  private List<RunInfo> runs = new ArrayList<RunInfo>();
+  // where the next page starts, null if this is the last page
+  private String cursor;
+
+  private RunList() {}
+
+  public RunList(List<RunInfo> runs, String cursor) {
+    this.runs = runs;
+    this.cursor = cursor;
+  }
+
+  public List<RunInfo> getRuns() {
+    return runs;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+}
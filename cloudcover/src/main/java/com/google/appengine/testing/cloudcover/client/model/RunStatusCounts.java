@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+
+/**
+ * The number of Tests and subtests of a Run in each {@link TestStatus}.
+ * These are maintained as Tests start and finish, so they can be read
+ * without looking at the Tests themselves.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class RunStatusCounts implements Serializable {
+
+  private int testsStarted;
+  private int testsPassed;
+  private int testsFailed;
+  private int testsTooSlow;
+  private int subtestsStarted;
+  private int subtestsPassed;
+  private int subtestsFailed;
+  private int subtestsTooSlow;
+
+  public RunStatusCounts() {}
+
+  public RunStatusCounts(int testsStarted, int testsPassed, int testsFailed, int testsTooSlow,
+                         int subtestsStarted, int subtestsPassed, int subtestsFailed,
+                         int subtestsTooSlow) {
+    this.testsStarted = testsStarted;
+    this.testsPassed = testsPassed;
+    this.testsFailed = testsFailed;
+    this.testsTooSlow = testsTooSlow;
+    this.subtestsStarted = subtestsStarted;
+    this.subtestsPassed = subtestsPassed;
+    this.subtestsFailed = subtestsFailed;
+    this.subtestsTooSlow = subtestsTooSlow;
+  }
+
+  /**
+   * Returns the counts that change when the given Test starts.
+   */
+  public static RunStatusCounts forStartedTest(Test test) {
+    return forStartedTest(TestSummary.forTest(test));
+  }
+
+  public static RunStatusCounts forStartedTest(TestSummary test) {
+    return new RunStatusCounts(1, 0, 0, 0, (int) test.getNumTests(), 0, 0, 0);
+  }
+
+  /**
+   * Returns the counts that change when the given Test finishes.
+   */
+  public static RunStatusCounts forFinishedTest(Test test) {
+    return forFinishedTest(TestSummary.forTest(test));
+  }
+
+  public static RunStatusCounts forFinishedTest(TestSummary test) {
+    int numTests = (int) test.getNumTests();
+    switch (test.getStatus()) {
+      case SUCCESS:
+        return new RunStatusCounts(0, 1, 0, 0, 0, numTests, 0, 0);
+      case FAILURE:
+        // make sure we account for subtests that passed
+        int numFailures = test.getNumFailures();
+        return new RunStatusCounts(
+            0, 0, 1, 0, 0, Math.max(0, numTests - numFailures), numFailures, 0);
+      case TOO_SLOW:
+        return new RunStatusCounts(0, 0, 0, 1, 0, 0, 0, numTests);
+      default:
+        return new RunStatusCounts();
+    }
+  }
+
+  public void add(RunStatusCounts other) {
+    testsStarted += other.testsStarted;
+    testsPassed += other.testsPassed;
+    testsFailed += other.testsFailed;
+    testsTooSlow += other.testsTooSlow;
+    subtestsStarted += other.subtestsStarted;
+    subtestsPassed += other.subtestsPassed;
+    subtestsFailed += other.subtestsFailed;
+    subtestsTooSlow += other.subtestsTooSlow;
+  }
+
+  public boolean isEmpty() {
+    return equals(new RunStatusCounts());
+  }
+
+  public int getNumTestsStarted() {
+    return testsStarted;
+  }
+
+  public int getNumTestsPassed() {
+    return testsPassed;
+  }
+
+  public int getNumTestsFailed() {
+    return testsFailed;
+  }
+
+  public int getNumTestsTooSlow() {
+    return testsTooSlow;
+  }
+
+  public int getNumTestsFinished() {
+    return testsPassed + testsFailed + testsTooSlow;
+  }
+
+  public int getNumTestsInProgress() {
+    // a test that was finished twice can push this below 0
+    return Math.max(0, testsStarted - getNumTestsFinished());
+  }
+
+  public int getNumSubtestsStarted() {
+    return subtestsStarted;
+  }
+
+  public int getNumSubtestsPassed() {
+    return subtestsPassed;
+  }
+
+  public int getNumSubtestsFailed() {
+    return subtestsFailed;
+  }
+
+  public int getNumSubtestsTooSlow() {
+    return subtestsTooSlow;
+  }
+
+  public int getNumSubtestsFinished() {
+    return subtestsPassed + subtestsFailed + subtestsTooSlow;
+  }
+
+  public int getNumSubtestsInProgress() {
+    return Math.max(0, subtestsStarted - getNumSubtestsFinished());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    RunStatusCounts that = (RunStatusCounts) o;
+
+    return testsStarted == that.testsStarted
+        && testsPassed == that.testsPassed
+        && testsFailed == that.testsFailed
+        && testsTooSlow == that.testsTooSlow
+        && subtestsStarted == that.subtestsStarted
+        && subtestsPassed == that.subtestsPassed
+        && subtestsFailed == that.subtestsFailed
+        && subtestsTooSlow == that.subtestsTooSlow;
+  }
+
+  @Override
+  public int hashCode() {
+    int result = testsStarted;
+    result = 31 * result + testsPassed;
+    result = 31 * result + testsFailed;
+    result = 31 * result + testsTooSlow;
+    result = 31 * result + subtestsStarted;
+    result = 31 * result + subtestsPassed;
+    result = 31 * result + subtestsFailed;
+    result = 31 * result + subtestsTooSlow;
+    return result;
+  }
+}
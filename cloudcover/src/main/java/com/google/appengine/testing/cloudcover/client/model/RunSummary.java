@@ -16,6 +16,8 @@
 package com.google.appengine.testing.cloudcover.client.model;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -23,30 +25,62 @@ import java.util.Set;
  */
 public class RunSummary implements Serializable {
   private Run run;
-  private Set<Test> passed;
-  private Set<Test> failed;
-  private Set<Test> tooSlow;
-  private Set<Test> inProgress;
+  private Set<TestSummary> passed;
+  private Set<TestSummary> failed;
+  private Set<TestSummary> tooSlow;
+  private Set<TestSummary> inProgress;
+  private RunStatusCounts statusCounts;
+  // whether or not the Sets of Tests were loaded
+  private boolean testsLoaded;
 
   private RunSummary() {}
   
-  public RunSummary(Run run, Set<Test> passed, Set<Test> failed, Set<Test> tooSlow, Set<Test> inProgress) {
+  public RunSummary(Run run, Set<TestSummary> passed, Set<TestSummary> failed, Set<TestSummary> tooSlow, Set<TestSummary> inProgress) {
+    this(run, passed, failed, tooSlow, inProgress,
+         computeStatusCounts(passed, failed, tooSlow, inProgress));
+  }
+
+  public RunSummary(Run run, Set<TestSummary> passed, Set<TestSummary> failed, Set<TestSummary> tooSlow,
+                    Set<TestSummary> inProgress, RunStatusCounts statusCounts) {
     this.run = run;
     this.passed = passed;
     this.failed = failed;
     this.tooSlow = tooSlow;
     this.inProgress = inProgress;
+    this.statusCounts = statusCounts;
+    this.testsLoaded = true;
+  }
+
+  /**
+   * Creates a RunSummary with status counts but without the Tests.
+   */
+  public RunSummary(Run run, RunStatusCounts statusCounts) {
+    this(run, new HashSet<TestSummary>(), new HashSet<TestSummary>(), new HashSet<TestSummary>(), new HashSet<TestSummary>(),
+         statusCounts);
+    this.testsLoaded = false;
+  }
+
+  private static RunStatusCounts computeStatusCounts(Set<TestSummary> passed, Set<TestSummary> failed,
+                                                     Set<TestSummary> tooSlow, Set<TestSummary> inProgress) {
+    RunStatusCounts counts = new RunStatusCounts();
+    for (Set<TestSummary> tests : Arrays.asList(passed, failed, tooSlow, inProgress)) {
+      for (TestSummary t : tests) {
+        counts.add(RunStatusCounts.forStartedTest(t));
+        counts.add(RunStatusCounts.forFinishedTest(t));
+      }
+    }
+    return counts;
   }
 
   public Run getRun() {
     return run;
   }
 
-  public Set<Test> getFailed() {
+  public Set<TestSummary> getFailed() {
     return failed;
   }
 
-  public Set<Test> getInProgress() {
+  public Set<TestSummary> getInProgress() {
     return inProgress;
   }
 
@@ -54,12 +88,23 @@ public class RunSummary implements Serializable {
     return run.getNumTests();
   }
 
-  public Set<Test> getPassed() {
+  public Set<TestSummary> getPassed() {
     return passed;
   }
 
-  public Set<Test> getTooSlow() {
+  public Set<TestSummary> getTooSlow() {
     return tooSlow;
   }
 
+  public RunStatusCounts getStatusCounts() {
+    return statusCounts;
+  }
+
+  /**
+   * @return {@code true} if the Sets of Tests were loaded, {@code false} if
+   * only the status counts are available.
+   */
+  public boolean isTestsLoaded() {
+    return testsLoaded;
+  }
 }
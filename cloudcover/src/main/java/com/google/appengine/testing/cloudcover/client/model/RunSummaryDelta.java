@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+
+/**
+ * The Tests whose status changed since a given version of a Run.  Pass
+ * {@link #getVersion()} to the next request for a delta to pick up where
+ * this one left off.  A Test can show up in more than one delta, so
+ * applying a delta must be idempotent.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class RunSummaryDelta implements Serializable {
+
+  private RunSummary runSummary;
+  private long version;
+
+  private RunSummaryDelta() {}
+
+  public RunSummaryDelta(RunSummary runSummary, long version) {
+    this.runSummary = runSummary;
+    this.version = version;
+  }
+
+  /**
+   * @return A RunSummary with the status counts of the entire Run but only
+   * the Tests that changed.
+   */
+  public RunSummary getRunSummary() {
+    return runSummary;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+}
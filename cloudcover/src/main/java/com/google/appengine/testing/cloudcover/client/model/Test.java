@@ -33,6 +33,13 @@ public class Test implements Serializable {
   private long numTests;
   private Set<String> successes = new HashSet<String>();
   private Set<Failure> failures = new HashSet<Failure>();
+  // number of times we ran out of time and had to pick up where we left off
+  private int numContinuations;
+  // number of times the Test has been claimed for a run, see leaseExpiry
+  private int attempt;
+  // nobody else may run the Test until this time, null if nobody holds the
+  // lease
+  private Date leaseExpiry;
 
   private Test() {}
   
@@ -108,4 +115,28 @@ public class Test implements Serializable {
   public void setStartTime(Date startTime) {
     this.startTime = startTime;
   }
+
+  public int getNumContinuations() {
+    return numContinuations;
+  }
+
+  public void setNumContinuations(int numContinuations) {
+    this.numContinuations = numContinuations;
+  }
+
+  public int getAttempt() {
+    return attempt;
+  }
+
+  public void setAttempt(int attempt) {
+    this.attempt = attempt;
+  }
+
+  public Date getLeaseExpiry() {
+    return leaseExpiry;
+  }
+
+  public void setLeaseExpiry(Date leaseExpiry) {
+    this.leaseExpiry = leaseExpiry;
+  }
 }
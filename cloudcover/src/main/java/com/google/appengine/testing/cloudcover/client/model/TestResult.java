@@ -32,17 +32,27 @@ public class TestResult implements Serializable {
   private int numTests;
   private List<FailureData> failureData = new ArrayList<FailureData>();
   private Set<String> successfulTestNames = new HashSet<String>();
+  // names of the subtests we didn't get to before we ran out of time
+  private Set<String> notRunTestNames = new HashSet<String>();
 
   private TestResult() {}
   
   public TestResult(long runId, String testId, TestStatus testStatus, int numTests,
                     List<FailureData> failureData, Set<String> successfulTestNames) {
+    this(runId, testId, testStatus, numTests, failureData, successfulTestNames,
+         new HashSet<String>());
+  }
+
+  public TestResult(long runId, String testId, TestStatus testStatus, int numTests,
+                    List<FailureData> failureData, Set<String> successfulTestNames,
+                    Set<String> notRunTestNames) {
     this.runId = runId;
     this.testId = testId;
     this.testStatus = testStatus;
     this.numTests = numTests;
     this.failureData.addAll(failureData);
     this.successfulTestNames.addAll(successfulTestNames);
+    this.notRunTestNames.addAll(notRunTestNames);
   }
 
   public TestStatus getStatus() {
@@ -68,4 +78,8 @@ public class TestResult implements Serializable {
   public Set<String> getSuccessfulTestNames() {
     return successfulTestNames;
   }
+
+  public Set<String> getNotRunTestNames() {
+    return notRunTestNames;
+  }
 }
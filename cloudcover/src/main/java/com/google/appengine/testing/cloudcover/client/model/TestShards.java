@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utilities for tests that are split into shards.  A large test class can be
+ * split into shards that each run a subset of the methods of the class as a
+ * separate {@link Test}.  The id of a shard is the name of the class followed
+ * by the (zero-based) index of the shard and the total number of shards, all
+ * separated by {@link #SHARD_SEPARATOR}.  Methods are assigned to shards
+ * round-robin, in the order of their names.
+ * <br>
+ * This class is shared by the server and the UI so it needs to stay GWT
+ * compatible.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public final class TestShards {
+  private TestShards() { }
+
+  /**
+   * Separates the components of a shard id.  Can't appear in a class name
+   * and doesn't need escaping in a url.
+   */
+  public static final String SHARD_SEPARATOR = "~";
+
+  public static String buildShardId(String className, int shardIndex, int numShards) {
+    return className + SHARD_SEPARATOR + shardIndex + SHARD_SEPARATOR + numShards;
+  }
+
+  public static boolean isShard(String testId) {
+    return testId.contains(SHARD_SEPARATOR);
+  }
+
+  /**
+   * Returns the name of the class a test id refers to.  For tests that
+   * aren't sharded this is just the test id.
+   */
+  public static String getClassName(String testId) {
+    int index = testId.indexOf(SHARD_SEPARATOR);
+    return index == -1 ? testId : testId.substring(0, index);
+  }
+
+  public static int getShardIndex(String testId) {
+    return Integer.parseInt(testId.split(SHARD_SEPARATOR)[1]);
+  }
+
+  public static int getNumShards(String testId) {
+    return Integer.parseInt(testId.split(SHARD_SEPARATOR)[2]);
+  }
+
+  /**
+   * Returns the number of shards needed so that no shard has more than
+   * {@code maxMethodsPerShard} methods, or 1 if sharding is disabled.
+   */
+  public static int getNumShards(int numMethods, int maxMethodsPerShard) {
+    if (maxMethodsPerShard <= 0 || numMethods <= maxMethodsPerShard) {
+      return 1;
+    }
+    return (numMethods + maxMethodsPerShard - 1) / maxMethodsPerShard;
+  }
+
+  /**
+   * Returns {@code true} if the method at the given position in the sorted
+   * list of methods belongs to the given shard.
+   */
+  public static boolean isInShard(int methodIndex, int shardIndex, int numShards) {
+    return methodIndex % numShards == shardIndex;
+  }
+
+  /**
+   * Returns the number of methods that belong to the given shard.
+   */
+  public static int getShardSize(int numMethods, int shardIndex, int numShards) {
+    return numMethods / numShards + (shardIndex < numMethods % numShards ? 1 : 0);
+  }
+
+  /**
+   * Merges the test counts of shards that belong to the same class, keeping
+   * the test counts of tests that aren't sharded as they are.
+   */
+  public static Map<String, Integer> mergeTestCounts(Map<String, Integer> testIdsToTestCounts) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    for (Map.Entry<String, Integer> entry : testIdsToTestCounts.entrySet()) {
+      String className = getClassName(entry.getKey());
+      Integer count = result.get(className);
+      result.put(className, count == null ? entry.getValue() : count + entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Merges the shards in the given collection into a single {@link Test}
+   * per class.  Tests that aren't sharded are returned as they are.
+   */
+  public static List<Test> mergeShards(Collection<Test> tests) {
+    Map<String, List<Test>> shardsByClass = new LinkedHashMap<String, List<Test>>();
+    List<Test> result = new ArrayList<Test>();
+    for (Test t : tests) {
+      if (isShard(t.getName())) {
+        String className = getClassName(t.getName());
+        List<Test> shards = shardsByClass.get(className);
+        if (shards == null) {
+          shards = new ArrayList<Test>();
+          shardsByClass.put(className, shards);
+        }
+        shards.add(t);
+      } else {
+        result.add(t);
+      }
+    }
+    for (Map.Entry<String, List<Test>> entry : shardsByClass.entrySet()) {
+      result.add(merge(entry.getKey(), entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Merges the given shards of a class into a single {@link Test}.  The class
+   * is in progress until every one of its shards has finished.
+   */
+  public static Test merge(String className, List<Test> shards) {
+    Test first = shards.get(0);
+    long numTests = 0;
+    Date startTime = first.getStartTime();
+    Date endTime = first.getEndTime();
+    boolean inProgress = shards.size() < getNumShards(first.getName());
+    boolean tooSlow = false;
+    boolean failure = false;
+    for (Test shard : shards) {
+      numTests += shard.getNumTests();
+      if (shard.getStartTime() != null && shard.getStartTime().before(startTime)) {
+        startTime = shard.getStartTime();
+      }
+      if (endTime != null && (shard.getEndTime() == null || shard.getEndTime().after(endTime))) {
+        endTime = shard.getEndTime();
+      }
+      inProgress |= shard.getStatus() == TestStatus.IN_PROGRESS;
+      tooSlow |= shard.getStatus() == TestStatus.TOO_SLOW;
+      failure |= shard.getStatus() == TestStatus.FAILURE;
+    }
+    Test merged = new Test(className, first.getRun(), numTests);
+    merged.setStartTime(startTime);
+    for (Test shard : shards) {
+      merged.getSuccesses().addAll(shard.getSuccesses());
+      merged.getFailures().addAll(shard.getFailures());
+    }
+    if (inProgress) {
+      merged.setStatus(TestStatus.IN_PROGRESS);
+    } else {
+      merged.setEndTime(endTime);
+      // same precedence the harness uses for a single test
+      if (tooSlow) {
+        merged.setStatus(TestStatus.TOO_SLOW);
+      } else if (failure) {
+        merged.setStatus(TestStatus.FAILURE);
+      } else {
+        merged.setStatus(TestStatus.SUCCESS);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Same as {@link #mergeShards(Collection)} but for summaries.
+   */
+  public static List<TestSummary> mergeShardSummaries(Collection<TestSummary> summaries) {
+    Map<String, List<TestSummary>> shardsByClass = new LinkedHashMap<String, List<TestSummary>>();
+    List<TestSummary> result = new ArrayList<TestSummary>();
+    for (TestSummary t : summaries) {
+      if (isShard(t.getName())) {
+        String className = getClassName(t.getName());
+        List<TestSummary> shards = shardsByClass.get(className);
+        if (shards == null) {
+          shards = new ArrayList<TestSummary>();
+          shardsByClass.put(className, shards);
+        }
+        shards.add(t);
+      } else {
+        result.add(t);
+      }
+    }
+    for (Map.Entry<String, List<TestSummary>> entry : shardsByClass.entrySet()) {
+      result.add(mergeSummaries(entry.getKey(), entry.getValue()));
+    }
+    return result;
+  }
+
+  /**
+   * Same as {@link #merge(String, List)} but for summaries.
+   */
+  public static TestSummary mergeSummaries(String className, List<TestSummary> shards) {
+    long numTests = 0;
+    int numFailures = 0;
+    long durationInMs = 0;
+    boolean inProgress = shards.size() < getNumShards(shards.get(0).getName());
+    boolean tooSlow = false;
+    boolean failure = false;
+    for (TestSummary shard : shards) {
+      numTests += shard.getNumTests();
+      numFailures += shard.getNumFailures();
+      durationInMs += shard.getDurationInMs();
+      inProgress |= shard.getStatus() == TestStatus.IN_PROGRESS;
+      tooSlow |= shard.getStatus() == TestStatus.TOO_SLOW;
+      failure |= shard.getStatus() == TestStatus.FAILURE;
+    }
+    TestStatus status;
+    if (inProgress) {
+      status = TestStatus.IN_PROGRESS;
+      durationInMs = -1;
+    } else if (tooSlow) {
+      status = TestStatus.TOO_SLOW;
+    } else if (failure) {
+      status = TestStatus.FAILURE;
+    } else {
+      status = TestStatus.SUCCESS;
+    }
+    return new TestSummary(className, status, numTests, numFailures, durationInMs);
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.model;
+
+import java.io.Serializable;
+
+/**
+ * The parts of a {@link Test} that a {@link RunSummary} needs.  Unlike a
+ * Test it doesn't carry the names of the subtests that passed or failed,
+ * so it stays small no matter how many subtests there are.  Use
+ * {@code getTestById} for the details.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class TestSummary implements Serializable {
+
+  private String name;
+  private TestStatus testStatus;
+  private long numTests;
+  private int numFailures;
+  // -1 until the Test has finished
+  private long durationInMs;
+
+  private TestSummary() {}
+
+  public TestSummary(String name, TestStatus testStatus, long numTests, int numFailures,
+                     long durationInMs) {
+    this.name = name;
+    this.testStatus = testStatus;
+    this.numTests = numTests;
+    this.numFailures = numFailures;
+    this.durationInMs = durationInMs;
+  }
+
+  public static TestSummary forTest(Test test) {
+    long durationInMs = -1;
+    if (test.getStartTime() != null && test.getEndTime() != null) {
+      durationInMs = test.getEndTime().getTime() - test.getStartTime().getTime();
+    }
+    return new TestSummary(test.getName(), test.getStatus(), test.getNumTests(),
+                           test.getFailures().size(), durationInMs);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public TestStatus getStatus() {
+    return testStatus;
+  }
+
+  public long getNumTests() {
+    return numTests;
+  }
+
+  public int getNumFailures() {
+    return numFailures;
+  }
+
+  /**
+   * @return how long the Test took in milliseconds, or -1 if it hasn't
+   * finished.
+   */
+  public long getDurationInMs() {
+    return durationInMs;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    TestSummary that = (TestSummary) o;
+
+    if (!name.equals(that.name)) {
+      return false;
+    }
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return name.hashCode();
+  }
+}
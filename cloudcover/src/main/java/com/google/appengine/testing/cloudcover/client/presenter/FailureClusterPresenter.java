@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.client.presenter;
+
+import com.google.appengine.testing.cloudcover.client.CloudCoverServiceAsync;
+import com.google.appengine.testing.cloudcover.client.StyleHelper;
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
+import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
+import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.view.FailureExampleTreeItem;
+import com.google.gwt.event.logical.shared.SelectionEvent;
+import com.google.gwt.event.logical.shared.SelectionHandler;
+import com.google.gwt.user.client.Window;
+import com.google.gwt.user.client.rpc.AsyncCallback;
+import com.google.gwt.user.client.ui.Tree;
+import com.google.gwt.user.client.ui.TreeItem;
+
+import java.util.List;
+
+/**
+ * Displays the failures of a Run grouped by root cause, one item per
+ * cluster with a few example failures underneath.  Selecting an example
+ * shows its details.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class FailureClusterPresenter {
+
+  public interface Display {
+    Tree getTree();
+  }
+
+  private final CloudCoverServiceAsync svc;
+  private final Display display;
+  private final TestDetailsPresenter testDetailsPresenter;
+  private Long runId;
+
+  public FailureClusterPresenter(CloudCoverServiceAsync svc, Display display,
+                                 TestDetailsPresenter testDetailsPresenter) {
+    this.svc = svc;
+    this.display = display;
+    this.testDetailsPresenter = testDetailsPresenter;
+    display.getTree().addSelectionHandler(new SelectionHandler<TreeItem>() {
+      public void onSelection(SelectionEvent<TreeItem> treeItemSelectionEvent) {
+        TreeItem item = treeItemSelectionEvent.getSelectedItem();
+        if (item instanceof FailureExampleTreeItem) {
+          loadExample((FailureExampleTreeItem) item);
+        }
+      }
+    });
+  }
+
+  public void clearClusters() {
+    runId = null;
+    display.getTree().removeItems();
+  }
+
+  /**
+   * Fetches the clusters of the given Run and replaces the ones we're
+   * displaying.
+   */
+  public void loadClusters(final long runId) {
+    this.runId = runId;
+    AsyncCallback<List<FailureCluster>> callback = new AsyncCallback<List<FailureCluster>>() {
+      public void onFailure(Throwable caught) {
+        // TODO(maxr): display the error quietly
+      }
+
+      public void onSuccess(List<FailureCluster> clusters) {
+        // the user may have moved on to a different run
+        if (Long.valueOf(runId).equals(FailureClusterPresenter.this.runId)) {
+          setClusters(clusters);
+        }
+      }
+    };
+    svc.getFailureClusters(runId, callback);
+  }
+
+  private void setClusters(List<FailureCluster> clusters) {
+    Tree tree = display.getTree();
+    tree.removeItems();
+    if (clusters.isEmpty()) {
+      return;
+    }
+    TreeItem root = new TreeItem();
+    root.setText("Failure Clusters (" + clusters.size() + ")");
+    tree.addItem(root);
+    for (FailureCluster cluster : clusters) {
+      TreeItem clusterItem = new TreeItem();
+      String summary = cluster.getSummary() == null ? cluster.getFingerprint() : cluster.getSummary();
+      clusterItem.setText(cluster.getNumFailures() + " failures in " + cluster.getNumTests()
+                          + " tests: " + summary);
+      StyleHelper.setStatus(TestStatus.FAILURE, clusterItem);
+      for (FailureCluster.Example example : cluster.getExamples()) {
+        FailureExampleTreeItem exampleItem =
+            new FailureExampleTreeItem(example.getTestId(), example.getFailureId());
+        // shards are an implementation detail so we display the class
+        exampleItem.setText(TestShards.getClassName(example.getTestId()) + "."
+                            + example.getFailureId());
+        clusterItem.addItem(exampleItem);
+      }
+      root.addItem(clusterItem);
+    }
+    root.setState(true);
+  }
+
+  private void loadExample(FailureExampleTreeItem item) {
+    AsyncCallback<Test> testCallback = new AsyncCallback<Test>() {
+      public void onFailure(Throwable caught) {
+        Window.alert(caught.toString());
+      }
+
+      public void onSuccess(Test test) {
+        testDetailsPresenter.setTest(test);
+      }
+    };
+    AsyncCallback<Failure> failureCallback = new AsyncCallback<Failure>() {
+      public void onFailure(Throwable caught) {
+        Window.alert(caught.toString());
+      }
+
+      public void onSuccess(Failure failure) {
+        testDetailsPresenter.setFailure(failure);
+      }
+    };
+    svc.getTestById(runId, item.getTestId(), testCallback);
+    svc.getFailure(runId, item.getTestId(), item.getFailureId(), failureCallback);
+  }
+}
@@ -18,6 +18,7 @@ package com.google.appengine.testing.cloudcover.client.presenter;
 import com.google.appengine.testing.cloudcover.client.CloudCoverServiceAsync;
 import com.google.appengine.testing.cloudcover.client.model.Run;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+import com.google.appengine.testing.cloudcover.client.model.RunSummaryDelta;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.Window;
@@ -40,6 +41,8 @@ public class RunPresenter {
 
     TestTreePresenter.Display getTestTreeView();
 
+    FailureClusterPresenter.Display getFailureClusterView();
+
     TestDetailsPresenter.Display getTestDetailsView();
 
     HasText getErrorMsg();
@@ -49,15 +52,29 @@ public class RunPresenter {
   private final RunSummaryPresenter runSummaryPresenter;
   private final RunSelectionPresenter runSelectionPresenter;
   private final TestTreePresenter testTreePresenter;
+  private final FailureClusterPresenter failureClusterPresenter;
 
   private final Display display;
   private Long runId;
   private boolean isFinished;
+  // test id data isn't available until the run has been planned
+  private boolean testIdsLoaded;
+  // the version of the last delta we applied to the tree
+  private long statusVersion;
+  // the change version of the run as of our last update, -1 if we don't know
+  private long changeVersion;
+  // the number of failed subtests as of the last time we loaded the
+  // failure clusters
+  private int numFailuresClustered;
+  // incremented whenever we start watching a different run so that waits
+  // for the previous run stop
+  private int watchGeneration;
   private String error;
-  private final Timer refresh = new Timer() {
+  // backs off after a failed wait
+  private final Timer retryWatch = new Timer() {
     @Override
     public void run() {
-      update();
+      watch();
     }
   };
 
@@ -70,6 +87,8 @@ public class RunPresenter {
     TestDetailsPresenter testDetailsPresenter =
         new TestDetailsPresenter(display.getTestDetailsView());
     testTreePresenter = new TestTreePresenter(svc, display.getTestTreeView(), testDetailsPresenter);
+    failureClusterPresenter = new FailureClusterPresenter(
+        svc, display.getFailureClusterView(), testDetailsPresenter);
     runSelectionPresenter = new RunSelectionPresenter(
         svc, display.getRunSelectionView(), this, runSummaryPresenter, testTreePresenter,
         testDetailsPresenter);
@@ -98,22 +117,63 @@ public class RunPresenter {
 
         public void onSuccess(RunSummary summary) {
           setRunData(summary.getRun(), summary.getRun().getTestIdsToTestCounts());
-          isFinished = updateRunStatus(summary);
+          // the first update fills in the tests, even if the run is finished
+          updateRunStatus(summary);
         }
       };
 
-      svc.getRunSummary(runId, true, callback);
+      svc.getRunSummary(runId, true, false, callback);
     }
   }
 
   public void setRunData(Run run, Map<String, Integer> testIdsToTestCounts) {
-    refresh.cancel();
+    retryWatch.cancel();
+    watchGeneration++;
+    changeVersion = -1;
     isFinished = false;
+    testIdsLoaded = false;
+    statusVersion = 0;
+    numFailuresClustered = 0;
+    failureClusterPresenter.clearClusters();
     runId = run.getId();
-    testTreePresenter.setAllTestIds(run, testIdsToTestCounts);
-    update();
-    // refresh the run summary page every 3 seconds
-    refresh.scheduleRepeating(3000);
+    maybeSetAllTestIds(run, testIdsToTestCounts);
+    // the first wait returns right away with the current change version
+    watch();
+  }
+
+  /**
+   * Waits for the run to change and updates once it has, over and over until
+   * the run is finished.  The server gives up waiting after a while, in which
+   * case we update anyway in case a change notification got lost.
+   */
+  private void watch() {
+    final int generation = watchGeneration;
+    svc.waitForRunChange(runId, changeVersion, new AsyncCallback<Long>() {
+      public void onFailure(Throwable caught) {
+        if (generation == watchGeneration) {
+          retryWatch.schedule(3000);
+        }
+      }
+
+      public void onSuccess(Long newChangeVersion) {
+        if (generation != watchGeneration || isFinished) {
+          return;
+        }
+        changeVersion = newChangeVersion;
+        update();
+        watch();
+      }
+    });
+  }
+
+  private void maybeSetAllTestIds(Run run, Map<String, Integer> testIdsToTestCounts) {
+    // the test id data is written one planning chunk at a time so make sure
+    // we have all of it before we build the tree
+    if (!testIdsLoaded && testIdsToTestCounts != null
+        && testIdsToTestCounts.size() == run.getNumTestEntities()) {
+      testTreePresenter.setAllTestIds(run, testIdsToTestCounts);
+      testIdsLoaded = true;
+    }
   }
 
   public void setRunError(String error) {
@@ -122,28 +182,68 @@ public class RunPresenter {
   }
 
   private void update() {
+    final AsyncCallback<RunSummaryDelta> deltaCallback = new AsyncCallback<RunSummaryDelta>() {
+      public void onFailure(Throwable caught) {
+        // TODO(maxr): display the error quietly
+      }
+
+      public void onSuccess(RunSummaryDelta delta) {
+        boolean finished = updateRunStatus(delta.getRunSummary());
+        if (finished && !isFinished) {
+          // A write can commit later than the version it was stamped with,
+          // in which case no delta returns it.  Nothing changes once the run
+          // is finished, so one last pass over all the tests catches up.
+          isFinished = true;
+          statusVersion = 0;
+          svc.getRunSummaryDelta(runId, 0, this);
+          return;
+        }
+        statusVersion = delta.getVersion();
+      }
+    };
+
     AsyncCallback<RunSummary> callback = new AsyncCallback<RunSummary>() {
       public void onFailure(Throwable caught) {
         // TODO(maxr): display the error quietly
       }
 
       public void onSuccess(RunSummary summary) {
-        isFinished = updateRunStatus(summary);
+        maybeSetAllTestIds(summary.getRun(), summary.getRun().getTestIdsToTestCounts());
+        if (testIdsLoaded) {
+          // the tree was just built, fill in the tests that already started
+          svc.getRunSummaryDelta(runId, statusVersion, deltaCallback);
+        } else {
+          isFinished = updateRunStatus(summary);
+        }
       }
     };
 
     if (runId != null && !isFinished) {
-      svc.getRunSummary(runId, false, callback);
+      if (testIdsLoaded) {
+        // we only need the tests that changed since the last update
+        svc.getRunSummaryDelta(runId, statusVersion, deltaCallback);
+      } else {
+        svc.getRunSummary(runId, true, false, callback);
+      }
     }
 
     display.getErrorMsg().setText(error);
   }
 
   private boolean updateRunStatus(RunSummary runSummary) {
-    testTreePresenter.updateTreeItemStatus(runSummary.getInProgress(), TestStatus.IN_PROGRESS);
-    testTreePresenter.updateTreeItemStatus(runSummary.getPassed(), TestStatus.SUCCESS);
-    testTreePresenter.updateTreeItemStatus(runSummary.getFailed(), TestStatus.FAILURE);
-    testTreePresenter.updateTreeItemStatus(runSummary.getTooSlow(), TestStatus.TOO_SLOW);
+    if (runSummary.isTestsLoaded()) {
+      testTreePresenter.updateTreeItemStatus(runSummary.getInProgress(), TestStatus.IN_PROGRESS);
+      testTreePresenter.updateTreeItemStatus(runSummary.getPassed(), TestStatus.SUCCESS);
+      testTreePresenter.updateTreeItemStatus(runSummary.getFailed(), TestStatus.FAILURE);
+      testTreePresenter.updateTreeItemStatus(runSummary.getTooSlow(), TestStatus.TOO_SLOW);
+    }
+    testTreePresenter.refreshSelectedTest();
+    // only go back for the clusters when there are new failures to cluster
+    int numFailures = runSummary.getStatusCounts().getNumSubtestsFailed();
+    if (numFailures != numFailuresClustered) {
+      numFailuresClustered = numFailures;
+      failureClusterPresenter.loadClusters(runSummary.getRun().getId());
+    }
     return runSummaryPresenter.setRunSummary(runSummary);
   }
 }
@@ -17,8 +17,8 @@ package com.google.appengine.testing.cloudcover.client.presenter;
 
 import com.google.appengine.testing.cloudcover.client.StyleHelper;
 import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
-import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
 import com.google.gwt.user.client.ui.Composite;
 import com.google.gwt.user.client.ui.HasText;
@@ -61,40 +61,29 @@ public class RunSummaryPresenter extends Composite {
   }
 
   private boolean update() {
-    int numFinished = 0;
-    int numPassed = 0;
-    int numFailed = 0;
-    int numInProgress = 0;
-    int numTooSlow = 0;
+    // the counts are kept per subtest
+    RunStatusCounts counts = runSummary.getStatusCounts();
+    int numFinished = counts.getNumSubtestsFinished();
+    int numPassed = counts.getNumSubtestsPassed();
+    int numFailed = counts.getNumSubtestsFailed();
+    int numInProgress = counts.getNumSubtestsInProgress();
+    int numTooSlow = counts.getNumSubtestsTooSlow();
 
-    for (Test t : runSummary.getPassed()) {
-      // you don't show up in the passed list unless all tests passed
-      // so increment numPassed by the number of tests
-      numPassed += t.getNumTests();
-      numFinished += t.getNumTests();
-    }
-
-    for (Test t : runSummary.getFailed()) {
-      int numFailuresForTest = t.getFailures().size();
-      // the presence of the Test in the failed list means at least one
-      // subtest failed.  make sure we account for subtests that passed
-      numPassed += t.getNumTests() - numFailuresForTest;
-      numFailed += numFailuresForTest;
-      numFinished += t.getNumTests();
-    }
-
-    for (Test t : runSummary.getTooSlow()) {
-      numTooSlow += t.getNumTests();
-      numFinished += t.getNumTests();
-    }
-
-    for (Test t : runSummary.getInProgress()) {
-      numInProgress += t.getNumTests();
+    Status status = getStatus(numFinished, numInProgress, runSummary.getRun());
+    if (status == Status.PLANNING) {
+      // we don't know how many tests there are yet
+      update("Run " + runSummary.getRun().getId() + ": " + status,
+             String.valueOf(numInProgress),
+             "",
+             String.valueOf(numPassed),
+             String.valueOf(numFailed),
+             String.valueOf(numTooSlow));
+      return false;
     }
-
-    int numNotStarted = runSummary.getRun().getNumTests() - (numFinished + numInProgress);
+    // the counts are a hint so don't let them go negative
+    int numNotStarted =
+        Math.max(0, runSummary.getRun().getNumTests() - (numFinished + numInProgress));
     int pctComplete = Float.valueOf((numFinished / (float) runSummary.getNumTests()) * 100).intValue();
-    Status status = getStatus(numFinished, numInProgress, runSummary.getRun());
     update(
         "Run " + runSummary.getRun().getId() + ": " + status + ", " + "Completed " +
          numFinished + "/" + runSummary.getNumTests() + " (" + pctComplete + "%)",
@@ -121,12 +110,15 @@ public class RunSummaryPresenter extends Composite {
     StyleHelper.setStatus(TestStatus.FAILURE, display.getNumFailed());
   }
 
-  private enum Status { NOT_STARTED, RUNNING, FINISHED }
+  private enum Status { PLANNING, NOT_STARTED, RUNNING, FINISHED }
 
   private Status getStatus(int numFinished, int numInProgress, Run run) {
-    if (numFinished == 0 && numInProgress == 0) {
+    if (run.getNumTestEntities() < 0) {
+      // -1 until all tests have been scheduled
+      return Status.PLANNING;
+    } else if (numFinished == 0 && numInProgress == 0) {
       return Status.NOT_STARTED;
-    } else if (numFinished == run.getNumTests()) {
+    } else if (numFinished >= run.getNumTests()) {
       return Status.FINISHED;
     } else {
       return Status.RUNNING;
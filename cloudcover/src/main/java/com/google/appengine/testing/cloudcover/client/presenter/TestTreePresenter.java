@@ -20,7 +20,9 @@ import com.google.appengine.testing.cloudcover.client.StyleHelper;
 import com.google.appengine.testing.cloudcover.client.model.Failure;
 import com.google.appengine.testing.cloudcover.client.model.Run;
 import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
 import com.google.appengine.testing.cloudcover.client.view.SubTestTreeItem;
 import com.google.appengine.testing.cloudcover.client.view.TestTreeItem;
 import com.google.gwt.event.logical.shared.SelectionEvent;
@@ -51,6 +53,8 @@ public class TestTreePresenter {
   private final CloudCoverServiceAsync svc;
   private final TestDetailsPresenter testDetailsPresenter;
   private Map<String, TestTreeItem> allTestTreeItems = new HashMap<String, TestTreeItem>();
+  // the test the user is looking at, if any
+  private TestTreeItem selectedTestTreeItem;
 
   public TestTreePresenter(CloudCoverServiceAsync svc, Display display,
                            TestDetailsPresenter testDetailsPresenter) {
@@ -60,6 +64,8 @@ public class TestTreePresenter {
   }
 
   public void clearTree() {
+    allTestTreeItems.clear();
+    selectedTestTreeItem = null;
     display.getTree().removeItems();
   }
 
@@ -67,6 +73,8 @@ public class TestTreePresenter {
    * Only called once per Run
    */
   public void setAllTestIds(Run run, Map<String, Integer> testIdsToTestCounts) {
+    // shards are an implementation detail so we display one item per class
+    testIdsToTestCounts = TestShards.mergeTestCounts(testIdsToTestCounts);
     Tree tree = display.getTree();
     allTestTreeItems.clear();
     tree.removeItems();
@@ -79,10 +87,12 @@ public class TestTreePresenter {
       public void onSelection(SelectionEvent<TreeItem> treeItemSelectionEvent) {
         TreeItem item = treeItemSelectionEvent.getSelectedItem();
         if (item instanceof TestTreeItem) {
+          selectedTestTreeItem = (TestTreeItem) item;
           loadTestDetails((TestTreeItem) item);
           testDetailsPresenter.setFailure(null);
         } else if (item instanceof SubTestTreeItem) {
           SubTestTreeItem stti = (SubTestTreeItem) item;
+          selectedTestTreeItem = (TestTreeItem) stti.getParentItem();
           loadTestDetails((TestTreeItem) stti.getParentItem());
           if (stti.getFailureId() != null) {
             loadTestFailureDetails((TestTreeItem) stti.getParentItem(), stti.getFailureId());
@@ -90,6 +100,7 @@ public class TestTreePresenter {
             testDetailsPresenter.setFailure(null);
           }
         } else {
+          selectedTestTreeItem = null;
           testDetailsPresenter.setTest(null);
         }
       }
@@ -113,7 +124,7 @@ public class TestTreePresenter {
     Failure theFailure = null;
     for (Failure f : test.getFailures()) {
       if (f.getId().equals(failureId)) {
-        if (f.getFailureMsg() != null) {
+        if (!f.isStub()) {
           // we've already got the failure data
           theFailure = f;
         } else {
@@ -147,9 +158,8 @@ public class TestTreePresenter {
       }
 
       public void onSuccess(Test test) {
-        // don't bother updating the ui if the test still hasn't finished,
-        // we won't have any new info until it is complete
-        if (test != null && test.getStatus() != TestStatus.IN_PROGRESS) {
+        // a test that is still running may already have partial results
+        if (test != null) {
           // new data!  make sure we refresh
           selected.setTest(test);
           Set<String> failureTestNames = new HashSet<String>();
@@ -157,6 +167,10 @@ public class TestTreePresenter {
             failureTestNames.add(f.getId());
           }
           setSubtests(selected, test.getSuccesses(), failureTestNames);
+          if (test.getStatus() == TestStatus.IN_PROGRESS) {
+            // the subtests don't tell the whole story yet
+            selected.setStatus(TestStatus.IN_PROGRESS);
+          }
           testDetailsPresenter.setTest(test);
         }
       }
@@ -176,10 +190,24 @@ public class TestTreePresenter {
   /**
    * Called when the user selects a Test in the Tree
    */
-   public void updateTreeItemStatus(Set<Test> tests, TestStatus status) {
-    for (Test t : tests) {
+   public void updateTreeItemStatus(Set<TestSummary> tests, TestStatus status) {
+    for (TestSummary t : tests) {
       TestTreeItem item = allTestTreeItems.get(t.getName());
-      item.setStatus(status);
+      // tests can start running before the tree has been built
+      if (item != null) {
+        item.setStatus(status);
+      }
+    }
+  }
+
+  /**
+   * Fetches the latest results of the selected test if it is still running
+   * so that its subtests fill in as they complete.
+   */
+  public void refreshSelectedTest() {
+    if (selectedTestTreeItem != null
+        && selectedTestTreeItem.getTest().getStatus() == TestStatus.IN_PROGRESS) {
+      loadTestDetails(selectedTestTreeItem);
     }
   }
 
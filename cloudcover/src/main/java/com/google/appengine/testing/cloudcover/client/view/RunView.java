@@ -16,6 +16,7 @@
 
 package com.google.appengine.testing.cloudcover.client.view;
 
+import com.google.appengine.testing.cloudcover.client.presenter.FailureClusterPresenter;
 import com.google.appengine.testing.cloudcover.client.presenter.RunPresenter;
 import com.google.appengine.testing.cloudcover.client.presenter.RunSelectionPresenter;
 import com.google.appengine.testing.cloudcover.client.presenter.RunSummaryPresenter;
@@ -36,13 +37,18 @@ public class RunView extends Composite implements RunPresenter.Display {
   private final RunSummaryView runSummaryView;
   private final RunSelectionView runSelectionView;
   private final TestTreeView testTreeView;
+  private final FailureClusterView failureClusterView;
   private final Label errorMsg = new Label();
 
   public RunView() {
     HorizontalSplitPanel split = new HorizontalSplitPanel();
     split.setSplitPosition("50%");
+    FlowPanel treePanel = new FlowPanel();
+    failureClusterView = new FailureClusterView();
+    treePanel.add(failureClusterView);
     testTreeView = new TestTreeView();
-    split.add(testTreeView);
+    treePanel.add(testTreeView);
+    split.add(treePanel);
     testDetailsView = new TestDetailsView();
     split.add(testDetailsView);
 
@@ -68,6 +74,10 @@ public class RunView extends Composite implements RunPresenter.Display {
     return testTreeView;
   }
 
+  public FailureClusterPresenter.Display getFailureClusterView() {
+    return failureClusterView;
+  }
+
   public TestDetailsPresenter.Display getTestDetailsView() {
     return testDetailsView;
   }
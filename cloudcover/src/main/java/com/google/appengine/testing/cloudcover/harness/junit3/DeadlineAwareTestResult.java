@@ -26,7 +26,8 @@ import java.util.logging.Logger;
  * {@link DeadlineExceededException}.  When we encouter this exception
  * we don't want to run any more tests because we'll encounter
  * {@code HardDeadlineExceededException shortly thereafter and our cleanup}
- * won't run.
+ * won't run.  The tests we don't get to are run by a continuation, and so
+ * is the test that was cut off, unless it was the first test to run.
  *
  * @author Max Ross <max.ross@gmail.com>
  */
@@ -36,17 +37,34 @@ class DeadlineAwareTestResult extends TestResult {
 
   private boolean tooSlow = false;
 
+  private junit.framework.Test interruptedTest;
+
   @Override
   public void addError(junit.framework.Test test, Throwable t) {
-    super.addError(test, t);
     if (t instanceof DeadlineExceededException) {
-      logger.fine("Test " + t + " took too long, remaining sub tests will not be run.");
+      logger.fine("Test " + t + " took too long, remaining sub tests will be continued later.");
       tooSlow = true;
       stop();
+      if (runCount() > 1) {
+        // Other tests used up part of the time, so the continuation reruns
+        // this one instead of recording the deadline as its failure.
+        interruptedTest = test;
+        return;
+      }
+      // it had the request to itself and still didn't finish
     }
+    super.addError(test, t);
   }
 
   boolean isTooSlow() {
     return tooSlow;
   }
+
+  /**
+   * Returns the test that was cut off by the deadline and needs to be rerun,
+   * or {@code null} if there is no such test.
+   */
+  junit.framework.Test getInterruptedTest() {
+    return interruptedTest;
+  }
 }
@@ -18,6 +18,8 @@ package com.google.appengine.testing.cloudcover.harness.junit3;
 import com.google.appengine.testing.cloudcover.spi.BaseTestHarnessConfig;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 
+import junit.framework.TestSuite;
+
 /**
  * Base config for JUnit 3.
  *
@@ -28,4 +30,13 @@ public abstract class JUnit3Config extends BaseTestHarnessConfig {
   public TestHarness getTestHarness() {
     return new JUnit3TestHarness();
   }
+
+  /**
+   * Creates a TestRun for the given suite that splits classes into shards
+   * as configured by {@link #getMaxMethodsPerShard()}.  Call this from
+   * {@link #newTestRun(String)}.
+   */
+  protected JUnit3TestRun newJUnit3TestRun(TestSuite testSuite) {
+    return new JUnit3TestRun(testSuite, getMaxMethodsPerShard());
+  }
 }
@@ -15,12 +15,17 @@
  */
 package com.google.appengine.testing.cloudcover.harness.junit3;
 
+import com.google.appengine.testing.cloudcover.client.model.Failure;
 import com.google.appengine.testing.cloudcover.client.model.FailureData;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.appengine.testing.cloudcover.client.model.TestResult;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
 import com.google.appengine.testing.cloudcover.harness.junitx.JUnitStackTraceRewriter;
+import com.google.appengine.testing.cloudcover.harness.junitx.JUnitTestRun;
+import com.google.appengine.testing.cloudcover.spi.IncrementalTestHarness;
 import com.google.appengine.testing.cloudcover.spi.IsolationMechanism;
+import com.google.appengine.testing.cloudcover.spi.SubtestListener;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
 
@@ -30,6 +35,8 @@ import junit.framework.TestSuite;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -37,17 +44,27 @@ import java.util.Set;
 
 /**
  * A JUnit3 {@link TestHarness}.  The id of each {@link Test} is a class name,
- * so all tests belonging to that class are run.
+ * so all tests belonging to that class are run, unless the id refers to a
+ * shard of the class, in which case only the methods belonging to that shard
+ * are run.  If the {@link Test} already has results we're continuing a run
+ * that ran out of time, so only the methods without results are run.
  *
  * @author Max Ross <max.ross@gmail.com>
  */
-public class JUnit3TestHarness implements TestHarness {
+public class JUnit3TestHarness implements IncrementalTestHarness {
 
   public TestResult runTest(TestHarnessConfig config, Test test) {
+    return runTest(config, test, null);
+  }
+
+  public TestResult runTest(TestHarnessConfig config, Test test, SubtestListener listener) {
     TestNameCollector collector = new TestNameCollector();
     DeadlineAwareTestResult result = newJUnitTestResult(config, test, collector);
+    if (listener != null) {
+      result.addListener(new SubtestReporter(this, listener, result));
+    }
     try {
-      Class<?> cls = Class.forName(test.getName());
+      Class<?> cls = Class.forName(TestShards.getClassName(test.getName()));
       TestSuite testSuite;
       try {
         Method m = cls.getMethod("suite");
@@ -55,9 +72,17 @@ public class JUnit3TestHarness implements TestHarness {
       } catch (NoSuchMethodException nsme) {
         testSuite = new TestSuite(cls);
       }
+      if (TestShards.isShard(test.getName())) {
+        testSuite = buildShardSuite(testSuite, TestShards.getShardIndex(test.getName()),
+                                    TestShards.getNumShards(test.getName()));
+      }
+      int numTests = testSuite.countTestCases();
+      if (!test.getSuccesses().isEmpty() || !test.getFailures().isEmpty()) {
+        testSuite = buildContinuationSuite(testSuite, test);
+      }
       testSuite.run(result);
-      return translateResult(test.getRun().getId(), test.getName(), testSuite.countTestCases(),
-                             result, collector.getTestNames());
+      return translateResult(test.getRun().getId(), test.getName(), numTests,
+                             result, collector.getTestNames(), getMethodNames(testSuite));
     } catch (RuntimeException rte) {
       throw rte;
     } catch (Throwable t) {
@@ -65,6 +90,62 @@ public class JUnit3TestHarness implements TestHarness {
     }
   }
 
+  /**
+   * Builds a suite with one entry per method that belongs to the given shard.
+   * Tests that aren't suites (test decorators, for example) are treated as a
+   * single method.
+   */
+  static TestSuite buildShardSuite(TestSuite testSuite, int shardIndex, int numShards) {
+    List<junit.framework.Test> methods = getMethods(testSuite);
+    TestSuite shardSuite = new TestSuite(testSuite.getName());
+    for (int i = 0; i < methods.size(); i++) {
+      if (TestShards.isInShard(i, shardIndex, numShards)) {
+        shardSuite.addTest(methods.get(i));
+      }
+    }
+    return shardSuite;
+  }
+
+  /**
+   * Builds a suite with one entry per method that doesn't have a result
+   * yet.
+   */
+  static TestSuite buildContinuationSuite(TestSuite testSuite, Test test) {
+    Set<String> alreadyRun = new HashSet<String>(test.getSuccesses());
+    for (Failure f : test.getFailures()) {
+      alreadyRun.add(f.getId());
+    }
+    TestSuite continuationSuite = new TestSuite(testSuite.getName());
+    for (junit.framework.Test method : getMethods(testSuite)) {
+      if (!alreadyRun.contains(getShortName(method))) {
+        continuationSuite.addTest(method);
+      }
+    }
+    return continuationSuite;
+  }
+
+  private static Set<String> getMethodNames(TestSuite testSuite) {
+    Set<String> methodNames = new HashSet<String>();
+    for (junit.framework.Test method : getMethods(testSuite)) {
+      methodNames.add(getShortName(method));
+    }
+    return methodNames;
+  }
+
+  private static List<junit.framework.Test> getMethods(TestSuite testSuite) {
+    List<junit.framework.Test> methods =
+        JUnitTestRun.collectMethods(testSuite, new ArrayList<junit.framework.Test>());
+    Collections.sort(methods, BY_NAME);
+    return methods;
+  }
+
+  private static final Comparator<junit.framework.Test> BY_NAME =
+      new Comparator<junit.framework.Test>() {
+        public int compare(junit.framework.Test t1, junit.framework.Test t2) {
+          return t1.toString().compareTo(t2.toString());
+        }
+      };
+
   protected DeadlineAwareTestResult newJUnitTestResult(TestHarnessConfig config, Test test,
                                                           TestNameCollector collector) {
     DeadlineAwareTestResult testResult = new DeadlineAwareTestResult();
@@ -91,7 +172,8 @@ public class JUnit3TestHarness implements TestHarness {
   }
 
   private TestResult translateResult(long runId, String testId, int numTests,
-                                     DeadlineAwareTestResult result, Set<String> allTestNames) {
+                                     DeadlineAwareTestResult result, Set<String> allTestNames,
+                                     Set<String> methodNames) {
     Set<String> successfulTests = new HashSet<String>(allTestNames);
     TestStatus testStatus = TestStatus.SUCCESS;
     List<FailureData> failureData = new ArrayList<FailureData>();
@@ -117,10 +199,20 @@ public class JUnit3TestHarness implements TestHarness {
         failureData.add(testFailureToFalureData(shortName, tf));
       }
     }
+    Set<String> notRunTests = new HashSet<String>();
     if (result.isTooSlow()) {
       testStatus = TestStatus.TOO_SLOW;
+      // the methods that never started can be picked up by a continuation
+      notRunTests.addAll(methodNames);
+      notRunTests.removeAll(allTestNames);
+      if (result.getInterruptedTest() != null) {
+        String shortName = getShortName(result.getInterruptedTest());
+        successfulTests.remove(shortName);
+        notRunTests.add(shortName);
+      }
     }
-    return new TestResult(runId, testId, testStatus, numTests, failureData, successfulTests);
+    return new TestResult(runId, testId, testStatus, numTests, failureData, successfulTests,
+                          notRunTests);
   }
 
   FailureData testFailureToFalureData(String shortName, TestFailure tf) {
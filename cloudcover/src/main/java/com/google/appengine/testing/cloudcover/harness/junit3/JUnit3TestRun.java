@@ -29,4 +29,8 @@ public class JUnit3TestRun extends JUnitTestRun {
   public JUnit3TestRun(TestSuite testSuite) {
     super(testSuite);
   }
+
+  public JUnit3TestRun(TestSuite testSuite, int maxMethodsPerShard) {
+    super(testSuite, maxMethodsPerShard);
+  }
 }
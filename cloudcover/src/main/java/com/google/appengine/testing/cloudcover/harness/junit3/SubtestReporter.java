@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.harness.junit3;
+
+import com.google.appengine.testing.cloudcover.spi.SubtestListener;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestFailure;
+
+/**
+ * A {@link junit.framework.TestListener} that passes the outcome of each
+ * test on to a {@link SubtestListener} as soon as the test ends.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+class SubtestReporter extends BaseTestListener {
+
+  private final JUnit3TestHarness harness;
+  private final SubtestListener listener;
+  private final DeadlineAwareTestResult result;
+  private boolean failed;
+
+  SubtestReporter(JUnit3TestHarness harness, SubtestListener listener,
+                  DeadlineAwareTestResult result) {
+    this.harness = harness;
+    this.listener = listener;
+    this.result = result;
+  }
+
+  @Override
+  public void startTest(Test test) {
+    failed = false;
+  }
+
+  @Override
+  public void addError(Test test, Throwable throwable) {
+    reportFailure(test, throwable);
+  }
+
+  @Override
+  public void addFailure(Test test, AssertionFailedError assertionFailedError) {
+    reportFailure(test, assertionFailedError);
+  }
+
+  private void reportFailure(Test test, Throwable throwable) {
+    failed = true;
+    String shortName = JUnit3TestHarness.getShortName(test);
+    listener.onSubtestFailure(
+        harness.testFailureToFalureData(shortName, new TestFailure(test, throwable)));
+  }
+
+  @Override
+  public void endTest(Test test) {
+    // a test that was cut off by the deadline gets rerun, so it has no outcome
+    if (!failed && test != result.getInterruptedTest()) {
+      listener.onSubtestSuccess(JUnit3TestHarness.getShortName(test));
+    }
+  }
+}
@@ -18,6 +18,8 @@ package com.google.appengine.testing.cloudcover.harness.junit4;
 import com.google.appengine.testing.cloudcover.spi.BaseTestHarnessConfig;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 
+import org.junit.runner.Description;
+
 /**
  * Base config for JUnit 4.
  *
@@ -28,4 +30,13 @@ public abstract class JUnit4Config extends BaseTestHarnessConfig {
   public TestHarness getTestHarness() {
     return new JUnit4TestHarness();
   }
+
+  /**
+   * Creates a TestRun for the given suite that splits classes into shards
+   * as configured by {@link #getMaxMethodsPerShard()}.  Call this from
+   * {@link #newTestRun(String)}.
+   */
+  protected JUnit4TestRun newJUnit4TestRun(Description desc) {
+    return new JUnit4TestRun(desc, getMaxMethodsPerShard());
+  }
 }
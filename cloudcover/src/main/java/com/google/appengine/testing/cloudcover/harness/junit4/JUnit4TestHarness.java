@@ -18,33 +18,52 @@ package com.google.appengine.testing.cloudcover.harness.junit4;
 import com.google.appengine.testing.cloudcover.client.model.FailureData;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.appengine.testing.cloudcover.client.model.TestResult;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.spi.IncrementalTestHarness;
 import com.google.appengine.testing.cloudcover.spi.IsolationMechanism;
+import com.google.appengine.testing.cloudcover.spi.SubtestListener;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
 
 import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A JUnit4 {@link TestHarness}. The id of each {@link Test} is a class name,
- * so all tests belonging to that class are run.
+ * so all tests belonging to that class are run, unless the id refers to a
+ * shard of the class, in which case only the methods belonging to that shard
+ * are run.
  *
  * @author Max Ross <max.ross@gmail.com>
  */
-public class JUnit4TestHarness implements TestHarness {
+public class JUnit4TestHarness implements IncrementalTestHarness {
 
   public TestResult runTest(TestHarnessConfig config, Test test) {
+    return runTest(config, test, null);
+  }
+
+  public TestResult runTest(TestHarnessConfig config, Test test, SubtestListener listener) {
     JUnitCore u = newJUnitCore(config, test);
+    SubtestReporter reporter = new SubtestReporter(listener);
+    u.addListener(reporter);
     try {
-      Class<?> cls = Class.forName(test.getName());
-      Result res = u.run(cls);
-      return translateResult(test.getRun().getId(), test.getName(), res.getRunCount(), res);
+      Class<?> cls = Class.forName(TestShards.getClassName(test.getName()));
+      Request request = Request.aClass(cls);
+      if (TestShards.isShard(test.getName())) {
+        request = request.filterWith(new ShardFilter(
+            request.getRunner().getDescription(), TestShards.getShardIndex(test.getName()),
+            TestShards.getNumShards(test.getName())));
+      }
+      Result res = u.run(request);
+      return translateResult(test.getRun().getId(), test.getName(), res.getRunCount(), res,
+                             reporter.getSuccessfulTestNames());
     } catch (RuntimeException rte) {
       throw rte;
     } catch (Throwable t) {
@@ -63,7 +82,7 @@ public class JUnit4TestHarness implements TestHarness {
   }
 
   private TestResult translateResult(long runId, String testId, int numTests,
-                                     Result result) {
+                                     Result result, Set<String> successfulTestNames) {
     TestStatus testStatus = TestStatus.SUCCESS;
     List<FailureData> failureData = new ArrayList<FailureData>();
     // JUnit 4: doesn't distinguish between 'failure' and 'error'
@@ -71,11 +90,14 @@ public class JUnit4TestHarness implements TestHarness {
       testStatus = TestStatus.FAILURE;
       List<Failure> failureList = result.getFailures();
       for (Failure fail : failureList) {
-        failureData.add(new FailureData(fail.toString(), fail.getMessage(), fail.getTrace()));
+        failureData.add(toFailureData(fail));
       }
     }
-    // TODO(maxr): fill in successful test names
-    return new TestResult(runId, testId, testStatus, numTests, failureData, new HashSet<String>());
+    return new TestResult(runId, testId, testStatus, numTests, failureData, successfulTestNames);
+  }
+
+  static FailureData toFailureData(Failure fail) {
+    return new FailureData(fail.toString(), fail.getMessage(), fail.getTrace());
   }
 
   private static final String FIVE_SPACES = "&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;";
@@ -15,6 +15,7 @@
  */
 package com.google.appengine.testing.cloudcover.harness.junit4;
 
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.spi.TestId;
 import com.google.appengine.testing.cloudcover.spi.TestRun;
 
@@ -24,20 +25,43 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
+ * A JUnit4 {@link TestRun}.  Every class is run as a single test unless it
+ * has more than {@code maxMethodsPerShard} methods, in which case it is split
+ * into shards that run as separate tests.
+ *
  * @author Max Ross <max.ross@gmail.com>
  */
 public class JUnit4TestRun implements TestRun {
 
   private final Description desc;
+  private final int maxMethodsPerShard;
 
   public JUnit4TestRun(Description desc) {
+    this(desc, 0);
+  }
+
+  /**
+   * @param maxMethodsPerShard The max number of methods a test can have
+   * before it gets split into shards.  Values <= 0 disable sharding.
+   */
+  public JUnit4TestRun(Description desc, int maxMethodsPerShard) {
     this.desc = desc;
+    this.maxMethodsPerShard = maxMethodsPerShard;
   }
 
   public Iterable<TestId> getTestIds(long runId) {
     List<TestId> testIds = new ArrayList<TestId>();
     for (Description sub : desc.getChildren()) {
-      testIds.add(new TestId(sub.getTestClass().getName(), sub.testCount()));
+      String className = sub.getTestClass().getName();
+      int numShards = TestShards.getNumShards(sub.testCount(), maxMethodsPerShard);
+      if (numShards == 1) {
+        testIds.add(new TestId(className, sub.testCount()));
+      } else {
+        for (int i = 0; i < numShards; i++) {
+          testIds.add(TestId.forShard(
+              className, TestShards.getShardSize(sub.testCount(), i, numShards), i, numShards));
+        }
+      }
     }
     return testIds;
   }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.harness.junit4;
+
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
+
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A {@link Filter} that only runs the methods of a class that belong to a
+ * specific shard.
+ *
+ * @see TestShards
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class ShardFilter extends Filter {
+
+  private static final Comparator<Description> BY_DISPLAY_NAME = new Comparator<Description>() {
+    public int compare(Description d1, Description d2) {
+      return d1.getDisplayName().compareTo(d2.getDisplayName());
+    }
+  };
+
+  private final Set<Description> methodsInShard = new HashSet<Description>();
+  private final int shardIndex;
+  private final int numShards;
+
+  /**
+   * @param classDescription Description of the class to be sharded
+   */
+  ShardFilter(Description classDescription, int shardIndex, int numShards) {
+    this.shardIndex = shardIndex;
+    this.numShards = numShards;
+    List<Description> methods = new ArrayList<Description>();
+    collectMethods(classDescription, methods);
+    Collections.sort(methods, BY_DISPLAY_NAME);
+    for (int i = 0; i < methods.size(); i++) {
+      if (TestShards.isInShard(i, shardIndex, numShards)) {
+        methodsInShard.add(methods.get(i));
+      }
+    }
+  }
+
+  private static void collectMethods(Description desc, List<Description> methods) {
+    if (desc.isTest()) {
+      methods.add(desc);
+    } else {
+      for (Description child : desc.getChildren()) {
+        collectMethods(child, methods);
+      }
+    }
+  }
+
+  @Override
+  public boolean shouldRun(Description desc) {
+    if (desc.isTest()) {
+      return methodsInShard.contains(desc);
+    }
+    for (Description child : desc.getChildren()) {
+      if (shouldRun(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String describe() {
+    return "shard " + (shardIndex + 1) + " of " + numShards;
+  }
+}
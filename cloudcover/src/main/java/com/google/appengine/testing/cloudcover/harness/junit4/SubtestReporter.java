@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.harness.junit4;
+
+import com.google.appengine.testing.cloudcover.spi.SubtestListener;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A {@link org.junit.runner.notification.RunListener} that keeps track of
+ * the tests that succeed and, if there is a {@link SubtestListener}, passes
+ * the outcome of each test on to it as soon as the test finishes.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+class SubtestReporter extends BaseRunListener {
+
+  private final SubtestListener listener;
+  private final Set<String> successfulTestNames = new HashSet<String>();
+  private boolean failed;
+
+  /**
+   * @param listener The listener to notify, can be {@code null}
+   */
+  SubtestReporter(SubtestListener listener) {
+    this.listener = listener;
+  }
+
+  @Override
+  public void testStarted(Description description) {
+    failed = false;
+  }
+
+  @Override
+  public void testFailure(Failure failure) {
+    failed = true;
+    if (listener != null) {
+      listener.onSubtestFailure(JUnit4TestHarness.toFailureData(failure));
+    }
+  }
+
+  @Override
+  public void testFinished(Description description) {
+    if (!failed) {
+      String name = getMethodName(description);
+      successfulTestNames.add(name);
+      if (listener != null) {
+        listener.onSubtestSuccess(name);
+      }
+    }
+  }
+
+  Set<String> getSuccessfulTestNames() {
+    return successfulTestNames;
+  }
+
+  /**
+   * Display names look like methodName(className).
+   */
+  private static String getMethodName(Description description) {
+    String displayName = description.getDisplayName();
+    int paren = displayName.indexOf('(');
+    return paren == -1 ? displayName : displayName.substring(0, paren);
+  }
+}
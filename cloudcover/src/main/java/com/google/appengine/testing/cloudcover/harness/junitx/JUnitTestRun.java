@@ -15,6 +15,7 @@
  */
 package com.google.appengine.testing.cloudcover.harness.junitx;
 
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.spi.TestId;
 import com.google.appengine.testing.cloudcover.spi.TestRun;
 
@@ -28,15 +29,28 @@ import java.util.logging.Logger;
 
 /**
  * Base implementation of a {@link TestRun} for different versions of JUnit.
+ * Every class is run as a single test unless it has more than
+ * {@code maxMethodsPerShard} methods, in which case it is split into shards
+ * that run as separate tests.
  *
  * @author Max Ross <max.ross@gmail.com>
  */
 public class JUnitTestRun implements TestRun {
   private final TestSuite testSuite;
+  private final int maxMethodsPerShard;
   private final Logger logger = Logger.getLogger(getClass().getName());
 
   public JUnitTestRun(TestSuite testSuite) {
+    this(testSuite, 0);
+  }
+
+  /**
+   * @param maxMethodsPerShard The max number of methods a test can have
+   * before it gets split into shards.  Values <= 0 disable sharding.
+   */
+  public JUnitTestRun(TestSuite testSuite, int maxMethodsPerShard) {
     this.testSuite = testSuite;
+    this.maxMethodsPerShard = maxMethodsPerShard;
   }
 
   public Iterable<TestId> getTestIds(long runId) {
@@ -48,7 +62,7 @@ public class JUnitTestRun implements TestRun {
           logger.warning(runId + ": Cannot schedule test " + t.getClass().getName()
                          + " for execution because it is an anonymous or local class.");
         } else {
-          testIds.add(new TestId(testClass.getName(), t.countTestCases()));
+          addTestIds(testIds, testClass.getName(), t);
         }
       } catch (ClassNotFoundException e) {
         logger.warning(runId + ": Cannot schedule instance of class " + t.getClass().getName()
@@ -59,6 +73,41 @@ public class JUnitTestRun implements TestRun {
     return testIds;
   }
 
+  private void addTestIds(List<TestId> testIds, String className, Test test) {
+    // shards are made of methods, see collectMethods()
+    int numMethods = collectMethods(test, new ArrayList<Test>()).size();
+    int numShards = TestShards.getNumShards(numMethods, maxMethodsPerShard);
+    if (numShards == 1) {
+      testIds.add(new TestId(className, test.countTestCases()));
+    } else {
+      for (int i = 0; i < numShards; i++) {
+        testIds.add(TestId.forShard(
+            className, TestShards.getShardSize(numMethods, i, numShards), i, numShards));
+      }
+    }
+  }
+
+  /**
+   * Adds the methods of the given test to the given list.  Tests that aren't
+   * suites (test decorators, for example) count as a single method, so a
+   * decorated class is never split.  This is how classes are counted when
+   * they're split into shards and when a shard is run, so both agree on the
+   * number of methods.
+   *
+   * @return the given list
+   */
+  public static List<Test> collectMethods(Test test, List<Test> methods) {
+    if (test instanceof TestSuite) {
+      Enumeration tests = ((TestSuite) test).tests();
+      while (tests.hasMoreElements()) {
+        collectMethods((Test) tests.nextElement(), methods);
+      }
+    } else {
+      methods.add(test);
+    }
+    return methods;
+  }
+
   private List<Test> toList(Enumeration e) {
     List<Test> tests = new ArrayList<Test>();
     while (e.hasMoreElements()) {
@@ -15,34 +15,44 @@
  */
 package com.google.appengine.testing.cloudcover.server;
 
-import com.google.appengine.api.labs.taskqueue.Queue;
-import com.google.appengine.api.labs.taskqueue.TaskAlreadyExistsException;
-import com.google.appengine.api.labs.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.FailureData;
 import com.google.appengine.testing.cloudcover.client.model.NewRunResult;
 import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+import com.google.appengine.testing.cloudcover.client.model.RunSummaryDelta;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.appengine.testing.cloudcover.client.model.TestResult;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
+import com.google.appengine.testing.cloudcover.spi.IncrementalTestHarness;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
 import com.google.appengine.testing.cloudcover.spi.TestId;
 import com.google.appengine.testing.cloudcover.spi.TestRun;
 import com.google.apphosting.api.DeadlineExceededException;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -57,37 +67,87 @@ public class CloudCoverManager {
 
   private static final int FAN_IN_PERIOD = 1000;
 
+  // need to wait until the fan-in period has passed to ensure we don't
+  // perform the check too early
+  private static final int COMPLETION_NOTIFICATION_DELAY = FAN_IN_PERIOD * 2;
+
+  // number of test ids scheduled by a single planning task
+  private static final int PLANNING_CHUNK_SIZE = 1000;
+
+  // number of batch adds we allow to be in flight while planning
+  private static final int MAX_ENQUEUE_BATCHES_IN_FLIGHT = 10;
+
+  // once a packed task has been running this long we hand the tests that
+  // haven't started yet off to a new task
+  private static final long PACKED_TASK_TIME_BUDGET = 5 * 60 * 1000;
+
+  // number of times we'll pick up a test that ran out of time before we
+  // give up and mark it as too slow
+  private static final int MAX_CONTINUATIONS = 5;
+
+  // A task gets 10 minutes, so once the lease of an attempt has run out
+  // the task running it is gone.
+  private static final long TEST_LEASE = 11 * 60 * 1000;
+
+  // number of attempts a test gets to run each of its segments before we
+  // give up and mark it as too slow
+  private static final int MAX_ATTEMPTS = 3;
+
+  private static final int MAX_TASK_NAME_COMPONENT_LENGTH = 400;
+
+  // how far back a delta looks before the version of the previous delta
+  private static final long STATUS_VERSION_LOOKBACK = 10 * 1000;
+
+  // waiting requests have to finish well within the 30 second deadline
+  private static final long MAX_WAIT_FOR_CHANGE = 20 * 1000;
+
+  private static final long COMPLETION_SAFETY_CHECK_PERIOD = 5 * 60 * 1000;
+
+  // a day's worth of safety checks
+  private static final int MAX_COMPLETION_SAFETY_CHECKS = 288;
+
+  private static final int MAX_RUNS_PER_PAGE = 100;
+
+  // a purge task hands off to a new task once it has been running this long
+  private static final long PURGE_TIME_BUDGET = 5 * 60 * 1000;
+
+  private static final long ONE_DAY = 24 * 60 * 60 * 1000;
+
+  // enough to tell whether a cluster is one broken class or spread out
+  private static final int MAX_EXAMPLES_PER_FAILURE_CLUSTER = 5;
+
   private final TestHarnessConfig harnessConfig;
   private final TestHarnessDao dao;
+  private final RunChangeNotifier runChangeNotifier;
+  private final RunSummaryCache runSummaryCache = new RunSummaryCache();
   private final Logger logger = Logger.getLogger(getClass().getName());
 
   public CloudCoverManager(TestHarnessConfig harnessConfig, TestHarnessDao dao) {
+    this(harnessConfig, dao, new MemcacheRunChangeNotifier());
+  }
+
+  public CloudCoverManager(TestHarnessConfig harnessConfig, TestHarnessDao dao,
+                           RunChangeNotifier runChangeNotifier) {
     this.harnessConfig = harnessConfig;
     this.dao = dao;
+    this.runChangeNotifier = runChangeNotifier;
   }
 
   /**
-   * Creates a new run
+   * Creates a new run.  The tests belonging to the run are scheduled by a
+   * background planning task, so the returned run does not have any test id
+   * data and its number of tests is unknown until planning has finished.
+   *
    * @param suiteId The id of the suite for which we want to create a new Run
    * @return A NewRunResult
    */
   public NewRunResult createNewRun(String suiteId) {
     logger.fine("Creating new run.");
     try {
-      Run run = dao.newRun();
-      TestRun testRun = harnessConfig.newTestRun(suiteId);
-      Map<String, Integer> testIdsToTestCounts = scheduleTestExecution(run.getId(), testRun);
-      int numSubTests = 0;
-      for (Integer val : testIdsToTestCounts.values()) {
-        numSubTests += val;
-      }
-      run.setNumTests(numSubTests);
-      run.setNumTestEntities(testIdsToTestCounts.size());
-      dao.updateRun(run);
-      // schedule a task to create the test id data
-      scheduleTestIdDataAddition(run.getId(), testIdsToTestCounts);
+      Run run = dao.newRun(suiteId);
+      schedulePlanning(run.getId(), 0);
       logger.fine("Created new run with id " + run.getId());
-      return new NewRunResult(run, testIdsToTestCounts);
+      return new NewRunResult(run);
     } catch (DeadlineExceededException dee) {
       String msg = "Unable to create run due to deadline exceeded exception";
       logger.fine(msg);
@@ -95,13 +155,143 @@ public class CloudCoverManager {
     }
   }
 
-  private void scheduleTestIdDataAddition(long runId, Map<String, Integer> testIdsToTestCounts) {
-    logger.fine("Scheduling addition of test id data for run " + runId);
-    Queue q = harnessConfig.getQueue(runId);
-    q.add(buildTaskOptionsForTestIdData(runId, testIdsToTestCounts));
-    logger.fine("Scheduled addition of test id data for run " + runId);
+  private void schedulePlanning(long runId, int cursor) {
+    logger.fine("Scheduling planning of run " + runId + " starting at test " + cursor);
+    Queue q = getQueue(runId);
+    try {
+      q.add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url(harnessConfig.getBaseQueueActionURL() + "plan/" + runId)
+          .taskName(runId + "-plan-" + cursor));
+    } catch (TaskAlreadyExistsException taee) {
+      // a previous attempt already scheduled this chunk
+    }
+  }
+
+  /**
+   * Schedules the execution of the next chunk of tests belonging to a Run
+   * and checkpoints the planning progress of the Run together with the test
+   * ids of the chunk.  Every chunk schedules the chunk that follows it, so
+   * the size of a Run is not bounded by the deadline of a single request.
+   * Task names are derived from the position of the test in the Run, so
+   * retrying a chunk never schedules the same test twice.
+   * <p>
+   * The first chunk asks the TestRun for all the test ids of the Run and
+   * saves them in the order they'll be scheduled (see
+   * {@link TestHarnessDao#savePlannedTestIds(long, List)}), so every other
+   * chunk only reads its own test ids.  Sorting needs all of them, so the
+   * enumeration isn't split up: the number of tests in a Run is bounded by
+   * how many test ids the TestRun can produce in a single request.
+   *
+   * @param runId The unique id of the Run to plan
+   */
+  public void planRun(long runId) {
+    RunPlan plan = dao.getRunPlan(runId);
+    if (plan == null || plan.isFinished()) {
+      logger.fine("Nothing left to plan for run " + runId);
+      return;
+    }
+    // every chunk but the last is full, so the cursor tells us which chunk is next
+    int chunkIndex = plan.getCursor() / PLANNING_CHUNK_SIZE;
+    List<TestId> chunk = dao.getPlannedTestIds(runId, chunkIndex);
+    if (chunk == null) {
+      // First chunk, or a run whose planning started before we saved the
+      // order.  The order is the same every time we compute it.
+      List<List<TestId>> chunks = splitIntoChunks(getTestIdsLongestFirst(runId, plan));
+      dao.savePlannedTestIds(runId, chunks);
+      chunk = chunkIndex < chunks.size() ? chunks.get(chunkIndex)
+                                         : Collections.<TestId>emptyList();
+    }
+    boolean lastChunk = chunk.size() < PLANNING_CHUNK_SIZE;
+    EnqueuePipeline pipeline = new EnqueuePipeline(getQueue(runId), MAX_ENQUEUE_BATCHES_IN_FLIGHT);
+    Map<String, Integer> testIdsToTestCounts =
+        scheduleTestExecution(runId, plan.getCursor(), chunk, pipeline);
+    int numSubTests = 0;
+    for (Integer val : testIdsToTestCounts.values()) {
+      numSubTests += val;
+    }
+    // everything has to be on the queue before we checkpoint
+    pipeline.flush();
+    logger.fine("Scheduled chunk at " + plan.getCursor() + " of run " + runId);
+    RunPlan next = plan.advance(chunk.size(), numSubTests, testIdsToTestCounts.size(), lastChunk);
+    if (!dao.checkpointRunPlan(plan, next, testIdsToTestCounts)) {
+      // Somebody else planned this chunk and will take care of the next one
+      logger.fine("Chunk at " + plan.getCursor() + " of run " + runId + " was already planned");
+      return;
+    }
+    runChangeNotifier.runChanged(runId);
+    if (lastChunk) {
+      logger.fine("Finished planning " + next.getNumTestEntities() + " tests for run " + runId);
+      // tests may have finished before we knew how many there were so we
+      // need to check for completion ourselves
+      scheduleCompletionNotification(runId);
+      scheduleCompletionSafetyCheck(runId, 0);
+    } else {
+      schedulePlanning(runId, next.getCursor());
+    }
+  }
+
+  /**
+   * Splits the given test ids into planning chunks.  The last chunk is the
+   * only one that isn't full, so a Run whose size is a multiple of the chunk
+   * size ends with an empty chunk.
+   */
+  private static List<List<TestId>> splitIntoChunks(List<TestId> testIds) {
+    List<List<TestId>> chunks = new ArrayList<List<TestId>>();
+    for (int start = 0; start <= testIds.size(); start += PLANNING_CHUNK_SIZE) {
+      int end = Math.min(start + PLANNING_CHUNK_SIZE, testIds.size());
+      chunks.add(new ArrayList<TestId>(testIds.subList(start, end)));
+    }
+    return chunks;
   }
 
+  /**
+   * Returns all the test ids of the Run, the ones we expect to take the
+   * longest first, so that the slowest tests don't end up in the tail of the
+   * Run.  A test id that shows up more than once is only returned the first
+   * time, so it is scheduled and counted once no matter which chunks the
+   * copies would have landed in.  The estimates come from the durations the
+   * plan started with and the sort is stable, so the order is the same every
+   * time.
+   */
+  private List<TestId> getTestIdsLongestFirst(long runId, RunPlan plan) {
+    TestRun testRun = harnessConfig.newTestRun(plan.getSuiteId());
+    List<TestId> testIds = new ArrayList<TestId>();
+    Set<String> seen = new HashSet<String>();
+    for (TestId testId : testRun.getTestIds(runId)) {
+      if (seen.add(testId.getTestId())) {
+        testIds.add(testId);
+      } else {
+        logger.severe("More than one test with id " + testId + " in run " + runId);
+      }
+    }
+    final Map<String, Long> classNamesToDurations = dao.getTestDurations(plan.getDurationsRunId());
+    final long defaultSubtestDuration = harnessConfig.getDefaultSubtestDurationEstimate();
+    Collections.sort(testIds, new Comparator<TestId>() {
+      public int compare(TestId testId1, TestId testId2) {
+        long estimate1 = estimateDuration(testId1, classNamesToDurations, defaultSubtestDuration);
+        long estimate2 = estimateDuration(testId2, classNamesToDurations, defaultSubtestDuration);
+        return estimate1 > estimate2 ? -1 : (estimate1 == estimate2 ? 0 : 1);
+      }
+    });
+    return testIds;
+  }
+
+  static long estimateDuration(TestId testId, Map<String, Long> classNamesToDurations,
+                               long defaultSubtestDuration) {
+    Long classDuration = classNamesToDurations.get(testId.getClassName());
+    if (classDuration == null) {
+      return testId.getNumSubtests() * defaultSubtestDuration;
+    }
+    if (TestShards.isShard(testId.getTestId())) {
+      return classDuration / TestShards.getNumShards(testId.getTestId());
+    }
+    return classDuration;
+  }
+
+  /**
+   * Planning writes test id data itself, but tasks that were enqueued
+   * before it did may still deliver test id data this way.
+   */
   public void newTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
     logger.fine("Creating test id data.");
     try {
@@ -120,17 +310,79 @@ public class CloudCoverManager {
    * or {@code null} if no Run could be found.
    */
   public RunSummary getRunSummary(long runId, boolean loadTestIdData) {
+    return getRunSummary(runId, loadTestIdData, true);
+  }
+
+  /**
+   * Fetches a RunSummary for a Run with optional test id data and optional
+   * Tests.  The status counts of the RunSummary come from the status
+   * aggregate of the Run, so a RunSummary without Tests is cheap no matter
+   * how many Tests the Run has.
+   *
+   * @param runId The unique id of the Run to load
+   * @param loadTestIdData Whether or not to include load test in the RunSummary
+   * @param loadTests Whether or not to include the Tests in the RunSummary
+   * @return The RunSummary for the Run uniquely identified by the given runId,
+   * or {@code null} if no Run could be found.
+   */
+  public RunSummary getRunSummary(final long runId, final boolean loadTestIdData,
+                                  boolean loadTests) {
     logger.fine("Getting status for run " + runId);
-    Run run = dao.getRunById(runId, loadTestIdData);
+    if (loadTests) {
+      RunSummary complete = runSummaryCache.getComplete(runId, loadTestIdData);
+      if (complete != null) {
+        logger.fine("Retrieved cached status for complete run " + runId);
+        return complete;
+      }
+    }
+    final Run run = dao.getRunById(runId, loadTestIdData);
     if (run == null) {
       return null;
     }
-    Set<Test> failed = new HashSet<Test>();
-    Set<Test> inProgress = new HashSet<Test>();
-    Set<Test> passed = new HashSet<Test>();
-    Set<Test> tooSlow = new HashSet<Test>();
-    List<Test> testsForRun = dao.getTestsForRun(runId);
-    for (Test t : testsForRun) {
+    final RunStatusCounts counts = dao.getRunStatusCounts(runId);
+    if (!loadTests && !counts.isEmpty()) {
+      logger.fine("Retrieved status counts for run " + runId);
+      return new RunSummary(run, counts);
+    }
+    // either we were asked for the tests or the run predates the status
+    // aggregate, in which case we compute the counts from the tests
+    return runSummaryCache.get(runId, loadTestIdData, counts, new Callable<RunSummary>() {
+      public RunSummary call() {
+        return loadRunSummary(run, loadTestIdData, counts);
+      }
+    });
+  }
+
+  private RunSummary loadRunSummary(Run run, boolean loadTestIdData, RunStatusCounts counts) {
+    List<TestSummary> testsForRun = new ArrayList<TestSummary>();
+    boolean complete = true;
+    for (TestSummary t : dao.getTestSummariesForRun(run.getId())) {
+      testsForRun.add(t);
+      complete &= t.getStatus() != TestStatus.IN_PROGRESS;
+    }
+    complete &= testsForRun.size() == run.getNumTestEntities();
+    // the ui doesn't know about shards so we report on the classes
+    RunSummary summary = buildRunSummary(
+        run, TestShards.mergeShardSummaries(testsForRun), counts.isEmpty() ? null : counts);
+    if (complete) {
+      // nothing about the run is going to change
+      runSummaryCache.putComplete(run.getId(), loadTestIdData, summary);
+    }
+    logger.fine("Retrieved status for run " + run.getId());
+    return summary;
+  }
+
+  /**
+   * Builds a RunSummary for the given Tests.  If no status counts are
+   * provided they are computed from the Tests.
+   */
+  private static RunSummary buildRunSummary(Run run, List<TestSummary> tests,
+                                            RunStatusCounts counts) {
+    Set<TestSummary> failed = new HashSet<TestSummary>();
+    Set<TestSummary> inProgress = new HashSet<TestSummary>();
+    Set<TestSummary> passed = new HashSet<TestSummary>();
+    Set<TestSummary> tooSlow = new HashSet<TestSummary>();
+    for (TestSummary t : tests) {
       if (t.getStatus() == TestStatus.SUCCESS) {
         passed.add(t);
       } else if (t.getStatus() == TestStatus.FAILURE) {
@@ -141,65 +393,189 @@ public class CloudCoverManager {
         tooSlow.add(t);
       }
     }
-    logger.fine("Retrieved status for run " + runId);
-    return new RunSummary(run, passed, failed, tooSlow, inProgress);
+    if (counts == null) {
+      return new RunSummary(run, passed, failed, tooSlow, inProgress);
+    }
+    return new RunSummary(run, passed, failed, tooSlow, inProgress, counts);
+  }
+
+  /**
+   * Fetches the Tests of a Run whose status changed since the given version
+   * along with the status counts of the entire Run.  The cost of a delta is
+   * proportional to the number of changes rather than the size of the Run.
+   * Runs that predate status versions get all their Tests every time.
+   *
+   * @param runId The unique id of the Run to load
+   * @param sinceVersion The version returned by the previous delta, or 0 to
+   * get all the Tests that have started
+   * @return The delta for the Run uniquely identified by the given runId, or
+   * {@code null} if no Run could be found.
+   */
+  public RunSummaryDelta getRunSummaryDelta(long runId, long sinceVersion) {
+    logger.fine("Getting changes for run " + runId + " since version " + sinceVersion);
+    // Writes that started before we look can commit after we look, and
+    // clocks aren't perfectly in sync, so the next delta looks back a little
+    // further than this one.  Seeing a change twice is harmless.  A write
+    // that commits even later is missed, which is why clients ask for all
+    // the changes since version 0 once the Run is finished.
+    long nextVersion = Math.max(sinceVersion,
+                                System.currentTimeMillis() - STATUS_VERSION_LOOKBACK);
+    Run run = dao.getRunById(runId, false);
+    if (run == null) {
+      return null;
+    }
+    // read the counts first so that every test they count as finished is
+    // already visible to the query
+    RunStatusCounts counts = dao.getRunStatusCounts(runId);
+    if (counts.isEmpty()) {
+      return new RunSummaryDelta(getRunSummary(runId, false, true), sinceVersion);
+    }
+    Set<String> changedClasses = new HashSet<String>();
+    List<TestSummary> changed = new ArrayList<TestSummary>();
+    for (TestSummary t : dao.getTestsChangedSince(runId, sinceVersion)) {
+      if (!TestShards.isShard(t.getName())) {
+        changed.add(t);
+      } else if (changedClasses.add(TestShards.getClassName(t.getName()))) {
+        // the ui doesn't know about shards so we need all the shards of the
+        // class to report on it
+        String className = TestShards.getClassName(t.getName());
+        Test merged = TestShards.merge(className, dao.getTestShards(runId, className));
+        changed.add(TestSummary.forTest(merged));
+      }
+    }
+    logger.fine("Retrieved " + changed.size() + " changes for run " + runId);
+    return new RunSummaryDelta(buildRunSummary(run, changed, counts), nextVersion);
+  }
+
+  /**
+   * Waits for something about a Run to change.  Pass the returned change
+   * version to the next call to pick up where this one left off.  Pass -1 to
+   * get the current change version without waiting.
+   *
+   * @param runId The unique id of the Run to wait for
+   * @param changeVersion The change version returned by the previous call
+   * @return The change version of the Run, which is the same as the given
+   * change version if nothing changed before we gave up waiting.
+   */
+  public long waitForRunChange(long runId, long changeVersion) {
+    try {
+      return runChangeNotifier.awaitChange(runId, changeVersion, MAX_WAIT_FOR_CHANGE);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return changeVersion;
+    }
+  }
+
+  /**
+   * Waits for a Run to complete.
+   *
+   * @param runId The unique id of the Run to wait for
+   * @param timeoutMillis How long to wait.  We never wait longer than the
+   * request deadline allows, so callers that want to wait longer than that
+   * need to call again.
+   * @return A RunCompletion with a RunSummary that has the status counts of
+   * the Run, or {@code null} if no Run could be found.
+   */
+  public RunCompletion waitForRunCompletion(long runId, long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + Math.min(timeoutMillis, MAX_WAIT_FOR_CHANGE);
+    long changeVersion = runChangeNotifier.getChangeVersion(runId);
+    while (true) {
+      RunSummary summary = getRunSummary(runId, false, false);
+      if (summary == null) {
+        return null;
+      }
+      // runIsComplete() scans the Tests, so we only ask once per change
+      if (isComplete(summary)) {
+        return new RunCompletion(summary, true);
+      }
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        return new RunCompletion(summary, false);
+      }
+      try {
+        changeVersion = runChangeNotifier.awaitChange(runId, changeVersion, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return new RunCompletion(summary, false);
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if the given RunSummary belongs to a Run that is
+   * complete.  The status counts are only a hint so we only believe them
+   * if the Tests agree.
+   */
+  private boolean isComplete(RunSummary summary) {
+    Run run = summary.getRun();
+    return run.getNumTestEntities() >= 0
+           && summary.getStatusCounts().getNumTestsFinished() >= run.getNumTestEntities()
+           && dao.runIsComplete(run.getId());
   }
 
-  private Map<String, Integer> scheduleTestExecution(long runId, TestRun testRun) {
-    logger.fine("Scheduling execution for run " + runId);
+  private Map<String, Integer> scheduleTestExecution(long runId, int cursor, List<TestId> chunk,
+                                                     EnqueuePipeline pipeline) {
+    logger.fine("Scheduling execution of chunk at " + cursor + " for run " + runId);
     Map<String, Integer> testIdsToTestCounts = new HashMap<String, Integer>();
-    Queue q = harnessConfig.getQueue(runId);
-    List<TestId> currentBatch = new ArrayList<TestId>();
-    for (TestId testId : testRun.getTestIds(runId)) {
-      if (testIdsToTestCounts.put(testId.getTestId(), testId.getNumSubtests()) != null) {
-        throw new RuntimeException("More than one test with id " + testId);
+    int maxTestsPerTask = Math.max(1, harnessConfig.getMaxTestsPerTask());
+    int targetSubtestsPerTask = harnessConfig.getTargetSubtestsPerTask();
+    List<TestId> pack = new ArrayList<TestId>();
+    int packPosition = cursor;
+    int packSubtests = 0;
+    int position = cursor;
+    for (TestId testId : chunk) {
+      int testPosition = position++;
+      // duplicates were dropped when the order was saved
+      testIdsToTestCounts.put(testId.getTestId(), testId.getNumSubtests());
+      if (!pack.isEmpty() && (pack.size() == maxTestsPerTask
+                              || packSubtests + testId.getNumSubtests() > targetSubtestsPerTask)) {
+        pipeline.add(buildTaskOptionsForTestPack(runId, packPosition, pack));
+        pack = new ArrayList<TestId>();
+        packSubtests = 0;
       }
-      currentBatch.add(testId);
-      // max size for batch add is 100
-      if (currentBatch.size() == 100) {
-        q.add(buildTaskOptionsForTestRun(runId, currentBatch));
-        currentBatch.clear();
+      if (pack.isEmpty()) {
+        packPosition = testPosition;
       }
+      pack.add(testId);
+      packSubtests += testId.getNumSubtests();
     }
-    if (!currentBatch.isEmpty()) {
-      q.add(buildTaskOptionsForTestRun(runId, currentBatch));
+    if (!pack.isEmpty()) {
+      pipeline.add(buildTaskOptionsForTestPack(runId, packPosition, pack));
     }
-    logger.fine("Scheduled execution of " + testIdsToTestCounts.size() + " tests for run " + runId);
+    logger.fine("Scheduling execution of " + testIdsToTestCounts.size() + " tests for run " + runId);
     return testIdsToTestCounts;
   }
 
-  private List<TaskOptions> buildTaskOptionsForTestRun(long runId, List<TestId> testIds) {
-    List<TaskOptions> opts = new ArrayList<TaskOptions>();
-    for (TestId testId : testIds) {
-      opts.add(TaskOptions.Builder.method(TaskOptions.Method.POST)
-        .url(harnessConfig.getBaseQueueActionURL() +
-             "runtest/" + runId + "/" + testId.getTestId() + "/" + testId.getNumSubtests()));
+  /**
+   * A pack of a single test gets the same task it always did.  Larger packs
+   * are sent as a payload because there's no telling how long the test ids
+   * are.  Either way the task is named after the position of the first test
+   * in the pack.
+   */
+  private TaskOptions buildTaskOptionsForTestPack(long runId, int position, List<TestId> pack) {
+    if (pack.size() == 1) {
+      return buildTaskOptionsForTestRun(runId, position, pack.get(0));
     }
+    TaskOptions opts = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url(harnessConfig.getBaseQueueActionURL() + "runtests/" + runId + "/" + position)
+        .taskName(runId + "-test-" + position);
+    opts.payload(TestIdCodec.encode(pack), "application/octet-stream");
     return opts;
   }
 
-  private TaskOptions buildTaskOptionsForTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
-    TaskOptions opts = TaskOptions.Builder.method(TaskOptions.Method.POST)
-      .url(harnessConfig.getBaseQueueActionURL() + "testIdData/" + runId);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try {
-      ObjectOutputStream oos = new ObjectOutputStream(baos);
-      oos.writeObject(testIdsToTestCounts);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-    opts.payload(baos.toByteArray(), "application/x-java-serialized-object");
-    return opts;
+  private TaskOptions buildTaskOptionsForTestRun(long runId, int position, TestId testId) {
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url(harnessConfig.getBaseQueueActionURL() +
+             "runtest/" + runId + "/" + testId.getTestId() + "/" + testId.getNumSubtests())
+        .taskName(runId + "-test-" + position);
   }
 
   private TaskOptions buildTaskOptionsForRunCompletionNotification(long runId) {
     String fanInKey = buildFanInKey(runId, System.currentTimeMillis());
-    // need to wait until the fan-in period has passed to ensure we don't
-    // perform the check too early
-    return TaskOptions.Builder.method(TaskOptions.Method.POST)
+    return TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
         .url(harnessConfig.getBaseQueueActionURL() + "completionNotification/" + runId)
         .taskName(fanInKey)
-        .countdownMillis(FAN_IN_PERIOD * 2);
+        .countdownMillis(COMPLETION_NOTIFICATION_DELAY);
 
   }
 
@@ -208,49 +584,325 @@ public class CloudCoverManager {
     return Long.toString(runId) + "-" + Long.toString(now / FAN_IN_PERIOD);
   }
 
+  private Queue getQueue(long runId) {
+    return harnessConfig.getQueue(runId);
+  }
+
   public Failure getFailure(long runId, String testId, String failureId) {
-    return dao.getFailure(runId, testId, failureId);
+    Failure failure = dao.getFailure(runId, testId, failureId);
+    if (failure == null) {
+      // the test may have been sharded, in which case the failure belongs to
+      // one of the shards
+      for (Test shard : dao.getTestShards(runId, testId)) {
+        failure = dao.getFailure(runId, shard.getName(), failureId);
+        if (failure != null) {
+          break;
+        }
+      }
+    }
+    return failure;
   }
 
-  public void runTest(long runId, TestId testId) {
+  /**
+   * Returns the failures of the given Run grouped by root cause, largest
+   * group first, so that a Run with hundreds of failures can be triaged
+   * without looking at each failure.
+   */
+  public List<FailureCluster> getFailureClusters(long runId) {
+    return dao.getFailureClusters(runId, MAX_EXAMPLES_PER_FAILURE_CLUSTER);
+  }
+
+  /**
+   * Runs a Test, or takes it over if the attempt that is running it let its
+   * lease expire.
+   *
+   * @param runId The unique id of the Run the test belongs to
+   * @param testId The id of the test to run
+   * @param leaseCheck 0 unless we're checking up on the lease of another
+   * attempt, in which case the number of lease checks so far
+   */
+  public void runTest(long runId, TestId testId, int leaseCheck) {
     logger.fine("Running test " + testId + " in run " + runId);
     Run run = dao.getRunById(runId, false);
+    Test test = claimTest(run, testId, -1, leaseCheck);
+    if (test != null) {
+      runAndUpdateTest(run, testId, test);
+    }
+  }
+
+  /**
+   * Picks up a Test that ran out of time where it left off.  Only the
+   * subtests that don't have a result yet are run, and their results are
+   * merged into the results we already have.  The failures we already have
+   * may be stubs (see {@link Failure#isStub()}).  Their ids are all the
+   * harness needs to skip them, and writing the Test leaves the failures
+   * they stand for as they are, so we don't load their bodies.
+   *
+   * @param runId The unique id of the Run the test belongs to
+   * @param testId The id of the test to continue
+   * @param continuation The number of continuations the Test had when this
+   * continuation was scheduled
+   */
+  public void continueTest(long runId, TestId testId, int continuation) {
+    logger.fine("Continuing test " + testId + " in run " + runId + " (" + continuation + ")");
+    Run run = dao.getRunById(runId, false);
+    Test test = claimTest(run, testId, continuation, 0);
+    if (test != null) {
+      runAndUpdateTest(run, testId, test);
+    }
+  }
+
+  private void runAndUpdateTest(Run run, TestId testId, Test test) {
+    boolean continueLater = false;
+    try {
+      continueLater = runClaimedTest(run, testId, test);
+    } finally {
+      if (continueLater) {
+        // the continuation claims the test as soon as it starts
+        test.setLeaseExpiry(null);
+        dao.updateTest(test);
+        dao.flush();
+        runChangeNotifier.runChanged(run.getId());
+        // the continuation reads the results we just wrote
+        scheduleContinuation(run.getId(), testId, test.getNumContinuations());
+      } else {
+        // We want to return as quickly as possible to avoid deadline errors
+        // so we'll schedule a new task to take care of any completion
+        // notifications that may be necessary.  The task is enqueued while
+        // the result is being written.  The check doesn't run until the
+        // countdown has passed, so it sees the result as long as the write
+        // lands before then.  If it doesn't we schedule another check.
+        Future<Void> update = dao.updateTestAsync(test);
+        long enqueued = System.currentTimeMillis();
+        Future<TaskHandle> notification = scheduleCompletionNotificationAsync(run.getId());
+        try {
+          awaitUpdate(update);
+          dao.flush();
+        } finally {
+          awaitCompletionNotification(run.getId(), notification);
+        }
+        runChangeNotifier.runChanged(run.getId());
+        if (System.currentTimeMillis() >= enqueued + COMPLETION_NOTIFICATION_DELAY) {
+          logger.info("Result of test " + testId + " in run " + run.getId()
+                      + " was written after the completion check was due, scheduling another");
+          scheduleCompletionNotification(run.getId());
+        }
+      }
+    }
+  }
+
+  private void scheduleContinuation(long runId, TestId testId, int continuation) {
+    logger.fine("Scheduling continuation " + continuation + " of test " + testId + " in run " + runId);
+    try {
+      getQueue(runId).add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url(harnessConfig.getBaseQueueActionURL() + "continuetest/" + runId + "/"
+               + testId.getTestId() + "/" + testId.getNumSubtests() + "/" + continuation)
+          .taskName(runId + "-continue-" + toTaskNameComponent(testId.getTestId()) + "-"
+                    + continuation));
+    } catch (TaskAlreadyExistsException taee) {
+      // a previous attempt already scheduled it
+    }
+  }
+
+  /**
+   * Task names are limited to letters, digits, underscores and hyphens, so
+   * we replace everything else and add the hash of the original to keep
+   * names that only differ in the replaced characters apart.
+   */
+  static String toTaskNameComponent(String str) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < str.length() && sb.length() < MAX_TASK_NAME_COMPONENT_LENGTH; i++) {
+      char c = str.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+          || c == '_' || c == '-') {
+        sb.append(c);
+      } else {
+        sb.append('_');
+      }
+    }
+    return sb.append('-').append(Integer.toHexString(str.hashCode())).toString();
+  }
+
+  /**
+   * Runs a pack of tests back to back.  Each Test is written as soon as it
+   * finishes, so running out of time later in the pack doesn't cost us the
+   * results we already have, and a single completion notification is
+   * scheduled for the whole pack.  If we run out of time before we get to the
+   * end of the pack the remaining tests are handed off to a new task.
+   *
+   * @param runId The unique id of the Run the tests belong to
+   * @param position The position of the first test of the pack in the Run
+   * @param testIds The ids of the tests to run
+   */
+  public void runTests(long runId, int position, List<TestId> testIds) {
+    logger.fine("Running " + testIds.size() + " tests at " + position + " in run " + runId);
+    Run run = dao.getRunById(runId, false);
+    long stopStartingTestsAt = System.currentTimeMillis() + PACKED_TASK_TIME_BUDGET;
+    TestId continued = null;
+    Test continuedTest = null;
+    boolean wroteTests = false;
+    int numStarted = 0;
+    try {
+      while (numStarted < testIds.size() && System.currentTimeMillis() < stopStartingTestsAt) {
+        TestId testId = testIds.get(numStarted++);
+        Test test = claimTest(run, testId, -1, 0);
+        if (test != null) {
+          boolean continueLater = false;
+          try {
+            continueLater = runClaimedTest(run, testId, test);
+          } finally {
+            // Same reasoning as runTest: this happens in the finally block so
+            // that the result makes it to the datastore even if we blow the
+            // deadline.
+            if (continueLater) {
+              continued = testId;
+              continuedTest = test;
+              test.setLeaseExpiry(null);
+            }
+            dao.updateTest(test);
+            wroteTests = true;
+            runChangeNotifier.runChanged(runId);
+          }
+          if (continueLater) {
+            // we're out of time, don't start anything else
+            break;
+          }
+        }
+      }
+    } finally {
+      if (wroteTests) {
+        // a write-behind DAO may still be holding on to some of them
+        dao.flush();
+      }
+      if (continued != null) {
+        // the continuation reads the results we just wrote
+        scheduleContinuation(runId, continued, continuedTest.getNumContinuations());
+      }
+      if (numStarted < testIds.size()) {
+        List<TestId> remaining = testIds.subList(numStarted, testIds.size());
+        logger.fine("Handing off " + remaining.size() + " tests in run " + runId);
+        try {
+          getQueue(runId).add(buildTaskOptionsForTestPack(runId, position + numStarted, remaining));
+        } catch (TaskAlreadyExistsException taee) {
+          // a previous attempt already handed them off
+        }
+      }
+      scheduleCompletionNotification(runId);
+    }
+  }
+
+  /**
+   * Claims the Test for the given test id, taking it over if the attempt
+   * that was running it let its lease expire.  Returns {@code null} if
+   * there is nothing for us to run.
+   *
+   * @param continuation The number of continuations the Test must have, or
+   * -1 if any number will do
+   * @param leaseCheck The number of lease checks that led to this claim
+   */
+  private Test claimTest(Run run, TestId testId, int continuation, int leaseCheck) {
     Test test;
     try {
-      test = dao.newTest(run, testId);
+      test = dao.claimTest(run, testId, continuation, TEST_LEASE);
     } catch (TestAlreadyExistsException taee) {
       // message must have been delivered more than once, which is fine.
       // this will happen when we encounter an exception while cleaning
       // up from a test run
       logger.log(Level.WARNING, "Received duplicate request to run test " + testId);
-      test = taee.getTest();
-      if (test.getStatus() == TestStatus.IN_PROGRESS) {
-        // this isn't accurate - it might have failed for some other reason
-        // we should really change "TOO_SLOW" TO "HARNESS ERROR" or something
-        test.setStatus(TestStatus.TOO_SLOW);
-        test.setEndTime(new Date());
-        dao.updateTest(test);
+      Test existing = taee.getTest();
+      Date leaseExpiry = existing.getLeaseExpiry();
+      if (existing.getStatus() == TestStatus.IN_PROGRESS && leaseExpiry != null) {
+        // Somebody else is running it.  If they're gone by the time their
+        // lease expires we'll take over.
+        scheduleLeaseCheck(run.getId(), testId, existing, leaseCheck + 1);
       }
-      return;
+      return null;
+    }
+    if (test == null) {
+      logger.warning("Received request to continue test " + testId + " in run " + run.getId()
+                     + " but the test doesn't exist");
+      return null;
+    }
+    // every segment starts out as attempt 1, each takeover adds one
+    int segmentAttempt = test.getAttempt() - test.getNumContinuations();
+    if (segmentAttempt > 1) {
+      logger.warning("Taking over test " + testId + " in run " + run.getId() + ", attempt "
+                     + segmentAttempt);
+    }
+    if (segmentAttempt > MAX_ATTEMPTS) {
+      // This isn't accurate - it might have failed for some other reason.
+      // We should really change "TOO_SLOW" TO "HARNESS ERROR" or something
+      test.setStatus(TestStatus.TOO_SLOW);
+      test.setEndTime(new Date());
+      test.setLeaseExpiry(null);
+      dao.updateTest(test);
+      dao.flush();
+      runChangeNotifier.runChanged(run.getId());
+      scheduleCompletionNotification(run.getId());
+      return null;
+    }
+    runChangeNotifier.runChanged(run.getId());
+    return test;
+  }
+
+  /**
+   * Schedules another attempt to run the given Test for right after the
+   * lease of the attempt that is running it expires.  The attempt only
+   * runs the Test if it is still in progress by then.  The task is named
+   * after the attempt and the check, so duplicates of the same attempt only
+   * schedule one check, but a check that finds the lease still held (the
+   * clocks of the queue and the instance don't quite agree) can schedule
+   * the next one.
+   */
+  private void scheduleLeaseCheck(long runId, TestId testId, Test test, int leaseCheck) {
+    long countdown = Math.max(0, test.getLeaseExpiry().getTime() - System.currentTimeMillis());
+    try {
+      getQueue(runId).add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url(harnessConfig.getBaseQueueActionURL() + "runtest/" + runId + "/"
+               + testId.getTestId() + "/" + testId.getNumSubtests() + "/" + leaseCheck)
+          .taskName(runId + "-lease-" + toTaskNameComponent(testId.getTestId()) + "-"
+                    + test.getAttempt() + "-" + leaseCheck)
+          .countdownMillis(countdown + FAN_IN_PERIOD));
+    } catch (TaskAlreadyExistsException taee) {
+      // another duplicate already scheduled it
     }
+  }
+
+  /**
+   * Runs a Test that we've claimed and records the outcome on the Test.
+   * Writing the Test is left to the caller.
+   *
+   * @return {@code true} if the Test ran out of time and the subtests that
+   * didn't run need to be continued, {@code false} otherwise.
+   */
+  private boolean runClaimedTest(Run run, TestId testId, Test test) {
     TestHarness harness = harnessConfig.getTestHarness();
     TestResult result = null;
     Throwable thrown = null;
+    boolean continueLater = false;
     try {
-      result = harness.runTest(harnessConfig, test);
-      logger.fine("Test " + testId + " in run " + runId + " completed with status " + result.getStatus());
+      long flushInterval = harnessConfig.getPartialResultFlushInterval();
+      if (harness instanceof IncrementalTestHarness && flushInterval > 0) {
+        result = ((IncrementalTestHarness) harness).runTest(
+            harnessConfig, test, new ThrottledSubtestWriter(dao, runChangeNotifier, test, flushInterval));
+      } else {
+        result = harness.runTest(harnessConfig, test);
+      }
+      logger.fine("Test " + testId + " in run " + run.getId() + " completed with status "
+                  + result.getStatus());
     } catch (RuntimeException t) {
       thrown = t;
     } finally {
       // We're doing this handling in the finally block because if we hit a
       // deadline exception in a catch block we'll get interrupted.  This way
       // we don't have to worry about a null result.
-      cleanupAfterRunTest(testId, runId, run, test, result, thrown);
+      continueLater = recordResult(testId, run.getId(), test, result, thrown);
     }
+    return continueLater;
   }
 
-  private void cleanupAfterRunTest(TestId testId, long runId, Run run, Test test, TestResult result,
-                                   Throwable thrown) {
+  private boolean recordResult(TestId testId, long runId, Test test, TestResult result,
+                               Throwable thrown) {
     if (result == null) {
       test.setStatus(TestStatus.FAILURE);
       if (thrown != null) {
@@ -271,44 +923,334 @@ public class CloudCoverManager {
       }
     }
     addResultToTest(test, result);
+    if (!result.getNotRunTestNames().isEmpty() && test.getNumContinuations() < MAX_CONTINUATIONS) {
+      logger.fine(result.getNotRunTestNames().size() + " subtests of test " + testId + " in run "
+                  + runId + " will be continued");
+      test.setNumContinuations(test.getNumContinuations() + 1);
+      test.setStatus(TestStatus.IN_PROGRESS);
+      return true;
+    }
     test.setEndTime(new Date());
-    dao.updateTest(test);
+    return false;
+  }
 
-    // We want to return as quickly as possible to avoid deadline errors
-    // so we'll schedule a new task to take care of any completion
-    // notifications that may be necessary
-    scheduleCompletionNotification(runId);
+  private static void awaitUpdate(Future<Void> update) {
+    try {
+      update.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
   }
 
   private void scheduleCompletionNotification(long runId) {
+    awaitCompletionNotification(runId, scheduleCompletionNotificationAsync(runId));
+  }
+
+  private Future<TaskHandle> scheduleCompletionNotificationAsync(long runId) {
     logger.fine("Scheduling completion notification for run " + runId);
-    Queue q = harnessConfig.getQueue(runId);
-    TaskOptions opts = buildTaskOptionsForRunCompletionNotification(runId);
+    return getQueue(runId).addAsync(buildTaskOptionsForRunCompletionNotification(runId));
+  }
+
+  private void awaitCompletionNotification(long runId, Future<TaskHandle> notification) {
     try {
-      q.add(opts);
+      notification.get();
       logger.fine("Scheduled completion notification for run " + runId);
-    } catch (TaskAlreadyExistsException taee) {
-      // that's ok, it just means we already have a check scheduled
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TaskAlreadyExistsException) {
+        // that's ok, it just means we already have a check scheduled
+        return;
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
     }
   }
 
   private void addResultToTest(Test test, TestResult result) {
-    test.setStatus(result.getStatus());
     test.getSuccesses().addAll(result.getSuccessfulTestNames());
+    // failures may have been added while the test was running
+    Set<String> failureIds = new HashSet<String>();
+    for (Failure f : test.getFailures()) {
+      failureIds.add(f.getId());
+    }
     for (FailureData data : result.getFailureData()) {
-      test.getFailures().add(new Failure(data.getShortName(), data.getFailureMsg(), data.getData()));
+      if (failureIds.add(data.getShortName())) {
+        test.getFailures().add(new Failure(data.getShortName(), data.getFailureMsg(), data.getData()));
+      }
+    }
+    if (result.getStatus() == TestStatus.SUCCESS && !test.getFailures().isEmpty()) {
+      // an earlier segment of a continued test failed
+      test.setStatus(TestStatus.FAILURE);
+    } else {
+      test.setStatus(result.getStatus());
     }
   }
 
+  /**
+   * Notifies the listener if the Run is complete.  We only pay for the full
+   * scan of the Tests in the Run once the completion counter says every Test
+   * has finished, unless the Run has outlived its safety checks.  After that
+   * nothing makes up for a counter update that got lost, so every check
+   * does the scan.
+   */
   public void doCompletionCheck(long runId, String serverURL) {
-    if (dao.runIsComplete(runId) && dao.createCompletionRecordIfNotAlreadyPresent(runId)) {
+    Run run = dao.getRunById(runId, false);
+    if (run == null || run.getNumTestEntities() < 0) {
+      // still planning, the last chunk will schedule another check
+      return;
+    }
+    int numFinished = dao.getRunStatusCounts(runId).getNumTestsFinished();
+    long safetyCheckWindow = MAX_COMPLETION_SAFETY_CHECKS * COMPLETION_SAFETY_CHECK_PERIOD;
+    boolean safetyChecksOver = run.getCreated() != null
+        && run.getCreated().getTime() + safetyCheckWindow < System.currentTimeMillis();
+    if (numFinished < run.getNumTestEntities() && !safetyChecksOver) {
+      logger.fine(numFinished + " of " + run.getNumTestEntities() + " tests in run " + runId
+                  + " have finished");
+      return;
+    }
+    notifyIfComplete(runId, serverURL);
+  }
+
+  /**
+   * Counter updates can get lost, so every so often we check for completion
+   * the expensive way until the Run is complete.
+   *
+   * @param runId The unique id of the Run to check
+   * @param serverURL The url of the server
+   * @param check The number of safety checks that preceded this one
+   */
+  public void doCompletionSafetyCheck(long runId, String serverURL, int check) {
+    if (notifyIfComplete(runId, serverURL)) {
+      return;
+    }
+    if (check + 1 < MAX_COMPLETION_SAFETY_CHECKS) {
+      scheduleCompletionSafetyCheck(runId, check + 1);
+    } else {
+      // see doCompletionCheck()
+      logger.warning("No more safety checks for run " + runId + ", completion checks will scan "
+                     + "its tests from now on");
+    }
+  }
+
+  private void scheduleCompletionSafetyCheck(long runId, int check) {
+    try {
+      getQueue(runId).add(TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+          .url(harnessConfig.getBaseQueueActionURL()
+               + "completionSafetyCheck/" + runId + "/" + check)
+          .taskName(runId + "-safety-" + check)
+          .countdownMillis(COMPLETION_SAFETY_CHECK_PERIOD));
+    } catch (TaskAlreadyExistsException taee) {
+      // a previous attempt already scheduled it
+    }
+  }
+
+  /**
+   * @return {@code true} if the Run is complete, whether or not we were the
+   * ones to notify the listener.
+   */
+  private boolean notifyIfComplete(long runId, String serverURL) {
+    if (!dao.runIsComplete(runId)) {
+      return false;
+    }
+    if (dao.createCompletionRecordIfNotAlreadyPresent(runId)) {
+      try {
+        recordTestDurations(runId);
+      } catch (RuntimeException e) {
+        // the next run just won't be as well ordered
+        logger.log(Level.WARNING, "Unable to record test durations for run " + runId, e);
+      }
+      try {
+        recordRunCompletion(runId);
+      } catch (RuntimeException e) {
+        // the run list will show the run as in progress
+        logger.log(Level.WARNING, "Unable to record completion of run " + runId, e);
+      }
+      try {
+        scheduleDailyPurge(runId);
+      } catch (RuntimeException e) {
+        // the next run to complete will schedule it
+        logger.log(Level.WARNING, "Unable to schedule purge after run " + runId, e);
+      }
       String runStatusURL = buildRunStatusURL(serverURL, runId);
       harnessConfig.getTestRunListener().onTestRunCompletion(runStatusURL, runId);
     } else {
-      // either the run is not yet complete or somebody else already created
-      // the completion record.  in either case just return without doing any
-      // notification
+      // somebody else already created the completion record so just return
+      // without doing any notification
+    }
+    return true;
+  }
+
+  /**
+   * Records the final status and counts of a completed Run in the run list.
+   * The counts come from the Tests themselves rather than the status
+   * aggregate because they're kept forever.
+   */
+  private void recordRunCompletion(long runId) {
+    RunStatusCounts counts = new RunStatusCounts();
+    for (TestSummary test : dao.getTestSummariesForRun(runId)) {
+      counts.add(RunStatusCounts.forStartedTest(test));
+      counts.add(RunStatusCounts.forFinishedTest(test));
     }
+    TestStatus status = TestStatus.SUCCESS;
+    if (counts.getNumTestsFailed() > 0) {
+      status = TestStatus.FAILURE;
+    } else if (counts.getNumTestsTooSlow() > 0) {
+      status = TestStatus.TOO_SLOW;
+    }
+    dao.recordRunCompletion(runId, status, counts);
+  }
+
+  /**
+   * Schedules a purge of the expired runs of the suite of the given Run,
+   * unless one has already been scheduled today.
+   */
+  private void scheduleDailyPurge(long runId) {
+    if (harnessConfig.getRunRetentionPeriod() <= 0) {
+      return;
+    }
+    RunPlan plan = dao.getRunPlan(runId);
+    // runs that were planned synchronously don't know their suite
+    String suiteId = plan == null || plan.getSuiteId() == null ? "" : plan.getSuiteId();
+    String taskName = "purge-" + toTaskNameComponent(suiteId) + "-"
+                      + System.currentTimeMillis() / ONE_DAY;
+    schedulePurge(suiteId, null, taskName);
+  }
+
+  private void schedulePurge(String suiteId, String cursor, String taskName) {
+    TaskOptions opts = TaskOptions.Builder.withMethod(TaskOptions.Method.POST)
+        .url(harnessConfig.getBaseQueueActionURL() + "purge/runs")
+        .param("suiteId", suiteId);
+    if (cursor != null) {
+      opts.param("cursor", cursor);
+    }
+    if (taskName != null) {
+      opts.taskName(taskName);
+    }
+    try {
+      // purges aren't tied to a run
+      getQueue(0).add(opts);
+    } catch (TaskAlreadyExistsException taee) {
+      // already scheduled
+    }
+  }
+
+  /**
+   * Deletes the runs of the given suite that are older than the retention
+   * period, except for the most recent ones (see
+   * {@link TestHarnessConfig#getNumRunsToKeepPerSuite()}) and the ones that
+   * haven't finished.  Walks the run
+   * list from the given cursor, oldest runs last, and hands off to a new
+   * task if it runs out of time.
+   *
+   * @param suiteId The suite whose runs to purge, the empty string for runs
+   * that don't belong to a suite
+   * @param cursor Where to pick up in the run list, or {@code null} to start
+   * after the runs we always keep
+   */
+  public void purgeExpiredRuns(String suiteId, String cursor) {
+    long retentionPeriod = harnessConfig.getRunRetentionPeriod();
+    if (retentionPeriod <= 0) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    Date expiry = new Date(now - retentionPeriod);
+    long stopAt = now + PURGE_TIME_BUDGET;
+    int numToKeep = harnessConfig.getNumRunsToKeepPerSuite();
+    if (cursor == null && numToKeep > 0) {
+      cursor = dao.getRuns(suiteId, null, numToKeep).getCursor();
+      if (cursor == null) {
+        // we're keeping all of them
+        return;
+      }
+    }
+    int numPurged = 0;
+    while (true) {
+      RunList page = dao.getRuns(suiteId, cursor, MAX_RUNS_PER_PAGE);
+      for (RunInfo run : page.getRuns()) {
+        // Most recent first, so the runs that haven't expired are the ones
+        // at the start of the list and everything after them has.  We still
+        // read every page because all of the expired runs go.
+        if (!run.getCreated().before(expiry)) {
+          continue;
+        }
+        if (!dao.hasCompletionRecord(run.getRunId())) {
+          // still running, or at least still being checked for completion,
+          // so it goes once it has finished
+          continue;
+        }
+        if (!dao.deleteRun(run, stopAt)) {
+          logger.info("Purged " + numPurged + " runs of suite " + suiteId + ", handing off");
+          // the runs we've already deleted are gone from the page
+          schedulePurge(suiteId, cursor, null);
+          return;
+        }
+        // anybody still looking at the run finds out it's gone
+        runSummaryCache.evict(run.getRunId());
+        runChangeNotifier.runChanged(run.getRunId());
+        numPurged++;
+      }
+      if (page.getCursor() == null) {
+        break;
+      }
+      cursor = page.getCursor();
+    }
+    logger.info("Purged " + numPurged + " runs of suite " + suiteId);
+  }
+
+  /**
+   * Returns a page of the run list, most recent Run first.
+   *
+   * @param suiteId The suite whose Runs to list, or {@code null} to list the
+   * Runs of all suites
+   * @param cursor Where the page starts, as returned with the previous page,
+   * or {@code null} for the first page
+   * @param limit The maximum number of Runs to return, no more than 100
+   */
+  public RunList getRuns(String suiteId, String cursor, int limit) {
+    return dao.getRuns(suiteId, cursor, Math.max(1, Math.min(limit, MAX_RUNS_PER_PAGE)));
+  }
+
+  /**
+   * Blends the durations of the test classes of a completed Run into the
+   * most recent estimates for its suite.  Each new measurement counts as
+   * much as all the previous ones combined, so the estimates follow recent
+   * runs.  Shards of the same class are added up.
+   */
+  private void recordTestDurations(long runId) {
+    RunPlan plan = dao.getRunPlan(runId);
+    if (plan == null || plan.getSuiteId() == null) {
+      // runs that were planned synchronously don't know their suite
+      return;
+    }
+    Map<String, Long> measured = new HashMap<String, Long>();
+    for (TestSummary t : dao.getTestSummariesForRun(runId)) {
+      if (t.getDurationInMs() < 0) {
+        continue;
+      }
+      String className = TestShards.getClassName(t.getName());
+      long duration = t.getDurationInMs();
+      Long soFar = measured.get(className);
+      measured.put(className, soFar == null ? duration : soFar + duration);
+    }
+    Map<String, Long> estimates = dao.getTestDurations(
+        dao.getLatestDurationsRunId(plan.getSuiteId()));
+    for (Map.Entry<String, Long> entry : measured.entrySet()) {
+      Long previous = estimates.get(entry.getKey());
+      estimates.put(entry.getKey(),
+                    previous == null ? entry.getValue() : (previous + entry.getValue()) / 2);
+    }
+    dao.recordTestDurations(plan.getSuiteId(), runId, estimates);
+    logger.fine("Recorded durations of " + measured.size() + " classes for run " + runId);
   }
 
   static String buildRunStatusURL(String serverURL, long runId) {
@@ -319,7 +1261,14 @@ public class CloudCoverManager {
    * Returns {@code null} if the test has not yet been started.
    */
   public Test getTestById(long runId, String testId) {
-    return dao.getTestById(runId, testId);
+    Test test = dao.getTestById(runId, testId);
+    if (test == null) {
+      List<Test> shards = dao.getTestShards(runId, testId);
+      if (!shards.isEmpty()) {
+        test = TestShards.merge(testId, shards);
+      }
+    }
+    return test;
   }
 
   public List<String> getAvailableSuiteIds() {
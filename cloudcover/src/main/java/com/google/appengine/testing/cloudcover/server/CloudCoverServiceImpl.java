@@ -18,8 +18,12 @@ package com.google.appengine.testing.cloudcover.server;
 
 import com.google.appengine.testing.cloudcover.client.CloudCoverService;
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.NewRunResult;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
 import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+import com.google.appengine.testing.cloudcover.client.model.RunSummaryDelta;
 import com.google.appengine.testing.cloudcover.client.model.Test;
 import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
 import com.google.appengine.testing.cloudcover.spi.TestId;
@@ -27,6 +31,7 @@ import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -43,6 +48,9 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
 
   private static final String CONFIG_CLASS_PROPERTY = "cloudcover.config.class";
   private static final String DAO_CLASS_PROPERTY = "cloudcover.dao.class";
+  private static final String NOTIFIER_CLASS_PROPERTY = "cloudcover.notifier.class";
+  private static final String WRITE_BEHIND_WINDOW_PROPERTY = "cloudcover.writebehind.window";
+  private static final String JAVA_SERIALIZED_CONTENT_TYPE = "application/x-java-serialized-object";
 
   private final Logger logger = Logger.getLogger(getClass().getName());
 
@@ -76,12 +84,35 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
       dao = new DatastoreTestHarnessDao(harnessConfig);
     } else {
       try {
-        dao = (TestHarnessDao) Class.forName(daoClass).newInstance();
+        Class<?> cls = Class.forName(daoClass);
+        try {
+          // DAOs that need the config take it as their only constructor arg
+          dao = (TestHarnessDao) cls.getConstructor(TestHarnessConfig.class)
+              .newInstance(harnessConfig);
+        } catch (NoSuchMethodException nsme) {
+          dao = (TestHarnessDao) cls.newInstance();
+        }
       } catch (Exception e) {
         throw new ServletException(e);
       }
     }
-    return new CloudCoverManager(harnessConfig, dao);
+    String writeBehindWindow = servletConfig.getInitParameter(WRITE_BEHIND_WINDOW_PROPERTY);
+    if (writeBehindWindow != null && Long.parseLong(writeBehindWindow) > 0) {
+      // batch the results of tests that finish at about the same time
+      dao = new WriteBehindTestHarnessDao(dao, Long.parseLong(writeBehindWindow));
+    }
+    String notifierClass = servletConfig.getInitParameter(NOTIFIER_CLASS_PROPERTY);
+    RunChangeNotifier notifier;
+    if (notifierClass == null) {
+      notifier = new MemcacheRunChangeNotifier();
+    } else {
+      try {
+        notifier = (RunChangeNotifier) Class.forName(notifierClass).newInstance();
+      } catch (Exception e) {
+        throw new ServletException(e);
+      }
+    }
+    return new CloudCoverManager(harnessConfig, dao, notifier);
   }
 
   public NewRunResult createNewRun(String suiteId) {
@@ -104,6 +135,36 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
     }
   }
 
+  public RunSummary getRunSummary(long runId, boolean loadTestIdData, boolean loadTests) {
+    long start = System.currentTimeMillis();
+    try {
+      return cloudCoverManager.getRunSummary(runId, loadTestIdData, loadTests);
+    } finally {
+      long duration = System.currentTimeMillis() - start;
+      logger.fine("Fetched status for run " + runId + " in " + duration + "ms.");
+    }
+  }
+
+  public RunSummaryDelta getRunSummaryDelta(long runId, long sinceVersion) {
+    long start = System.currentTimeMillis();
+    try {
+      return cloudCoverManager.getRunSummaryDelta(runId, sinceVersion);
+    } finally {
+      long duration = System.currentTimeMillis() - start;
+      logger.fine("Fetched changes for run " + runId + " in " + duration + "ms.");
+    }
+  }
+
+  public long waitForRunChange(long runId, long changeVersion) {
+    long start = System.currentTimeMillis();
+    try {
+      return cloudCoverManager.waitForRunChange(runId, changeVersion);
+    } finally {
+      long duration = System.currentTimeMillis() - start;
+      logger.fine("Waited for run " + runId + " to change for " + duration + "ms.");
+    }
+  }
+
   public Failure getFailure(long runId, String testId, String failureId) {
     long start = System.currentTimeMillis();
     try {
@@ -114,6 +175,16 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
     }
   }
 
+  public List<FailureCluster> getFailureClusters(long runId) {
+    long start = System.currentTimeMillis();
+    try {
+      return cloudCoverManager.getFailureClusters(runId);
+    } finally {
+      long duration = System.currentTimeMillis() - start;
+      logger.fine("Fetched failure clusters for run " + runId + " in " + duration + "ms.");
+    }
+  }
+
   public Test getTestById(long runId, String testId) {
     long start = System.currentTimeMillis();
     try {
@@ -124,6 +195,16 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
     }
   }
 
+  public RunList getRuns(String suiteId, String cursor, int limit) {
+    long start = System.currentTimeMillis();
+    try {
+      return cloudCoverManager.getRuns(suiteId, cursor, limit);
+    } finally {
+      long duration = System.currentTimeMillis() - start;
+      logger.fine("Fetched runs of suite " + suiteId + " in " + duration + "ms.");
+    }
+  }
+
   public List<String> getAvailableSuiteIds() {
     long start = System.currentTimeMillis();
     try {
@@ -141,6 +222,10 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
         req.getRequestURI().startsWith(
             cloudCoverManager.getHarnessConfig().getBaseQueueActionURL())) {
       handleQueueAction(req, resp);
+    } else if (req.getMethod().toUpperCase().equals("GET") &&
+        req.getRequestURI().startsWith(
+            cloudCoverManager.getHarnessConfig().getBaseWatchURL())) {
+      handleWatch(req, resp);
     } else {
       super.service(req, resp);
     }
@@ -160,21 +245,116 @@ public class CloudCoverServiceImpl extends RemoteServiceServlet implements Cloud
       long runId = Long.parseLong(components[3]);
       String testId = components[4];
       int numTests = Integer.valueOf(components[5]);
-      cloudCoverManager.runTest(runId, new TestId(testId, numTests));
+      // lease checks say how many checks came before them
+      int leaseCheck = components.length < 7 ? 0 : Integer.parseInt(components[6]);
+      cloudCoverManager.runTest(runId, new TestId(testId, numTests), leaseCheck);
+    } else if (components[2].equals("continuetest")) {
+      if (components.length < 7) {
+        throw new ServletException("test to continue not available");
+      }
+      long runId = Long.parseLong(components[3]);
+      String testId = components[4];
+      int numTests = Integer.valueOf(components[5]);
+      int continuation = Integer.valueOf(components[6]);
+      cloudCoverManager.continueTest(runId, new TestId(testId, numTests), continuation);
+    } else if (components[2].equals("runtests")) {
+      if (components.length < 5) {
+        throw new ServletException("position of tests to run not available");
+      }
+      long runId = Long.parseLong(components[3]);
+      int position = Integer.parseInt(components[4]);
+      cloudCoverManager.runTests(runId, position, extractTestIds(req));
     } else if (components[2].equals("completionNotification")) {
       long runId = Long.parseLong(components[3]);
       cloudCoverManager.doCompletionCheck(
           runId, extractServerURL(req.getRequestURL().toString(), req.getRequestURI()));
+    } else if (components[2].equals("completionSafetyCheck")) {
+      if (components.length < 5) {
+        throw new ServletException("safety check number not available");
+      }
+      long runId = Long.parseLong(components[3]);
+      int check = Integer.parseInt(components[4]);
+      cloudCoverManager.doCompletionSafetyCheck(
+          runId, extractServerURL(req.getRequestURL().toString(), req.getRequestURI()), check);
+    } else if (components[2].equals("plan")) {
+      long runId = Long.parseLong(components[3]);
+      cloudCoverManager.planRun(runId);
     } else if (components[2].equals("testIdData")) {
       long runId = Long.parseLong(components[3]);
       cloudCoverManager.newTestIdData(runId, extractTestIdData(req));
+    } else if (components[2].equals("purge")) {
+      // the suite id may be empty so it isn't part of the url
+      cloudCoverManager.purgeExpiredRuns(req.getParameter("suiteId"), req.getParameter("cursor"));
+    }
+  }
+
+  /**
+   * Handles requests that hang until a run changes or completes.  These are
+   * meant for scripts, the ui uses {@link #waitForRunChange(long, long)}.
+   * <ul>
+   * <li>{@code change/<runId>/<changeVersion>} responds with the new change
+   * version of the run, or the same change version if nothing changed.</li>
+   * <li>{@code completion/<runId>[?timeout=<millis>]} responds with
+   * {@code COMPLETE} or {@code RUNNING} followed by the test counts of the
+   * run.</li>
+   * </ul>
+   */
+  private void handleWatch(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    resp.setContentType("text/plain");
+    String[] components = req.getRequestURI().substring(1).split("/");
+    if (components.length < 4) {
+      throw new ServletException("invalid url");
+    }
+    long runId = Long.parseLong(components[3]);
+    if (components[2].equals("change")) {
+      long changeVersion = components.length < 5 ? -1 : Long.parseLong(components[4]);
+      resp.getWriter().println(waitForRunChange(runId, changeVersion));
+    } else if (components[2].equals("completion")) {
+      String timeout = req.getParameter("timeout");
+      RunCompletion completion = cloudCoverManager.waitForRunCompletion(
+          runId, timeout == null ? Long.MAX_VALUE : Long.parseLong(timeout));
+      if (completion == null) {
+        resp.sendError(HttpServletResponse.SC_NOT_FOUND, "run " + runId + " not found");
+        return;
+      }
+      RunSummary summary = completion.getSummary();
+      RunStatusCounts counts = summary.getStatusCounts();
+      PrintWriter writer = resp.getWriter();
+      writer.println(completion.isComplete() ? "COMPLETE" : "RUNNING");
+      writer.println("tests=" + summary.getRun().getNumTestEntities());
+      writer.println("passed=" + counts.getNumTestsPassed());
+      writer.println("failed=" + counts.getNumTestsFailed());
+      writer.println("tooSlow=" + counts.getNumTestsTooSlow());
+      writer.println("inProgress=" + counts.getNumTestsInProgress());
+    } else {
+      throw new ServletException("invalid url");
     }
   }
 
   private Map<String, Integer> extractTestIdData(HttpServletRequest req) throws IOException {
+    if (isJavaSerialized(req)) {
+      return (Map<String, Integer>) readJavaSerialized(req);
+    }
+    return TestIdCodec.decodeMap(req.getInputStream());
+  }
+
+  private List<TestId> extractTestIds(HttpServletRequest req) throws IOException {
+    if (isJavaSerialized(req)) {
+      return (List<TestId>) readJavaSerialized(req);
+    }
+    return TestIdCodec.decodeList(req.getInputStream());
+  }
+
+  // tasks enqueued before we had a codec may still be on the queue
+  private static boolean isJavaSerialized(HttpServletRequest req) {
+    return JAVA_SERIALIZED_CONTENT_TYPE.equals(req.getContentType());
+  }
+
+  private static Object readJavaSerialized(HttpServletRequest req) throws IOException {
     ObjectInputStream ois = new ObjectInputStream(req.getInputStream());
     try {
-      return (Map<String, Integer>) ois.readObject();
+      return ois.readObject();
     } catch (ClassNotFoundException e) {
       throw new IOException(e);
     }
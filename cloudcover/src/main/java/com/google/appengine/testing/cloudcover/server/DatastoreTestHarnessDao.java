@@ -15,6 +15,9 @@
  */
 package com.google.appengine.testing.cloudcover.server;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
@@ -24,49 +27,264 @@ import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.datastore.Transaction;
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
 import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
 import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
 import com.google.appengine.testing.cloudcover.spi.TestHarness;
 import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
 import com.google.appengine.testing.cloudcover.spi.TestId;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
 
 /**
  * @author Max Ross <max.ross@gmail.com>
  */
 public class DatastoreTestHarnessDao implements TestHarnessDao {
 
+  // entities are limited to 1MB, leave room for the key and the overhead
+  private static final int MAX_TEST_ID_DATA_SHARD_BYTES = 900 * 1024;
+
+  // same reasoning, estimated from the class names and the per-entry overhead
+  private static final int MAX_TEST_DURATIONS_SHARD_BYTES = 900 * 1024;
+
+  // bytes a duration and the list entries take on top of the class name
+  private static final int TEST_DURATION_OVERHEAD_BYTES = 20;
+
+  private static final int NUM_RUN_STATUS_AGGREGATE_SHARDS = 20;
+
+  private static final int MAX_AGGREGATE_ATTEMPTS = 3;
+
+  // a broken fixture fails lots of tests at once, all with one fingerprint
+  private static final int NUM_FAILURE_CLUSTER_SHARDS = 10;
+
+  // examples kept by each shard of a failure cluster
+  private static final int MAX_FAILURE_CLUSTER_EXAMPLES = 5;
+
+  private static final int MAX_RECENT_FAILURE_BODIES = 1000;
+
+  // the most entities a single batch put can write
+  private static final int MAX_ENTITIES_PER_PUT = 500;
+
+  // a chunk of planned test ids is well under 1MB, so this keeps a batch
+  // put of them under the limit on the size of a call
+  private static final int MAX_PLANNED_CHUNKS_PER_PUT = 5;
+
+  // number of txns we allow to be in flight while writing a batch of tests
+  private static final int MAX_TEST_TXNS_IN_FLIGHT = 50;
+
+  // number of batch deletes we allow to be in flight while deleting a run
+  private static final int MAX_DELETES_IN_FLIGHT = 10;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final Random random = new Random();
+
   private final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
 
+  private final AsyncDatastoreService asyncDs = DatastoreServiceFactory.getAsyncDatastoreService();
+
   private final TestHarnessConfig config;
 
+  // keys of failure bodies this instance wrote recently, so the same body
+  // doesn't get written over and over while a broken fixture fails tests
+  private final Map<Key, Boolean> recentFailureBodies = Collections.synchronizedMap(
+      new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+          return size() > MAX_RECENT_FAILURE_BODIES;
+        }
+      });
+
   public DatastoreTestHarnessDao(TestHarnessConfig config) {
     this.config = config;
   }
 
-  public Run newRun() {
-    Entity runEntity = new Entity(getRunEntityKind());
+  public Run newRun(String suiteId) {
+    // the id comes first so the Run and its index entry go in one batch put
+    Key key = ds.allocateIds(getRunEntityKind(), 1).getStart();
+    Entity runEntity = new Entity(key);
     TestHarness harness = config.getTestHarness();
     runEntity.setUnindexedProperty("testRunnerConfigClass", harness.getClass().getName());
     Date created = new Date();
     runEntity.setUnindexedProperty("created", created);
+    runEntity.setUnindexedProperty("suiteId", suiteId);
     // -1 is an indication that we don't know the number of tests or test entities yet
     runEntity.setUnindexedProperty("numTests", -1);
     runEntity.setUnindexedProperty("numTestEntities", -1);
-    Key key = ds.put(runEntity);
+    runEntity.setUnindexedProperty("planCursor", 0);
+    runEntity.setUnindexedProperty("numTestsPlanned", 0);
+    runEntity.setUnindexedProperty("numTestEntitiesPlanned", 0);
+    runEntity.setUnindexedProperty("planFinished", false);
+    runEntity.setUnindexedProperty("durationsRunId", getLatestDurationsRunId(suiteId));
+    runEntity.setUnindexedProperty("hasTestStatusEntities", true);
+    ds.put(Arrays.asList(runEntity, runInfoToEntity(new RunInfo(
+        key.getId(), suiteId, created, TestStatus.IN_PROGRESS, new RunStatusCounts()))));
     return new Run(key.getId(), harness.getClass().getName(), created, null);
   }
 
+  public void recordRunCompletion(long runId, TestStatus status, RunStatusCounts counts) {
+    Entity runEntity;
+    try {
+      runEntity = ds.get(buildRunKey(runId));
+    } catch (EntityNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    ds.put(runInfoToEntity(new RunInfo(runId, (String) runEntity.getProperty("suiteId"),
+                                       (Date) runEntity.getProperty("created"), status, counts)));
+  }
+
+  public RunList getRuns(String suiteId, String cursor, int limit) {
+    Query query = new Query(getRunIndexEntityKind());
+    if (suiteId == null) {
+      // single property sorts only need built-in indexes
+      query.addSort("created", Query.SortDirection.DESCENDING);
+    } else {
+      // The key of an index entry starts with the suite id followed by the
+      // inverted creation time, so the key range of a suite lists its
+      // runs most recent first.  Same bounds trick as for the Tests of a Run.
+      String prefix = buildRunIndexKeyPrefix(suiteId);
+      query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN,
+                      KeyFactory.createKey(getRunIndexEntityKind(), prefix));
+      query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN,
+                      KeyFactory.createKey(getRunIndexEntityKind(), incrementLastChar(prefix)));
+    }
+    FetchOptions fetchOptions = FetchOptions.Builder.withLimit(limit);
+    if (cursor != null) {
+      fetchOptions.startCursor(Cursor.fromWebSafeString(cursor));
+    }
+    QueryResultList<Entity> entities = ds.prepare(query).asQueryResultList(fetchOptions);
+    List<RunInfo> runs = new ArrayList<RunInfo>();
+    for (Entity e : entities) {
+      runs.add(entityToRunInfo(e));
+    }
+    String nextCursor = null;
+    if (entities.size() == limit && entities.getCursor() != null) {
+      // there may be more
+      nextCursor = entities.getCursor().toWebSafeString();
+    }
+    return new RunList(runs, nextCursor);
+  }
+
+  public boolean deleteRun(RunInfo run, long stopAt) {
+    long runId = run.getRunId();
+    Key runKey = buildRunKey(runId);
+    // the durations of the most recent run of the suite stay around for the
+    // next run to use
+    boolean keepDurations =
+        run.getSuiteId() != null && getLatestDurationsRunId(run.getSuiteId()) == runId;
+    DeletePipeline pipeline = new DeletePipeline(asyncDs, MAX_DELETES_IN_FLIGHT);
+    // Tests along with their status entities and failures, failure bodies,
+    // failure clusters and status aggregate shards all live in the "Run N"
+    // key range of their kind.  Then the test id data, planned test ids and durations,
+    // which are children of the Run.
+    List<Query> queries = Arrays.asList(
+        createRunKeyRangeQuery(getTestEntityKind(), runId),
+        createRunKeyRangeQuery(getFailureBodyEntityKind(), runId),
+        createRunKeyRangeQuery(getFailureClusterEntityKind(), runId),
+        createRunKeyRangeQuery(getCompletionCounterEntityKind(), runId),
+        new Query(runKey).setKeysOnly());
+    for (Query query : queries) {
+      for (Entity e : ds.prepare(query).asIterable(FetchOptions.Builder.withChunkSize(500))) {
+        if (System.currentTimeMillis() > stopAt) {
+          // whatever we've sent gets deleted, the rest is left for next time
+          pipeline.flush();
+          return false;
+        }
+        boolean durations = e.getKey().getKind().equals(getTestDurationsKind());
+        if (!(keepDurations && durations) && !e.getKey().equals(runKey)) {
+          pipeline.add(e.getKey());
+        }
+      }
+    }
+    pipeline.add(KeyFactory.createKey(getCompletionNotificationEntityKind(), Long.toString(runId)));
+    int numDeleted = pipeline.flush();
+    // The Run and its index entry go last so that a purge that doesn't get
+    // this far finds the Run again.
+    ds.delete(runKey, buildRunIndexKey(run.getSuiteId(), run.getCreated(), runId));
+    logger.info("Deleted run " + runId + " and " + numDeleted + " entities that belong to it");
+    return true;
+  }
+
+  /**
+   * Returns a kindless keys-only query for the "Run N" key range of the given
+   * kind, including the descendants of the entities in the range.
+   */
+  private Query createRunKeyRangeQuery(String kind, long runId) {
+    Query query = new Query();
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN,
+                    KeyFactory.createKey(kind, "Run " + runId + ":"));
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN,
+                    KeyFactory.createKey(kind, "Run " + runId + ";"));
+    return query.setKeysOnly();
+  }
+
+  private Key buildRunIndexKey(String suiteId, Date created, long runId) {
+    long invertedCreated = Long.MAX_VALUE - created.getTime();
+    // zero-padded so the string order of the keys is the numeric order
+    return KeyFactory.createKey(
+        getRunIndexEntityKind(),
+        buildRunIndexKeyPrefix(suiteId) + String.format("%019d", invertedCreated) + ":" + runId);
+  }
+
+  /**
+   * The suite id is prefixed with its length, otherwise the key range of
+   * suite "a" would include the runs of suite "a:b".
+   */
+  private static String buildRunIndexKeyPrefix(String suiteId) {
+    if (suiteId == null) {
+      suiteId = "";
+    }
+    return suiteId.length() + ":" + suiteId + ":";
+  }
+
+  private Entity runInfoToEntity(RunInfo info) {
+    Key key = buildRunIndexKey(info.getSuiteId(), info.getCreated(), info.getRunId());
+    Entity e = runStatusCountsToEntity(key, info.getStatusCounts());
+    e.setUnindexedProperty("runId", info.getRunId());
+    e.setUnindexedProperty("suiteId", info.getSuiteId());
+    // the only indexed property, see getRuns()
+    e.setProperty("created", info.getCreated());
+    e.setUnindexedProperty("status", info.getStatus().name());
+    return e;
+  }
+
+  private static RunInfo entityToRunInfo(Entity e) {
+    return new RunInfo((Long) e.getProperty("runId"), (String) e.getProperty("suiteId"),
+                       (Date) e.getProperty("created"),
+                       TestStatus.valueOf((String) e.getProperty("status")),
+                       entityToRunStatusCounts(e));
+  }
+
   public void updateRun(Run run) {
     try {
       Entity runEntity = ds.get(KeyFactory.createKey(getRunEntityKind(), run.getId()));
@@ -79,37 +297,171 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     }
   }
 
-  private Key buildTestIdDataKey(long runId) {
-    Key runKey = buildRunKey(runId);
-    return KeyFactory.createKey(runKey, getTestIdDataKind(), 1);
+  public RunPlan getRunPlan(long runId) {
+    try {
+      return entityToRunPlan(ds.get(buildRunKey(runId)));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
   }
 
-  public Run getRunById(long runId, boolean loadTestIdData) {
-    Map<String, Integer> testIdsToTestCounts = null;
-    if (loadTestIdData) {
-      testIdsToTestCounts = getTestIdData(runId);
+  public boolean checkpointRunPlan(RunPlan current, RunPlan next,
+                                   Map<String, Integer> testIdsToTestCounts) {
+    Transaction txn = ds.beginTransaction();
+    try {
+      Entity runEntity = ds.get(txn, buildRunKey(current.getRunId()));
+      if (entityToRunPlan(runEntity).getCursor() != current.getCursor()) {
+        return false;
+      }
+      List<Entity> toPut = new ArrayList<Entity>();
+      toPut.add(runEntity);
+      // the manifest shards are children of the Run so they're written in
+      // the same txn as the checkpoint
+      toPut.addAll(buildTestIdDataShards(current.getRunId(), testIdsToTestCounts));
+      runEntity.setUnindexedProperty("planCursor", next.getCursor());
+      runEntity.setUnindexedProperty("numTestsPlanned", next.getNumTests());
+      runEntity.setUnindexedProperty("numTestEntitiesPlanned", next.getNumTestEntities());
+      runEntity.setUnindexedProperty("planFinished", next.isFinished());
+      if (next.isFinished()) {
+        // now that we know how many tests there are we can publish the totals
+        runEntity.setUnindexedProperty("numTests", next.getNumTests());
+        runEntity.setUnindexedProperty("numTestEntities", next.getNumTestEntities());
+      }
+      ds.put(txn, toPut);
+      txn.commit();
+      return true;
+    } catch (EntityNotFoundException e) {
+      throw new RuntimeException(e);
+    } catch (ConcurrentModificationException cme) {
+      // Somebody else checkpointed during our txn.
+      return false;
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  public void savePlannedTestIds(long runId, List<List<TestId>> chunks) {
+    // The chunks are children of the Run so they're deleted along with it.
+    // Planning only moves past the first chunk once it has found it, so the
+    // first chunk goes last: once it's there the others are too.  A save
+    // that dies partway leaves chunks that nobody reads until the retry has
+    // written them all again, so they don't need a txn.
+    List<Entity> batch = new ArrayList<Entity>();
+    for (int i = chunks.size() - 1; i >= 0; i--) {
+      Entity chunk = new Entity(buildPlannedTestIdsKey(runId, i));
+      chunk.setUnindexedProperty("testIds", new Blob(TestIdCodec.encode(chunks.get(i))));
+      batch.add(chunk);
+      if (batch.size() == MAX_PLANNED_CHUNKS_PER_PUT) {
+        ds.put(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      ds.put(batch);
+    }
+  }
+
+  public List<TestId> getPlannedTestIds(long runId, int chunk) {
+    try {
+      Blob testIds = (Blob) ds.get(buildPlannedTestIdsKey(runId, chunk)).getProperty("testIds");
+      return TestIdCodec.decodeList(testIds.getBytes());
+    } catch (EntityNotFoundException e) {
+      return null;
     }
+  }
+
+  private Key buildPlannedTestIdsKey(long runId, int chunk) {
+    // ids start at 1
+    return KeyFactory.createKey(buildRunKey(runId), getPlannedTestIdsKind(), chunk + 1);
+  }
+
+  private static RunPlan entityToRunPlan(Entity e) {
+    // Runs created before planning was introduced were planned synchronously
+    if (!e.hasProperty("planCursor")) {
+      int numTests = ((Long) e.getProperty("numTests")).intValue();
+      int numTestEntities = ((Long) e.getProperty("numTestEntities")).intValue();
+      return new RunPlan(e.getKey().getId(), null, 0, numTestEntities, numTests, numTestEntities,
+                         true);
+    }
+    Long durationsRunId = (Long) e.getProperty("durationsRunId");
+    return new RunPlan(e.getKey().getId(),
+                       (String) e.getProperty("suiteId"),
+                       durationsRunId == null ? 0 : durationsRunId,
+                       ((Long) e.getProperty("planCursor")).intValue(),
+                       ((Long) e.getProperty("numTestsPlanned")).intValue(),
+                       ((Long) e.getProperty("numTestEntitiesPlanned")).intValue(),
+                       (Boolean) e.getProperty("planFinished"));
+  }
+
+  /**
+   * A shard is named after the first test id in it.  The test ids of a Run
+   * are unique and every chunk is split the same way every time, so writing
+   * the test id data of a chunk again overwrites the shards it wrote the
+   * first time instead of adding more.
+   */
+  private Key buildTestIdDataShardKey(long runId, String firstTestId) {
+    return KeyFactory.createKey(buildRunKey(runId), getTestIdDataKind(), firstTestId);
+  }
+
+  public Run getRunById(long runId, boolean loadTestIdData) {
+    Entity runEntity;
     try {
-      return entityToRun(ds.get(buildRunKey(runId)), testIdsToTestCounts);
+      runEntity = ds.get(buildRunKey(runId));
     } catch (EntityNotFoundException e) {
       return null;
     }
+    Map<String, Integer> testIdsToTestCounts = null;
+    if (loadTestIdData) {
+      testIdsToTestCounts = getTestIdData(runEntity);
+    }
+    return entityToRun(runEntity, testIdsToTestCounts);
   }
 
-  public Test newTest(Run run, TestId testId) throws TestAlreadyExistsException {
+  public Test claimTest(Run run, TestId testId, int continuation, long leaseMillis)
+      throws TestAlreadyExistsException {
+    Key testKey = buildTestKey(run.getId(), testId.getTestId());
+    Date now = new Date();
     Transaction txn = ds.beginTransaction();
     try {
-      Test existingTest = getTestById(run.getId(), testId.getTestId());
-      if (existingTest == null) {
-        Test test = new Test(testId.getTestId(), run, testId.getNumSubtests());
-        ds.put(testToEntity(test));
-        txn.commit();
-        return test;
+      Test test;
+      try {
+        test = entityToTest(ds.get(txn, testKey));
+        if (test.getStatus() != TestStatus.IN_PROGRESS
+            || (continuation >= 0 && test.getNumContinuations() != continuation)
+            || (test.getLeaseExpiry() != null && test.getLeaseExpiry().after(now))) {
+          // finished, or somebody else is running it
+          throw new TestAlreadyExistsException(test);
+        }
+      } catch (EntityNotFoundException e) {
+        if (continuation >= 0) {
+          // a continuation of a Test that is gone, most likely with its Run
+          return null;
+        }
+        test = null;
+      }
+      boolean started = test == null;
+      if (started) {
+        test = new Test(testId.getTestId(), run, testId.getNumSubtests());
+      }
+      test.setAttempt(test.getAttempt() + 1);
+      test.setLeaseExpiry(new Date(now.getTime() + leaseMillis));
+      if (started) {
+        ds.put(txn, Arrays.asList(testToEntity(test), testToStatusEntity(test)));
       } else {
-        // the test was already created - this will happen when an exception
-        // is thrown during test cleanup
-        throw new TestAlreadyExistsException(existingTest);
+        // the status doesn't change when we take over
+        ds.put(txn, testToEntity(test));
       }
+      txn.commit();
+      if (started) {
+        // The aggregate shards are root entities, so the count can't be part
+        // of the claim txn without putting every Test of the Run in a
+        // cross-group txn.  That makes the claim two round trips, and a
+        // count lost in between is made up for by the completion check.
+        incrementRunStatusCounts(run.getId(), RunStatusCounts.forStartedTest(test));
+      }
+      return test;
     } finally {
       if (txn.isActive()) {
         txn.rollback();
@@ -118,35 +470,547 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
   }
 
   public void updateTest(Test test) {
+    try {
+      updateTestAsync(test).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  public Future<Void> updateTestAsync(Test test) {
+    // Failure bodies are root entities so they can't be part of the txn.
+    // They're content-addressed, so writing one more than once is harmless.
+    List<Entity> failureBodies = failureBodiesToEntities(Collections.singletonList(test));
+    Future<List<Key>> failureBodiesPut =
+        failureBodies.isEmpty() ? null : asyncDs.put(failureBodies);
     Transaction txn = ds.beginTransaction();
     try {
-      if (!test.getFailures().isEmpty()) {
-        List<Entity> failureEntities = failuresToEntities(test);
-        ds.put(txn, failureEntities);
+      Entity existing = getIfPresent(txn, buildTestKey(test));
+      if (isStale(test, existing)) {
+        txn.rollback();
+        // dropped, so there's nothing to wait for
+        return Futures.done();
       }
-      ds.put(txn, testToEntity(test));
-      txn.commit();
-    } finally {
+      boolean finished = test.getStatus() != TestStatus.IN_PROGRESS
+                         && isInProgress(existing);
+      Map<String, FailureClusterDelta> clusterDeltas =
+          new HashMap<String, FailureClusterDelta>();
+      addNewFailures(test, existing, clusterDeltas);
+      List<Entity> toPut = failuresToEntities(test);
+      toPut.add(testToEntity(test));
+      toPut.add(testToStatusEntity(test));
+      asyncDs.put(txn, toPut);
+      if (failureBodiesPut != null) {
+        // a failure must never refer to a body that doesn't exist
+        waitForFailureBodies(failureBodiesPut, failureBodies);
+      }
+      // the commit waits for the put to finish
+      return new UpdateTestFuture(
+          txn, txn.commitAsync(), finished ? test : null, clusterDeltas.values());
+    } catch (RuntimeException e) {
       if (txn.isActive()) {
         txn.rollback();
       }
+      throw e;
+    }
+  }
+
+  private void waitForFailureBodies(Future<List<Key>> put, List<Entity> failureBodies) {
+    try {
+      put.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+    rememberFailureBodies(failureBodies);
+  }
+
+  /**
+   * Completes an update started by {@link #updateTestAsync(Test)}.  Once the
+   * commit has succeeded the status aggregate is updated if the update
+   * finished the Test, and the new failures are added to their clusters.
+   */
+  private final class UpdateTestFuture implements Future<Void> {
+    private final Transaction txn;
+    private final Future<Void> commit;
+    private Test finishedTest;
+    private Collection<FailureClusterDelta> clusterDeltas;
+
+    private UpdateTestFuture(Transaction txn, Future<Void> commit, Test finishedTest,
+        Collection<FailureClusterDelta> clusterDeltas) {
+      this.txn = txn;
+      this.commit = commit;
+      this.finishedTest = finishedTest;
+      this.clusterDeltas = clusterDeltas;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return commit.isDone();
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+      try {
+        commit.get();
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+      afterCommit();
+      return null;
+    }
+
+    public Void get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        commit.get(timeout, unit);
+      } finally {
+        if (commit.isDone() && txn.isActive()) {
+          txn.rollback();
+        }
+      }
+      afterCommit();
+      return null;
     }
+
+    private synchronized void afterCommit() {
+      // only once, no matter how many times we're waited on
+      if (finishedTest != null) {
+        incrementRunStatusCounts(
+            finishedTest.getRun().getId(), RunStatusCounts.forFinishedTest(finishedTest));
+        finishedTest = null;
+      }
+      if (clusterDeltas != null) {
+        addToFailureClusters(clusterDeltas);
+        clusterDeltas = null;
+      }
+    }
+  }
+
+  public void flush() {
+    // everything is written right away
+  }
+
+  private Entity getIfPresent(Transaction txn, Key key) {
+    try {
+      return ds.get(txn, key);
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  private static boolean isInProgress(Entity existingTest) {
+    return existingTest == null
+           || TestStatus.IN_PROGRESS.name().equals(existingTest.getProperty("status"));
+  }
+
+  /**
+   * Returns {@code true} if the given Test was claimed by an attempt that
+   * has since lost its lease to a later attempt, in which case its results
+   * must not overwrite those of the later attempt.
+   */
+  private boolean isStale(Test test, Entity existingTest) {
+    if (existingTest == null || getAttempt(existingTest) <= test.getAttempt()) {
+      return false;
+    }
+    logger.warning("Dropping results of attempt " + test.getAttempt() + " of test "
+                   + test.getName() + " in run " + test.getRun().getId()
+                   + ", attempt " + getAttempt(existingTest) + " has taken over");
+    return true;
+  }
+
+  private static int getAttempt(Entity testEntity) {
+    Long attempt = (Long) testEntity.getProperty("attempt");
+    return attempt == null ? 0 : attempt.intValue();
+  }
+
+  public void updateTests(List<Test> tests) {
+    // Failure bodies are root entities so they can't be part of a txn.  We
+    // write them first so that a failure never refers to a body that doesn't
+    // exist.
+    List<Entity> failureBodies = failureBodiesToEntities(tests);
+    putInBatches(failureBodies);
+    rememberFailureBodies(failureBodies);
+    Map<Long, RunStatusCounts> finishedByRun = new HashMap<Long, RunStatusCounts>();
+    Map<String, FailureClusterDelta> clusterDeltas = new HashMap<String, FailureClusterDelta>();
+    RuntimeException error = null;
+    for (int i = 0; i < tests.size(); i += MAX_TEST_TXNS_IN_FLIGHT) {
+      List<Test> slice = tests.subList(i, Math.min(tests.size(), i + MAX_TEST_TXNS_IN_FLIGHT));
+      try {
+        updateTestsInTxns(slice, finishedByRun, clusterDeltas);
+      } catch (RuntimeException e) {
+        // the rest of the batch still gets written
+        error = e;
+      }
+    }
+    for (Map.Entry<Long, RunStatusCounts> entry : finishedByRun.entrySet()) {
+      incrementRunStatusCounts(entry.getKey(), entry.getValue());
+    }
+    addToFailureClusters(clusterDeltas.values());
+    if (error != null) {
+      throw error;
+    }
+  }
+
+  /**
+   * Every Test is the root of its own entity group, so each one is written
+   * in a txn of its own that checks its attempt, just like
+   * {@link #updateTestAsync(Test)} does.  The txns all run at once, so the
+   * Tests cost a few round trips no matter how many there are.  The counts
+   * of the Tests that the update finished are added to {@code finishedByRun}
+   * and their new failures to {@code clusterDeltas} once their txn has
+   * committed.
+   */
+  private void updateTestsInTxns(List<Test> tests, Map<Long, RunStatusCounts> finishedByRun,
+      Map<String, FailureClusterDelta> clusterDeltas) {
+    List<Future<Transaction>> txnsBegun = new ArrayList<Future<Transaction>>();
+    for (int i = 0; i < tests.size(); i++) {
+      txnsBegun.add(asyncDs.beginTransaction());
+    }
+    List<Transaction> txns = new ArrayList<Transaction>();
+    try {
+      List<Future<Entity>> gets = new ArrayList<Future<Entity>>();
+      for (int i = 0; i < tests.size(); i++) {
+        Transaction txn = await(txnsBegun.get(i));
+        txns.add(txn);
+        gets.add(asyncDs.get(txn, buildTestKey(tests.get(i))));
+      }
+      List<Future<Void>> commits = new ArrayList<Future<Void>>();
+      List<Test> finished = new ArrayList<Test>();
+      List<Entity> existingTests = new ArrayList<Entity>();
+      for (int i = 0; i < tests.size(); i++) {
+        Test test = tests.get(i);
+        Entity existing = getIfPresent(gets.get(i));
+        existingTests.add(existing);
+        if (isStale(test, existing)) {
+          commits.add(null);
+          finished.add(null);
+          continue;
+        }
+        List<Entity> toPut = failuresToEntities(test);
+        toPut.add(testToEntity(test));
+        toPut.add(testToStatusEntity(test));
+        asyncDs.put(txns.get(i), toPut);
+        // the commit waits for the put to finish
+        commits.add(txns.get(i).commitAsync());
+        boolean finishes = test.getStatus() != TestStatus.IN_PROGRESS && isInProgress(existing);
+        finished.add(finishes ? test : null);
+      }
+      RuntimeException error = null;
+      for (int i = 0; i < tests.size(); i++) {
+        if (commits.get(i) == null) {
+          continue;
+        }
+        try {
+          await(commits.get(i));
+        } catch (RuntimeException e) {
+          error = e;
+          continue;
+        }
+        addNewFailures(tests.get(i), existingTests.get(i), clusterDeltas);
+        Test test = finished.get(i);
+        if (test != null) {
+          RunStatusCounts counts = finishedByRun.get(test.getRun().getId());
+          if (counts == null) {
+            counts = new RunStatusCounts();
+            finishedByRun.put(test.getRun().getId(), counts);
+          }
+          counts.add(RunStatusCounts.forFinishedTest(test));
+        }
+      }
+      if (error != null) {
+        throw error;
+      }
+    } finally {
+      for (Transaction txn : txns) {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+  }
+
+  private static Entity getIfPresent(Future<Entity> get) {
+    try {
+      return await(get);
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof EntityNotFoundException) {
+        return null;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Waits for the given Future, rethrowing whatever went wrong as a
+   * RuntimeException.
+   */
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+   * Writes the given entities in as many batch puts as it takes to stay
+   * under the limit on the number of entities per put.
+   */
+  private void putInBatches(List<Entity> entities) {
+    for (int i = 0; i < entities.size(); i += MAX_ENTITIES_PER_PUT) {
+      ds.put(entities.subList(i, Math.min(entities.size(), i + MAX_ENTITIES_PER_PUT)));
+    }
+  }
+
+  /**
+   * Adds to one of the status aggregate shards of a Run.  The shards are root
+   * entities so that starting and finishing Tests don't contend with each
+   * other or with the Run.  We give up after a few attempts because the
+   * periodic completion check will catch anything we miss.
+   */
+  private void incrementRunStatusCounts(long runId, RunStatusCounts delta) {
+    Key shardKey =
+        buildRunStatusAggregateKey(runId, random.nextInt(NUM_RUN_STATUS_AGGREGATE_SHARDS));
+    for (int attempt = 1; attempt <= MAX_AGGREGATE_ATTEMPTS; attempt++) {
+      Transaction txn = ds.beginTransaction();
+      try {
+        RunStatusCounts counts = new RunStatusCounts();
+        try {
+          counts.add(entityToRunStatusCounts(ds.get(txn, shardKey)));
+        } catch (EntityNotFoundException e) {
+          // first update to this shard
+        }
+        counts.add(delta);
+        ds.put(txn, runStatusCountsToEntity(shardKey, counts));
+        txn.commit();
+        return;
+      } catch (ConcurrentModificationException cme) {
+        logger.fine("Contention on status aggregate of run " + runId + ", attempt " + attempt);
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    logger.warning("Unable to update status aggregate of run " + runId);
+  }
+
+  /**
+   * The failures of a single Run with a single fingerprint, counted as the
+   * Tests that fail are written so that the clusters of a Run can be read
+   * without reading all of its failures.
+   */
+  private static final class FailureClusterDelta {
+    private final long runId;
+    private final String fingerprint;
+    private final String summary;
+    private int numFailures;
+    private int numTests;
+    private final List<String> exampleTestIds = new ArrayList<String>();
+    private final List<String> exampleFailureIds = new ArrayList<String>();
+
+    private FailureClusterDelta(long runId, String fingerprint, String summary) {
+      this.runId = runId;
+      this.fingerprint = fingerprint;
+      this.summary = summary;
+    }
+  }
+
+  /**
+   * Adds the failures of the given Test that the existing Test doesn't have
+   * yet to the deltas of their clusters, keyed by run id and fingerprint.
+   * The failures of a Test that are already written come back as stubs, so
+   * a Test that fails the same way across continuations counts once for
+   * each of them.
+   */
+  private void addNewFailures(
+      Test test, Entity existingTest, Map<String, FailureClusterDelta> clusterDeltas) {
+    Collection<?> existingFailureKeys = Collections.emptyList();
+    if (existingTest != null && existingTest.getProperty("failureKeys") != null) {
+      existingFailureKeys = new HashSet<Object>((List<?>) existingTest.getProperty("failureKeys"));
+    }
+    long runId = test.getRun().getId();
+    Set<String> fingerprintsOfTest = new HashSet<String>();
+    for (Failure f : test.getFailures()) {
+      if (f.isStub() || existingFailureKeys.contains(buildFailureKey(test, f))) {
+        continue;
+      }
+      String fingerprint = FailureFingerprints.fingerprint(f);
+      String deltaKey = runId + ":" + fingerprint;
+      FailureClusterDelta delta = clusterDeltas.get(deltaKey);
+      if (delta == null) {
+        delta = new FailureClusterDelta(runId, fingerprint, FailureFingerprints.summarize(f));
+        clusterDeltas.put(deltaKey, delta);
+      }
+      delta.numFailures++;
+      if (fingerprintsOfTest.add(fingerprint)) {
+        delta.numTests++;
+      }
+      if (delta.exampleTestIds.size() < MAX_FAILURE_CLUSTER_EXAMPLES) {
+        delta.exampleTestIds.add(test.getName());
+        delta.exampleFailureIds.add(f.getId());
+      }
+    }
+  }
+
+  /**
+   * Adds to one of the shards of each of the given failure clusters.  Like
+   * the status aggregate we give up after a few attempts, in which case the
+   * cluster comes up short.
+   */
+  private void addToFailureClusters(Collection<FailureClusterDelta> deltas) {
+    for (FailureClusterDelta delta : deltas) {
+      Key shardKey = buildFailureClusterKey(
+          delta.runId, delta.fingerprint, random.nextInt(NUM_FAILURE_CLUSTER_SHARDS));
+      addToFailureCluster(shardKey, delta);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void addToFailureCluster(Key shardKey, FailureClusterDelta delta) {
+    for (int attempt = 1; attempt <= MAX_AGGREGATE_ATTEMPTS; attempt++) {
+      Transaction txn = ds.beginTransaction();
+      try {
+        Entity shard = getIfPresent(txn, shardKey);
+        List<String> testIds = new ArrayList<String>();
+        List<String> failureIds = new ArrayList<String>();
+        if (shard == null) {
+          shard = new Entity(shardKey);
+          shard.setUnindexedProperty("summary", delta.summary);
+        } else if (shard.getProperty("exampleTestIds") != null) {
+          testIds.addAll((List<String>) shard.getProperty("exampleTestIds"));
+          failureIds.addAll((List<String>) shard.getProperty("exampleFailureIds"));
+        }
+        for (int i = 0; i < delta.exampleTestIds.size()
+                        && testIds.size() < MAX_FAILURE_CLUSTER_EXAMPLES; i++) {
+          testIds.add(delta.exampleTestIds.get(i));
+          failureIds.add(delta.exampleFailureIds.get(i));
+        }
+        shard.setUnindexedProperty(
+            "numFailures", getCount(shard, "numFailures") + delta.numFailures);
+        shard.setUnindexedProperty("numTests", getCount(shard, "numTests") + delta.numTests);
+        shard.setUnindexedProperty("exampleTestIds", testIds);
+        shard.setUnindexedProperty("exampleFailureIds", failureIds);
+        ds.put(txn, shard);
+        txn.commit();
+        return;
+      } catch (ConcurrentModificationException cme) {
+        logger.fine("Contention on failure cluster " + shardKey.getName() + ", attempt " + attempt);
+      } finally {
+        if (txn.isActive()) {
+          txn.rollback();
+        }
+      }
+    }
+    logger.warning("Unable to update failure cluster " + shardKey.getName());
+  }
+
+  private Key buildFailureClusterKey(long runId, String fingerprint, int shard) {
+    return KeyFactory.createKey(
+        getFailureClusterEntityKind(), "Run " + runId + ":" + fingerprint + ":" + shard);
+  }
+
+  public RunStatusCounts getRunStatusCounts(long runId) {
+    List<Key> keys = new ArrayList<Key>();
+    for (int i = 0; i < NUM_RUN_STATUS_AGGREGATE_SHARDS; i++) {
+      keys.add(buildRunStatusAggregateKey(runId, i));
+    }
+    RunStatusCounts counts = new RunStatusCounts();
+    for (Entity shard : ds.get(keys).values()) {
+      counts.add(entityToRunStatusCounts(shard));
+    }
+    return counts;
+  }
+
+  /**
+   * Shards written by the completion counters only have a count of finished
+   * Tests that we can't attribute to a status, so they read as empty and the
+   * periodic completion check makes up for whatever they counted.
+   */
+  private static RunStatusCounts entityToRunStatusCounts(Entity e) {
+    return new RunStatusCounts(
+        getCount(e, "testsStarted"),
+        getCount(e, "testsPassed"),
+        getCount(e, "testsFailed"),
+        getCount(e, "testsTooSlow"),
+        getCount(e, "subtestsStarted"),
+        getCount(e, "subtestsPassed"),
+        getCount(e, "subtestsFailed"),
+        getCount(e, "subtestsTooSlow"));
+  }
+
+  private static int getCount(Entity e, String propertyName) {
+    Long count = (Long) e.getProperty(propertyName);
+    return count == null ? 0 : count.intValue();
+  }
+
+  private static Entity runStatusCountsToEntity(Key key, RunStatusCounts counts) {
+    Entity e = new Entity(key);
+    e.setUnindexedProperty("testsStarted", counts.getNumTestsStarted());
+    e.setUnindexedProperty("testsPassed", counts.getNumTestsPassed());
+    e.setUnindexedProperty("testsFailed", counts.getNumTestsFailed());
+    e.setUnindexedProperty("testsTooSlow", counts.getNumTestsTooSlow());
+    e.setUnindexedProperty("subtestsStarted", counts.getNumSubtestsStarted());
+    e.setUnindexedProperty("subtestsPassed", counts.getNumSubtestsPassed());
+    e.setUnindexedProperty("subtestsFailed", counts.getNumSubtestsFailed());
+    e.setUnindexedProperty("subtestsTooSlow", counts.getNumSubtestsTooSlow());
+    return e;
+  }
+
+  private Key buildRunStatusAggregateKey(long runId, int shard) {
+    return KeyFactory.createKey(getCompletionCounterEntityKind(), "Run " + runId + ":" + shard);
   }
 
   private Query createTestsForRunQuery(long runId) {
+    return createTestsForRunQuery(getTestEntityKind(), runId);
+  }
+
+  /**
+   * The status entity of a Test is its child, so the key range of the Tests
+   * of a Run contains the status entities of those Tests as well.
+   */
+  private Query createTestsForRunQuery(String kind, long runId) {
     // we're relying on the Run id being prepended to the testId for this
     // query.  Not the most straightforward way to get this information
     // but we can't issue any queries the require indexes to be built and
     // filtering by key range can be done entirely with built-in indexes.
-    Query failureForRunQuery = new Query(getTestEntityKind());
+    Query failureForRunQuery = new Query(kind);
+    // The separator is part of the bounds, otherwise the range for run 1
+    // would include the tests of run 10.  ';' is the char that follows ':'.
     failureForRunQuery.addFilter(
         Entity.KEY_RESERVED_PROPERTY,
         Query.FilterOperator.GREATER_THAN,
-        KeyFactory.createKey(getTestEntityKind(), "Run " + runId));
+        KeyFactory.createKey(getTestEntityKind(), "Run " + runId + ":"));
     failureForRunQuery.addFilter(
         Entity.KEY_RESERVED_PROPERTY,
         Query.FilterOperator.LESS_THAN,
-        KeyFactory.createKey(getTestEntityKind(), "Run " + (runId + 1)));
+        KeyFactory.createKey(getTestEntityKind(), "Run " + runId + ";"));
     return failureForRunQuery;
   }
 
@@ -159,11 +1023,134 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     return result;
   }
 
+  public Iterable<TestSummary> getTestSummariesForRun(long runId) {
+    Entity runEntity;
+    try {
+      runEntity = ds.get(buildRunKey(runId));
+    } catch (EntityNotFoundException e) {
+      return Collections.emptyList();
+    }
+    return summarizeTests(runEntity);
+  }
+
+  private Iterable<TestSummary> summarizeTests(Entity runEntity) {
+    long runId = runEntity.getKey().getId();
+    // the status entities are a lot smaller than the tests so read them if
+    // the run has them
+    String kind = hasTestStatusEntities(runEntity) ? getTestStatusEntityKind()
+                                                   : getTestEntityKind();
+    PreparedQuery pq = ds.prepare(createTestsForRunQuery(kind, runId));
+    return toTestSummaries(pq.asIterable(FetchOptions.Builder.withPrefetchSize(500)));
+  }
+
+  private static boolean hasTestStatusEntities(Entity runEntity) {
+    return Boolean.TRUE.equals(runEntity.getProperty("hasTestStatusEntities"));
+  }
+
+  /**
+   * Converts entities to summaries as they're iterated over so that we never
+   * hold more than a batch of them in memory.
+   */
+  private static Iterable<TestSummary> toTestSummaries(final Iterable<Entity> entities) {
+    return new Iterable<TestSummary>() {
+      public Iterator<TestSummary> iterator() {
+        final Iterator<Entity> iter = entities.iterator();
+        return new Iterator<TestSummary>() {
+          public boolean hasNext() {
+            return iter.hasNext();
+          }
+
+          public TestSummary next() {
+            return entityToTestSummary(iter.next());
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+    };
+  }
+
+  public List<TestSummary> getTestsChangedSince(long runId, long sinceVersion) {
+    List<TestSummary> result = new ArrayList<TestSummary>();
+    Entity runEntity;
+    try {
+      runEntity = ds.get(buildRunKey(runId));
+    } catch (EntityNotFoundException e) {
+      return result;
+    }
+    if (!hasTestStatusEntities(runEntity)) {
+      // no status versions, so as far as we know everything changed
+      for (TestSummary summary : summarizeTests(runEntity)) {
+        result.add(summary);
+      }
+      return result;
+    }
+    // Same trick as the key range query: the status version is prefixed with
+    // the Run id so a single inequality filter on a built-in index finds the
+    // changes of a single Run.
+    Query query = new Query(getTestStatusEntityKind());
+    query.addFilter(
+        "statusVersion",
+        Query.FilterOperator.GREATER_THAN,
+        buildStatusVersion(runId, sinceVersion));
+    query.addFilter(
+        "statusVersion",
+        Query.FilterOperator.LESS_THAN,
+        "Run " + runId + ";");
+    for (Entity e : ds.prepare(query).asIterable(FetchOptions.Builder.withPrefetchSize(500))) {
+      result.add(entityToTestSummary(e));
+    }
+    return result;
+  }
+
+  /**
+   * Status versions are padded so that they sort the same way as strings
+   * and as numbers.
+   */
+  private static String buildStatusVersion(long runId, long version) {
+    String versionStr = Long.toString(version);
+    StringBuilder sb = new StringBuilder("Run ").append(runId).append(":");
+    for (int i = versionStr.length(); i < 19; i++) {
+      sb.append('0');
+    }
+    return sb.append(versionStr).toString();
+  }
+
+  public List<Test> getTestShards(long runId, String className) {
+    // shard ids share the class name and the separator as a prefix so the
+    // same key range trick we use for all the tests in a run works here too
+    String prefix = "Run " + runId + ":" + className + TestShards.SHARD_SEPARATOR;
+    Query query = new Query(getTestEntityKind());
+    query.addFilter(
+        Entity.KEY_RESERVED_PROPERTY,
+        Query.FilterOperator.GREATER_THAN,
+        KeyFactory.createKey(getTestEntityKind(), prefix));
+    query.addFilter(
+        Entity.KEY_RESERVED_PROPERTY,
+        Query.FilterOperator.LESS_THAN,
+        KeyFactory.createKey(getTestEntityKind(), incrementLastChar(prefix)));
+    List<Test> result = new ArrayList<Test>();
+    for (Entity e : ds.prepare(query).asIterable()) {
+      result.add(entityToTest(e));
+    }
+    return result;
+  }
+
+  private static String incrementLastChar(String str) {
+    return str.substring(0, str.length() - 1) + (char) (str.charAt(str.length() - 1) + 1);
+  }
+
   public boolean runIsComplete(long runId) {
-    Query query = createTestsForRunQuery(runId);
+    Entity runEntity;
+    try {
+      runEntity = ds.get(buildRunKey(runId));
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
     int count = 0;
-    for (Entity testEntity : ds.prepare(query).asIterable()) {
-      Test test = entityToTest(testEntity);
+    for (TestSummary test : summarizeTests(runEntity)) {
       count++;
       // any test that hasn't completed means the the run is not complete
       if (test.getStatus() == TestStatus.IN_PROGRESS) {
@@ -171,18 +1158,58 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
       }
     }
     // no in-progres tests but there may be tests that haven't started at all
-    // we'll need to issue another query to see if that's the case
-    return count == getRunById(runId, false).getNumTestEntities();
+    return count == entityToRun(runEntity, null).getNumTestEntities();
   }
 
   private List<Entity> failuresToEntities(Test test) {
     List<Entity> entities = new ArrayList<Entity>();
     for (Failure f : test.getFailures()) {
-      entities.add(failureToEntity(test, f));
+      if (!f.isStub()) {
+        entities.add(failureToEntity(test, f));
+      }
+      // otherwise it's the stub of a failure that has already been written
     }
     return entities;
   }
 
+  /**
+   * Returns the bodies of the failures of the given Tests, leaving out the
+   * ones that this instance wrote recently.
+   */
+  private List<Entity> failureBodiesToEntities(Collection<Test> tests) {
+    Map<Key, Entity> bodies = new LinkedHashMap<Key, Entity>();
+    for (Test test : tests) {
+      for (Failure f : test.getFailures()) {
+        if (f.isStub()) {
+          continue;
+        }
+        Key bodyKey = buildFailureBodyKey(test.getRun().getId(), f);
+        if (!bodies.containsKey(bodyKey) && !recentFailureBodies.containsKey(bodyKey)) {
+          Entity body = new Entity(bodyKey);
+          body.setUnindexedProperty("body", new Blob(FailureBodyCodec.encode(f)));
+          bodies.put(bodyKey, body);
+        }
+      }
+    }
+    return new ArrayList<Entity>(bodies.values());
+  }
+
+  private void rememberFailureBodies(List<Entity> failureBodies) {
+    for (Entity body : failureBodies) {
+      recentFailureBodies.put(body.getKey(), Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Failure bodies are shared by all the failures of a Run with the same
+   * message and data, so when a broken fixture fails hundreds of tests with
+   * the same stack trace we only store it once.
+   */
+  private Key buildFailureBodyKey(long runId, Failure f) {
+    return KeyFactory.createKey(
+        getFailureBodyEntityKind(), "Run " + runId + ":" + FailureBodyCodec.hash(f));
+  }
+
   private Key buildFailureKey(Test test, Failure f) {
     Key testKey = buildTestKey(test);
     return buildFailureKey(testKey, f.getId());
@@ -195,14 +1222,8 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
   private Entity failureToEntity(Test test, Failure f) {
     Key failureKey = buildFailureKey(test, f);
     Entity e = new Entity(failureKey);
-    String failureMsg = f.getFailureMsg().length() > 500 ?
-                        f.getFailureMsg().substring(0, 500) : f.getFailureMsg();
-    e.setUnindexedProperty("failureMsgShort", failureMsg);
-    e.setUnindexedProperty("failureMsgFull", new Text(f.getFailureMsg()));
-    String failureData = f.getFailureData().length() > 500 ?
-                        f.getFailureData().substring(0, 500) : f.getFailureData();
-    e.setUnindexedProperty("failureDataShort", failureData);
-    e.setUnindexedProperty("failureDataFull", new Text(f.getFailureData()));
+    e.setUnindexedProperty("bodyKey", buildFailureBodyKey(test.getRun().getId(), f));
+    e.setUnindexedProperty("fingerprint", FailureFingerprints.fingerprint(f));
     e.setUnindexedProperty("runKey", buildRunKey(test.getRun().getId()));
     return e;
   }
@@ -249,9 +1270,34 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     if (successNames != null) {
       t.getSuccesses().addAll(successNames);
     }
+    Long numContinuations = (Long) e.getProperty("numContinuations");
+    if (numContinuations != null) {
+      t.setNumContinuations(numContinuations.intValue());
+    }
+    t.setAttempt(getAttempt(e));
+    t.setLeaseExpiry((Date) e.getProperty("leaseExpiry"));
     return t;
   }
 
+  /**
+   * Works for status entities as well as for the Tests of runs that don't
+   * have status entities.  Only looks at the properties a summary needs, so
+   * the lists of subtest names never get turned into objects.
+   */
+  private static TestSummary entityToTestSummary(Entity e) {
+    Long numFailures = (Long) e.getProperty("numFailures");
+    if (numFailures == null) {
+      List<?> failureKeys = (List<?>) e.getProperty("failureKeys");
+      numFailures = failureKeys == null ? 0L : failureKeys.size();
+    }
+    Long durationInMs = (Long) e.getProperty("durationInMs");
+    return new TestSummary((String) e.getProperty("testName"),
+                           TestStatus.valueOf((String) e.getProperty("status")),
+                           (Long) e.getProperty("numTests"),
+                           numFailures.intValue(),
+                           durationInMs == null ? -1 : durationInMs);
+  }
+
   private Entity testToEntity(Test t) {
     Entity testEntity = new Entity(buildTestKey(t));
     testEntity.setUnindexedProperty("testName", t.getName());
@@ -283,10 +1329,47 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
       }
       testEntity.setUnindexedProperty("successes", t.getSuccesses());
     }
+    if (t.getNumContinuations() == 0) {
+      testEntity.removeProperty("numContinuations");
+    } else {
+      testEntity.setUnindexedProperty("numContinuations", t.getNumContinuations());
+    }
+    testEntity.setUnindexedProperty("attempt", t.getAttempt());
+    if (t.getLeaseExpiry() == null) {
+      testEntity.removeProperty("leaseExpiry");
+    } else {
+      testEntity.setUnindexedProperty("leaseExpiry", t.getLeaseExpiry());
+    }
     testEntity.setUnindexedProperty("runKey", buildRunKey(t.getRun().getId()));
     return testEntity;
   }
 
+  /**
+   * The status entity of a Test holds just enough to summarize it.  It is
+   * a child of the Test so it can be written in the same txn.
+   */
+  private Entity testToStatusEntity(Test t) {
+    TestSummary summary = TestSummary.forTest(t);
+    Entity statusEntity = new Entity(buildTestStatusKey(buildTestKey(t)));
+    statusEntity.setUnindexedProperty("testName", summary.getName());
+    statusEntity.setUnindexedProperty("status", summary.getStatus().name());
+    statusEntity.setUnindexedProperty("numTests", summary.getNumTests());
+    statusEntity.setUnindexedProperty("numFailures", summary.getNumFailures());
+    if (summary.getDurationInMs() >= 0) {
+      statusEntity.setUnindexedProperty("durationInMs", summary.getDurationInMs());
+    }
+    // The only indexed property, see getTestsChangedSince().  Stamped when
+    // the entity is built rather than when it commits, so it's a little
+    // early.
+    statusEntity.setProperty("statusVersion",
+                             buildStatusVersion(t.getRun().getId(), System.currentTimeMillis()));
+    return statusEntity;
+  }
+
+  private Key buildTestStatusKey(Key testKey) {
+    return KeyFactory.createKey(testKey, getTestStatusEntityKind(), 1);
+  }
+
   public boolean createCompletionRecordIfNotAlreadyPresent(long runId) {
     Key key = KeyFactory.createKey(getCompletionNotificationEntityKind(), Long.valueOf(runId).toString());
     // We'll do a fetch by Key in a txn so we can guarantee that we only write
@@ -317,6 +1400,17 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
       }
     }
   }
+  public boolean hasCompletionRecord(long runId) {
+    Key key = KeyFactory.createKey(
+        getCompletionNotificationEntityKind(), Long.valueOf(runId).toString());
+    try {
+      ds.get(key);
+      return true;
+    } catch (EntityNotFoundException e) {
+      return false;
+    }
+  }
+
 
   public Failure getFailure(long runId, String testId, String failureId) {
     Key failureKey = buildFailureKey(buildTestKey(runId, testId), failureId);
@@ -328,7 +1422,120 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     }
   }
 
+  /**
+   * Merges the shards of the failure clusters of the given Run.  Runs that
+   * were written before failures were clustered as they were written don't
+   * have any, so we cluster their failures instead.
+   */
+  @SuppressWarnings("unchecked")
+  public List<FailureCluster> getFailureClusters(long runId, int maxExamplesPerCluster) {
+    String runKeyPrefix = "Run " + runId + ":";
+    String kind = getFailureClusterEntityKind();
+    Query query = new Query(kind);
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.GREATER_THAN,
+                    KeyFactory.createKey(kind, runKeyPrefix));
+    query.addFilter(Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN,
+                    KeyFactory.createKey(kind, "Run " + runId + ";"));
+    PreparedQuery pq = ds.prepare(query);
+    Map<String, FailureCluster> clusters = new HashMap<String, FailureCluster>();
+    for (Entity e : pq.asIterable(FetchOptions.Builder.withPrefetchSize(500))) {
+      String name = e.getKey().getName();
+      String fingerprint = name.substring(runKeyPrefix.length(), name.lastIndexOf(':'));
+      FailureCluster cluster = clusters.get(fingerprint);
+      if (cluster == null) {
+        cluster = new FailureCluster(fingerprint);
+        cluster.setSummary((String) e.getProperty("summary"));
+        clusters.put(fingerprint, cluster);
+      }
+      List<FailureCluster.Example> examples = new ArrayList<FailureCluster.Example>();
+      List<String> testIds = (List<String>) e.getProperty("exampleTestIds");
+      List<String> failureIds = (List<String>) e.getProperty("exampleFailureIds");
+      for (int i = 0; testIds != null && i < testIds.size(); i++) {
+        examples.add(new FailureCluster.Example(testIds.get(i), failureIds.get(i)));
+      }
+      cluster.addFailures(getCount(e, "numFailures"), getCount(e, "numTests"), examples,
+                          maxExamplesPerCluster);
+    }
+    if (clusters.isEmpty()) {
+      return clusterFailures(runId, maxExamplesPerCluster);
+    }
+    List<FailureCluster> result = new ArrayList<FailureCluster>(clusters.values());
+    Collections.sort(result, FailureFingerprints.LARGEST_CLUSTER_FIRST);
+    return result;
+  }
+
+  private List<FailureCluster> clusterFailures(long runId, int maxExamplesPerCluster) {
+    // Failures are children of their Tests, so they're in the key range of
+    // the Tests of the Run and come back grouped by Test
+    PreparedQuery pq = ds.prepare(createTestsForRunQuery(getFailureEntityKind(), runId));
+    String testKeyPrefix = "Run " + runId + ":";
+    Map<String, FailureCluster> clusters = new HashMap<String, FailureCluster>();
+    Map<FailureCluster, Entity> firstFailures = new HashMap<FailureCluster, Entity>();
+    for (Entity e : pq.asIterable(FetchOptions.Builder.withPrefetchSize(500))) {
+      String fingerprint = (String) e.getProperty("fingerprint");
+      if (fingerprint == null) {
+        // written before failures were fingerprinted
+        Failure f = entityToFailure(e);
+        if (f == null) {
+          continue;
+        }
+        fingerprint = FailureFingerprints.fingerprint(f);
+      }
+      FailureCluster cluster = clusters.get(fingerprint);
+      if (cluster == null) {
+        cluster = new FailureCluster(fingerprint);
+        clusters.put(fingerprint, cluster);
+        firstFailures.put(cluster, e);
+      }
+      String testId = e.getKey().getParent().getName().substring(testKeyPrefix.length());
+      cluster.addFailure(testId, e.getKey().getName(), maxExamplesPerCluster);
+    }
+    summarizeFailureClusters(firstFailures);
+    List<FailureCluster> result = new ArrayList<FailureCluster>(clusters.values());
+    Collections.sort(result, FailureFingerprints.LARGEST_CLUSTER_FIRST);
+    return result;
+  }
+
+  /**
+   * Describes each cluster with its first failure, reading the bodies of all
+   * of them in one batch.
+   */
+  private void summarizeFailureClusters(Map<FailureCluster, Entity> firstFailures) {
+    Set<Key> bodyKeys = new HashSet<Key>();
+    for (Entity e : firstFailures.values()) {
+      Key bodyKey = (Key) e.getProperty("bodyKey");
+      if (bodyKey != null) {
+        bodyKeys.add(bodyKey);
+      }
+    }
+    Map<Key, Entity> bodies = ds.get(bodyKeys);
+    for (Map.Entry<FailureCluster, Entity> entry : firstFailures.entrySet()) {
+      Entity e = entry.getValue();
+      Key bodyKey = (Key) e.getProperty("bodyKey");
+      Failure f;
+      if (bodyKey == null) {
+        f = entityToFailure(e);
+      } else if (bodies.containsKey(bodyKey)) {
+        Blob body = (Blob) bodies.get(bodyKey).getProperty("body");
+        f = FailureBodyCodec.decode(e.getKey().getName(), body.getBytes());
+      } else {
+        continue;
+      }
+      entry.getKey().setSummary(FailureFingerprints.summarize(f));
+    }
+  }
+
   private Failure entityToFailure(Entity e) {
+    Key bodyKey = (Key) e.getProperty("bodyKey");
+    if (bodyKey != null) {
+      try {
+        Blob body = (Blob) ds.get(bodyKey).getProperty("body");
+        return FailureBodyCodec.decode(e.getKey().getName(), body.getBytes());
+      } catch (EntityNotFoundException enfe) {
+        return null;
+      }
+    }
+    // written before failure bodies were shared
     String failureMsg = ((Text) e.getProperty("failureMsgFull")).getValue();
     String failureData = ((Text) e.getProperty("failureDataFull")).getValue();
     return new Failure(e.getKey().getName(), failureMsg, failureData);
@@ -345,18 +1552,64 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     }
   }
 
-  private Map<String, Integer> getTestIdData(long runId) {
+  private Map<String, Integer> getTestIdData(Entity runEntity) {
+    // The shards are children of the Run, so an ancestor query finds all of
+    // them, including the single entity that held the test id data of Runs
+    // written before it was sharded.
+    Query query = new Query(getTestIdDataKind(), runEntity.getKey());
     Map<String, Integer> testIdsToTestCounts = null;
-    try {
-      Entity testIdData = ds.get(buildTestIdDataKey(runId));
-      testIdsToTestCounts = entityToTestIdData(testIdData);
-    } catch (EntityNotFoundException e) {
-      // not available yet, no big deal
+    for (Entity shard : ds.prepare(query).asIterable()) {
+      if (testIdsToTestCounts == null) {
+        testIdsToTestCounts = new HashMap<String, Integer>();
+      }
+      testIdsToTestCounts.putAll(entityToTestIdData(shard));
     }
+    // null if it's not available yet, no big deal
     return testIdsToTestCounts;
   }
 
+  /**
+   * Builds the shard entities for the given test id data.  The caller is
+   * responsible for writing them.
+   */
+  private List<Entity> buildTestIdDataShards(long runId,
+                                             Map<String, Integer> testIdsToTestCounts) {
+    List<Entity> shards = new ArrayList<Entity>();
+    if (testIdsToTestCounts.isEmpty()) {
+      return shards;
+    }
+    encodeTestIdData(runId, new TreeMap<String, Integer>(testIdsToTestCounts), shards);
+    return shards;
+  }
+
+  /**
+   * Encodes the given test id data, splitting it in half until every piece
+   * fits comfortably in a single entity.
+   */
+  private void encodeTestIdData(long runId, SortedMap<String, Integer> testIdsToTestCounts,
+                                List<Entity> shards) {
+    byte[] encoded = TestIdCodec.encode(testIdsToTestCounts);
+    if (encoded.length <= MAX_TEST_ID_DATA_SHARD_BYTES || testIdsToTestCounts.size() == 1) {
+      Entity shard = new Entity(buildTestIdDataShardKey(runId, testIdsToTestCounts.firstKey()));
+      shard.setUnindexedProperty("manifest", new Blob(encoded));
+      shards.add(shard);
+      return;
+    }
+    Iterator<String> iter = testIdsToTestCounts.keySet().iterator();
+    for (int i = 0; i < testIdsToTestCounts.size() / 2; i++) {
+      iter.next();
+    }
+    String middle = iter.next();
+    encodeTestIdData(runId, testIdsToTestCounts.headMap(middle), shards);
+    encodeTestIdData(runId, testIdsToTestCounts.tailMap(middle), shards);
+  }
+
   Map<String, Integer> entityToTestIdData(Entity testIdData) {
+    Blob manifest = (Blob) testIdData.getProperty("manifest");
+    if (manifest != null) {
+      return TestIdCodec.decodeMap(manifest.getBytes());
+    }
+    // written before we had a codec
     Map<String, Integer> testIdsToTestCounts = new HashMap<String, Integer>();
     int curIndex = 0;
     while (testIdData.hasProperty("data" + curIndex)) {
@@ -376,33 +1629,149 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
   }
 
   public void addRunTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
-    ds.put(testIdDataToEntity(runId, testIdsToTestCounts));
+    Transaction txn = ds.beginTransaction();
+    try {
+      // make sure the Run is still around before we give it children
+      ds.get(txn, buildRunKey(runId));
+      ds.put(txn, buildTestIdDataShards(runId, testIdsToTestCounts));
+      txn.commit();
+    } catch (EntityNotFoundException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
   }
 
-  Entity testIdDataToEntity(long runId, Map<String, Integer> testIdsToTestCounts) {
-    Key key = buildTestIdDataKey(runId);
-    Entity entity = new Entity(key);
-    int curIndex = 0;
-    List<Object> curData = new ArrayList<Object>();
-    for (Map.Entry<String, Integer> entry : testIdsToTestCounts.entrySet()) {
-      curData.add(entry.getKey());
-      curData.add(entry.getValue());
-      if (curData.size() == 500) {
-        entity.setProperty("data" + curIndex, curData);
-        curData = new ArrayList<Object>();
-        curIndex++;
+  public long getLatestDurationsRunId(String suiteId) {
+    try {
+      Entity suiteEntity = ds.get(buildSuiteKey(suiteId));
+      return (Long) suiteEntity.getProperty("durationsRunId");
+    } catch (EntityNotFoundException e) {
+      return 0;
+    }
+  }
+
+  public Map<String, Long> getTestDurations(long runId) {
+    Map<String, Long> classNamesToDurations = new HashMap<String, Long>();
+    if (runId == 0) {
+      return classNamesToDurations;
+    }
+    Entity firstShard;
+    try {
+      firstShard = ds.get(buildTestDurationsKey(runId, 0));
+    } catch (EntityNotFoundException e) {
+      // nothing recorded
+      return classNamesToDurations;
+    }
+    addTestDurations(firstShard, classNamesToDurations);
+    // durations written before they were sharded don't say how many shards
+    // there are, but there was only one
+    Long numShards = (Long) firstShard.getProperty("numShards");
+    if (numShards != null && numShards > 1) {
+      List<Key> keys = new ArrayList<Key>();
+      for (int i = 1; i < numShards; i++) {
+        keys.add(buildTestDurationsKey(runId, i));
+      }
+      for (Entity shard : ds.get(keys).values()) {
+        addTestDurations(shard, classNamesToDurations);
       }
     }
-    if (!curData.isEmpty()) {
-      entity.setProperty("data" + curIndex, curData);
+    return classNamesToDurations;
+  }
+
+  private static void addTestDurations(Entity shard, Map<String, Long> classNamesToDurations) {
+    List<String> classNames = (List<String>) shard.getProperty("classNames");
+    List<Long> durationsInMs = (List<Long>) shard.getProperty("durationsInMs");
+    if (classNames != null) {
+      for (int i = 0; i < classNames.size(); i++) {
+        classNamesToDurations.put(classNames.get(i), durationsInMs.get(i));
+      }
     }
-    return entity;
+  }
+
+  public void recordTestDurations(String suiteId, long runId,
+                                  Map<String, Long> classNamesToDurations) {
+    // The durations of a Run never change once they've been written, so a
+    // Run that is being planned can keep reading the durations it started
+    // with while later Runs record new ones.  A suite with lots of classes
+    // doesn't fit in a single entity, so the durations are split across as
+    // many as it takes.
+    List<Entity> shards = new ArrayList<Entity>();
+    List<String> classNames = new ArrayList<String>();
+    List<Long> durationsInMs = new ArrayList<Long>();
+    int shardBytes = 0;
+    for (Map.Entry<String, Long> entry : classNamesToDurations.entrySet()) {
+      int entryBytes = entry.getKey().length() * 3 + TEST_DURATION_OVERHEAD_BYTES;
+      if (!classNames.isEmpty() && shardBytes + entryBytes > MAX_TEST_DURATIONS_SHARD_BYTES) {
+        shards.add(buildTestDurationsShard(runId, shards.size(), classNames, durationsInMs));
+        classNames = new ArrayList<String>();
+        durationsInMs = new ArrayList<Long>();
+        shardBytes = 0;
+      }
+      classNames.add(entry.getKey());
+      durationsInMs.add(entry.getValue());
+      shardBytes += entryBytes;
+    }
+    shards.add(buildTestDurationsShard(runId, shards.size(), classNames, durationsInMs));
+    shards.get(0).setUnindexedProperty("numShards", shards.size());
+    // One shard per put keeps each call small.  The first shard says how
+    // many there are, so it goes last and readers never see a partial set.
+    for (int i = shards.size() - 1; i >= 0; i--) {
+      ds.put(shards.get(i));
+    }
+
+    Transaction txn = ds.beginTransaction();
+    try {
+      Entity suiteEntity;
+      try {
+        suiteEntity = ds.get(txn, buildSuiteKey(suiteId));
+        if ((Long) suiteEntity.getProperty("durationsRunId") > runId) {
+          // a later run already recorded its durations
+          return;
+        }
+      } catch (EntityNotFoundException e) {
+        suiteEntity = new Entity(buildSuiteKey(suiteId));
+      }
+      suiteEntity.setUnindexedProperty("durationsRunId", runId);
+      ds.put(txn, suiteEntity);
+      txn.commit();
+    } finally {
+      if (txn.isActive()) {
+        txn.rollback();
+      }
+    }
+  }
+
+  private Key buildSuiteKey(String suiteId) {
+    return KeyFactory.createKey(getSuiteEntityKind(), suiteId);
+  }
+
+  private Entity buildTestDurationsShard(long runId, int shard, List<String> classNames,
+                                         List<Long> durationsInMs) {
+    Entity durations = new Entity(buildTestDurationsKey(runId, shard));
+    durations.setUnindexedProperty("classNames", classNames);
+    durations.setUnindexedProperty("durationsInMs", durationsInMs);
+    return durations;
+  }
+
+  /**
+   * Shard i lives in the entity with id i + 1, so durations written before
+   * they were sharded are shard 0.
+   */
+  private Key buildTestDurationsKey(long runId, int shard) {
+    return KeyFactory.createKey(buildRunKey(runId), getTestDurationsKind(), shard + 1);
   }
 
   protected String getTestIdDataKind() {
     return "CloudCoverRunTestIdData";
   }
 
+  protected String getPlannedTestIdsKind() {
+    return "CloudCoverRunPlannedTestIds";
+  }
+
   protected String getRunEntityKind() {
     return "CloudCoverRun";
   }
@@ -411,11 +1780,40 @@ public class DatastoreTestHarnessDao implements TestHarnessDao {
     return "CloudCoverTest";
   }
 
+  protected String getTestStatusEntityKind() {
+    return "CloudCoverTestStatus";
+  }
+
   protected String getFailureEntityKind() {
     return "CloudCoverFailure";
   }
 
+  protected String getFailureBodyEntityKind() {
+    return "CloudCoverFailureBody";
+  }
+
+  protected String getFailureClusterEntityKind() {
+    return "CloudCoverFailureCluster";
+  }
+
   protected String getCompletionNotificationEntityKind() {
     return "CloudCoverCompletionNotification";
   }
+
+  // the status aggregate grew out of the completion counters and kept their kind
+  protected String getCompletionCounterEntityKind() {
+    return "CloudCoverRunCompletionCounter";
+  }
+
+  protected String getRunIndexEntityKind() {
+    return "CloudCoverRunIndex";
+  }
+
+  protected String getSuiteEntityKind() {
+    return "CloudCoverSuite";
+  }
+
+  protected String getTestDurationsKind() {
+    return "CloudCoverRunTestDurations";
+  }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Key;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Deletes entities in batches, keeping a bounded number of asynchronous
+ * batch deletes in flight so that we don't pay for one datastore round trip
+ * after another.  Deletes are idempotent, so unlike {@link EnqueuePipeline}
+ * a failed batch just fails the pipeline and the caller starts over.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+class DeletePipeline {
+
+  // max size for batch delete is 500
+  private static final int MAX_BATCH_SIZE = 500;
+
+  private final AsyncDatastoreService asyncDs;
+  private final int maxInFlight;
+  private final LinkedList<Future<Void>> inFlight = new LinkedList<Future<Void>>();
+  private List<Key> currentBatch = new ArrayList<Key>();
+  private int numDeleted;
+
+  DeletePipeline(AsyncDatastoreService asyncDs, int maxInFlight) {
+    this.asyncDs = asyncDs;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Adds a key to the current batch, sending the batch if it is full.
+   */
+  void add(Key key) {
+    currentBatch.add(key);
+    if (currentBatch.size() == MAX_BATCH_SIZE) {
+      send();
+    }
+  }
+
+  /**
+   * Blocks until every key that was added to the pipeline has been deleted.
+   *
+   * @return The number of keys deleted
+   */
+  int flush() {
+    if (!currentBatch.isEmpty()) {
+      send();
+    }
+    while (!inFlight.isEmpty()) {
+      awaitOldest();
+    }
+    return numDeleted;
+  }
+
+  private void send() {
+    if (inFlight.size() == maxInFlight) {
+      awaitOldest();
+    }
+    inFlight.add(asyncDs.delete(currentBatch));
+    numDeleted += currentBatch.size();
+    currentBatch = new ArrayList<Key>();
+  }
+
+  private void awaitOldest() {
+    try {
+      inFlight.removeFirst().get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+}
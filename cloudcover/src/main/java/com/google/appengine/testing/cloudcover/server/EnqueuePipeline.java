@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adds tasks to a {@link Queue} in batches, keeping a bounded number of
+ * asynchronous batch adds in flight so that we don't pay for one queue round
+ * trip after another.  Batches that fail are retried when the pipeline is
+ * flushed.  Only named tasks should be added, since a batch that fails part
+ * of the way through is retried in its entirety.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+class EnqueuePipeline {
+
+  // max size for batch add is 100
+  private static final int MAX_BATCH_SIZE = 100;
+
+  // number of times we try to add a batch before giving up
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final Queue queue;
+  private final int maxInFlight;
+  private final LinkedList<InFlightBatch> inFlight = new LinkedList<InFlightBatch>();
+  private final List<List<TaskOptions>> failed = new ArrayList<List<TaskOptions>>();
+  private List<TaskOptions> currentBatch = new ArrayList<TaskOptions>();
+  private Throwable lastFailure;
+
+  EnqueuePipeline(Queue queue, int maxInFlight) {
+    this.queue = queue;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Adds a task to the current batch, sending the batch if it is full.
+   */
+  void add(TaskOptions opts) {
+    currentBatch.add(opts);
+    if (currentBatch.size() == MAX_BATCH_SIZE) {
+      send(currentBatch);
+      currentBatch = new ArrayList<TaskOptions>();
+    }
+  }
+
+  /**
+   * Blocks until every task that was added to the pipeline is on the queue,
+   * retrying batches that failed.
+   *
+   * @throws RuntimeException If a batch still can't be added after
+   * {@link #MAX_ATTEMPTS} attempts, or if we're interrupted.  Either way
+   * some of the tasks may not be on the queue.
+   */
+  void flush() {
+    if (!currentBatch.isEmpty()) {
+      send(currentBatch);
+      currentBatch = new ArrayList<TaskOptions>();
+    }
+    drain();
+    for (int attempt = 1; !failed.isEmpty(); attempt++) {
+      if (attempt == MAX_ATTEMPTS) {
+        throw new RuntimeException("Unable to add " + failed.size() + " batches of tasks to queue "
+                                   + queue.getQueueName(), lastFailure);
+      }
+      logger.fine("Retrying " + failed.size() + " failed batches, attempt " + (attempt + 1));
+      List<List<TaskOptions>> retry = new ArrayList<List<TaskOptions>>(failed);
+      failed.clear();
+      for (List<TaskOptions> batch : retry) {
+        send(batch);
+      }
+      drain();
+    }
+  }
+
+  private void send(List<TaskOptions> batch) {
+    if (inFlight.size() == maxInFlight) {
+      awaitOldest();
+    }
+    inFlight.add(new InFlightBatch(batch, queue.addAsync(batch)));
+  }
+
+  private void drain() {
+    while (!inFlight.isEmpty()) {
+      awaitOldest();
+    }
+  }
+
+  private void awaitOldest() {
+    InFlightBatch oldest = inFlight.removeFirst();
+    try {
+      oldest.future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TaskAlreadyExistsException) {
+        // Some of these tasks were added by a previous attempt.  The ones
+        // that didn't already exist have still been added.
+      } else {
+        logger.log(Level.WARNING, "Unable to add batch of " + oldest.batch.size() + " tasks.",
+                   e.getCause());
+        lastFailure = e.getCause();
+        failed.add(oldest.batch);
+      }
+    } catch (InterruptedException e) {
+      // there's no telling which batches made it, so we stop right here
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final class InFlightBatch {
+    private final List<TaskOptions> batch;
+    private final Future<List<TaskHandle>> future;
+
+    private InFlightBatch(List<TaskOptions> batch, Future<List<TaskHandle>> future) {
+      this.batch = batch;
+      this.future = future;
+    }
+  }
+}
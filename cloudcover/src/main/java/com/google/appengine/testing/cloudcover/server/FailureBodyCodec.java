@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Encoding for the message and data (usually a stack trace) of a
+ * {@link Failure}.  Bodies are deflated and identified by a hash of their
+ * content, so identical failures can share a single stored body.  The
+ * format, before compression, is:
+ * <pre>
+ *   version     1 byte
+ *   msg         int length followed by utf-8 bytes
+ *   data        int length followed by utf-8 bytes
+ * </pre>
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class FailureBodyCodec {
+
+  static final int VERSION = 1;
+
+  private static final String CHARSET = "UTF-8";
+
+  private FailureBodyCodec() {}
+
+  /**
+   * Returns a hex encoded hash of the message and data of the given
+   * Failure.  The id of the Failure isn't part of the hash.
+   */
+  static String hash(Failure failure) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(failure.getFailureMsg().getBytes(CHARSET));
+      // keeps "ab" + "c" apart from "a" + "bc"
+      digest.update((byte) 0);
+      digest.update(failure.getFailureData().getBytes(CHARSET));
+      return toHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  static byte[] encode(Failure failure) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes));
+      out.write(VERSION);
+      writeString(out, failure.getFailureMsg());
+      writeString(out, failure.getFailureData());
+      out.close();
+    } catch (IOException e) {
+      // can't happen, we're writing to memory
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decodes the body of the Failure with the given id.
+   */
+  static Failure decode(String id, byte[] body) {
+    try {
+      DataInputStream in =
+          new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(body)));
+      int version = in.read();
+      if (version != VERSION) {
+        throw new IllegalArgumentException("Unsupported failure body version: " + version);
+      }
+      String failureMsg = readString(in);
+      String failureData = readString(in);
+      return new Failure(id, failureMsg, failureData);
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Corrupt failure body", e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String str) throws IOException {
+    byte[] bytes = str.getBytes(CHARSET);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, CHARSET);
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * Computes fingerprints of {@link Failure Failures} so that failures with
+ * the same root cause can be grouped together.  The fingerprint is a hash
+ * of the first line of the stack trace (the exception and its message) and
+ * the top few frames, after stripping everything that differs between
+ * otherwise identical failures: line numbers, numbers and generated ids in
+ * messages, and the names of generated classes like {@code $Proxy12}.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class FailureFingerprints {
+
+  // frames further down are usually the individual test methods
+  static final int MAX_FRAMES = 5;
+
+  static final int MAX_SUMMARY_LENGTH = 200;
+
+  // JUnitStackTraceRewriter turns the trace into html
+  private static final Pattern LINE_BREAK = Pattern.compile("<br>|\n");
+  private static final Pattern LINE_NUMBER = Pattern.compile("\\.java:\\d+\\)");
+  private static final Pattern PROXY = Pattern.compile("\\$Proxy\\d+");
+  private static final Pattern CGLIB = Pattern.compile("\\$\\$\\w*ByCGLIB\\$\\$\\w+");
+  private static final Pattern GENERATED_ACCESSOR =
+      Pattern.compile("(Generated\\w*Accessor)\\d+");
+  private static final Pattern UUID = Pattern.compile(
+      "\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{12}");
+  private static final Pattern IDENTITY_HASH = Pattern.compile("@\\p{XDigit}+\\b");
+  private static final Pattern HEX = Pattern.compile("\\b0x\\p{XDigit}+\\b");
+  private static final Pattern NUMBER = Pattern.compile("\\b\\d+\\b");
+
+  /**
+   * Orders clusters by number of failures, largest first.
+   */
+  static final Comparator<FailureCluster> LARGEST_CLUSTER_FIRST =
+      new Comparator<FailureCluster>() {
+        public int compare(FailureCluster c1, FailureCluster c2) {
+          if (c1.getNumFailures() != c2.getNumFailures()) {
+            return c1.getNumFailures() > c2.getNumFailures() ? -1 : 1;
+          }
+          return c1.getFingerprint().compareTo(c2.getFingerprint());
+        }
+      };
+
+  private FailureFingerprints() {}
+
+  /**
+   * Returns the fingerprint of the given failure message and data.
+   */
+  static String fingerprint(String failureMsg, String failureData) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      byte[] hash = digest.digest(normalize(failureMsg, failureData).getBytes("UTF-8"));
+      // 64 bits is plenty to keep the causes of a single Run apart
+      return FailureBodyCodec.toHex(hash).substring(0, 16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static String fingerprint(Failure failure) {
+    return fingerprint(failure.getFailureMsg(), failure.getFailureData());
+  }
+
+  /**
+   * Returns the text the fingerprint is computed from.  Falls back to the
+   * failure message when there is no stack trace.
+   */
+  static String normalize(String failureMsg, String failureData) {
+    String[] lines = LINE_BREAK.split(failureData);
+    StringBuilder sb = new StringBuilder();
+    int numFrames = 0;
+    for (String line : lines) {
+      line = line.replace("&nbsp;", " ").trim();
+      if (line.length() == 0) {
+        continue;
+      }
+      if (sb.length() == 0) {
+        // the exception and its message
+        sb.append(normalizeLine(line));
+      } else if (line.startsWith("at ")) {
+        if (line.startsWith("at sun.reflect.") || line.startsWith("at java.lang.reflect.")) {
+          // depends on how the method was invoked, not on what went wrong
+          continue;
+        }
+        sb.append('\n').append(normalizeLine(line));
+        if (++numFrames == MAX_FRAMES) {
+          break;
+        }
+      } else {
+        // "Caused by" and friends, the top of the trace is all we look at
+        break;
+      }
+    }
+    if (sb.length() == 0) {
+      sb.append(normalizeLine(failureMsg.trim()));
+    }
+    return sb.toString();
+  }
+
+  private static String normalizeLine(String line) {
+    line = LINE_NUMBER.matcher(line).replaceAll(".java)");
+    line = PROXY.matcher(line).replaceAll("\\$Proxy");
+    line = CGLIB.matcher(line).replaceAll("\\$\\$CGLIB");
+    line = GENERATED_ACCESSOR.matcher(line).replaceAll("$1");
+    line = UUID.matcher(line).replaceAll("<id>");
+    line = IDENTITY_HASH.matcher(line).replaceAll("@<id>");
+    line = HEX.matcher(line).replaceAll("<id>");
+    return NUMBER.matcher(line).replaceAll("#");
+  }
+
+  /**
+   * Returns a short description of the given failure, suitable for
+   * describing the cluster it belongs to.
+   */
+  static String summarize(Failure failure) {
+    String summary = null;
+    for (String line : LINE_BREAK.split(failure.getFailureData())) {
+      line = line.replace("&nbsp;", " ").trim();
+      if (line.length() != 0) {
+        summary = line;
+        break;
+      }
+    }
+    if (summary == null) {
+      summary = failure.getFailureMsg().trim();
+    }
+    return summary.length() > MAX_SUMMARY_LENGTH ?
+           summary.substring(0, MAX_SUMMARY_LENGTH) : summary;
+  }
+}
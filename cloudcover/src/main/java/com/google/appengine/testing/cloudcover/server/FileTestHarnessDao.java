@@ -0,0 +1,1084 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
+import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
+import com.google.appengine.testing.cloudcover.spi.TestId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link TestHarnessDao} that keeps everything on local disk, for on-prem
+ * and air-gapped installs that can't reach a datastore.  The data lives in
+ * memory exactly as it does in {@link InMemoryTestHarnessDao}, so lookups
+ * are hash lookups, and every change is also appended to a log.  When we
+ * start up we replay the log to get back to where we were.
+ * <p>
+ * The log is made up of sealed segments, a carried segment and active
+ * segments, replayed in that order.  Each sealed segment holds the Runs that
+ * had finished by the time it was written and is never written again.  The
+ * carried segment holds the history of everything that wasn't sealed as of
+ * the last compaction.  Everything since goes on the end of the newest active
+ * segment.  Each record carries a length and a checksum, so if we die in the
+ * middle of a write the torn record at the end of an active segment is
+ * thrown away on replay.
+ * <p>
+ * Once the active segments get big we compact on a background thread.  We
+ * start a new active segment so that the old ones stop changing, write the
+ * Runs that have finished since the last compaction to a new sealed segment,
+ * and copy the records of everything else from the old carried and active
+ * segments to a new carried segment.  Writers only wait while we switch
+ * active segments.  Sealed segments are left alone until every Run in them
+ * has been deleted, at which point they're dropped.
+ * <p>
+ * Records are state, not operations: each one holds what a Run or Test
+ * looks like once it has changed, so replaying one twice does no harm.
+ * Records are appended before the change is made in memory, so a change
+ * that can't be logged is never seen.  Writes to the same Test or Run are
+ * serialized so that records land in the log in the order the changes were
+ * made.
+ * <p>
+ * The data directory is given by the {@code cloudcover.dao.dir} system
+ * property and defaults to {@code cloudcover-data} in the working directory.
+ * As with the in-memory DAO, a single instance has to do all the work.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class FileTestHarnessDao extends InMemoryTestHarnessDao {
+
+  static final String DIR_PROPERTY = "cloudcover.dao.dir";
+  private static final String DEFAULT_DIR = "cloudcover-data";
+  private static final String SEALED_SUFFIX = ".sealed";
+  private static final String CARRIED_SUFFIX = ".carried";
+  private static final String ACTIVE_SUFFIX = ".log";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // compact once the active segments are bigger than this
+  private static final long COMPACTION_THRESHOLD = 64 * 1024 * 1024;
+  // anything bigger is garbage from a torn write
+  private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+  // serializes writes to the same Run or Test
+  private static final int NUM_STRIPES = 64;
+
+  private static final byte RUN_IDS = 1;
+  private static final byte RUN = 2;
+  private static final byte PLAN = 3;
+  private static final byte TEST_IDS = 4;
+  private static final byte TEST = 5;
+  private static final byte COMPLETION = 6;
+  private static final byte DURATIONS = 7;
+  private static final byte DELETE = 8;
+  private static final byte PLANNED_TEST_IDS = 9;
+  private static final byte SEALED_SEGMENTS = 10;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final File dir;
+  private final Object[] stripes = new Object[NUM_STRIPES];
+
+  private final ExecutorService compactor = Executors.newSingleThreadExecutor(
+      new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "cloudcover-compactor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+  private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+
+  // one compaction at a time, guards the two fields below
+  private final Object compactionLock = new Object();
+  // the number of the carried segment
+  private long generation;
+  // the run ids in each sealed segment, keyed by segment number
+  private final SortedMap<Long, Set<Long>> sealedSegments = new TreeMap<Long, Set<Long>>();
+
+  // guards everything below
+  private final Object logLock = new Object();
+  private long activeNumber;
+  private FileOutputStream activeSegment;
+  // bytes appended since the last compaction
+  private long activeSegmentLength;
+
+  public FileTestHarnessDao(TestHarnessConfig config) {
+    this(config, new File(System.getProperty(DIR_PROPERTY, DEFAULT_DIR)));
+  }
+
+  public FileTestHarnessDao(TestHarnessConfig config, File dir) {
+    super(config);
+    this.dir = dir;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Object();
+    }
+    try {
+      open();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to open " + dir, e);
+    }
+  }
+
+  @Override
+  public Run newRun(String suiteId) {
+    // the id isn't ours to pick, so we take it back out if the append fails
+    Run run = super.newRun(suiteId);
+    synchronized (stripe(run.getId(), null)) {
+      RunInfo info = getRunInfo(run.getId());
+      try {
+        append(runRecord(RUN, info),
+               planRecord(getRunPlan(run.getId()), run.getNumTests(), run.getNumTestEntities()));
+      } catch (RuntimeException e) {
+        super.deleteRun(info, Long.MAX_VALUE);
+        throw e;
+      }
+    }
+    return run;
+  }
+
+  @Override
+  public void updateRun(Run run) {
+    synchronized (stripe(run.getId(), null)) {
+      RunPlan plan = getRunPlan(run.getId());
+      if (plan != null) {
+        append(planRecord(plan, run.getNumTests(), run.getNumTestEntities()));
+      }
+      super.updateRun(run);
+    }
+  }
+
+  @Override
+  public void recordRunCompletion(long runId, TestStatus status, RunStatusCounts counts) {
+    synchronized (stripe(runId, null)) {
+      RunInfo info = getRunInfo(runId);
+      if (info != null) {
+        append(runRecord(RUN, new RunInfo(runId, info.getSuiteId(), info.getCreated(), status,
+                                          counts)));
+      }
+      super.recordRunCompletion(runId, status, counts);
+    }
+    // a good time to compact since there's now one more Run to seal
+    boolean compact;
+    synchronized (logLock) {
+      compact = activeSegmentLength > COMPACTION_THRESHOLD;
+    }
+    if (compact && compactionScheduled.compareAndSet(false, true)) {
+      compactor.execute(new Runnable() {
+        public void run() {
+          try {
+            compact();
+          } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Compaction of " + dir + " failed", e);
+          } finally {
+            compactionScheduled.set(false);
+          }
+        }
+      });
+    }
+  }
+
+  @Override
+  public boolean deleteRun(RunInfo run, long stopAt) {
+    synchronized (stripe(run.getRunId(), null)) {
+      append(runRecord(DELETE, run));
+      super.deleteRun(run, stopAt);
+    }
+    return true;
+  }
+
+  /**
+   * Claims and updates of Tests, including {@link #updateTestAsync(Test)}
+   * and {@link #updateTests(java.util.List)}, come through here.
+   */
+  @Override
+  void beforeTestWrite(Test test) {
+    append(testRecord(test.getRun().getId(), test));
+  }
+
+  @Override
+  public void flush() {
+    synchronized (logLock) {
+      sync();
+    }
+  }
+
+  @Override
+  public boolean createCompletionRecordIfNotAlreadyPresent(long runId) {
+    synchronized (stripe(runId, null)) {
+      if (hasCompletionRecord(runId)) {
+        return false;
+      }
+      synchronized (logLock) {
+        // we only get to say yes once, make sure we remember that we did
+        append(completionRecord(runId));
+        sync();
+      }
+      return super.createCompletionRecordIfNotAlreadyPresent(runId);
+    }
+  }
+
+  @Override
+  public void addRunTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
+    synchronized (stripe(runId, null)) {
+      append(testIdsRecord(runId, testIdsToTestCounts));
+      super.addRunTestIdData(runId, testIdsToTestCounts);
+    }
+  }
+
+  @Override
+  public boolean checkpointRunPlan(RunPlan current, RunPlan next,
+                                   Map<String, Integer> testIdsToTestCounts) {
+    synchronized (stripe(current.getRunId(), null)) {
+      RunPlan stored = getRunPlan(current.getRunId());
+      if (stored == null || stored.getCursor() != current.getCursor()) {
+        return false;
+      }
+      int numTests;
+      int numTestEntities;
+      if (next.isFinished()) {
+        numTests = next.getNumTests();
+        numTestEntities = next.getNumTestEntities();
+      } else {
+        Run run = getRunById(current.getRunId(), false);
+        numTests = run.getNumTests();
+        numTestEntities = run.getNumTestEntities();
+      }
+      append(testIdsRecord(current.getRunId(), testIdsToTestCounts),
+             planRecord(next, numTests, numTestEntities));
+      // we hold the stripe, so nobody else can have moved the cursor
+      return super.checkpointRunPlan(current, next, testIdsToTestCounts);
+    }
+  }
+
+  @Override
+  public void savePlannedTestIds(long runId, List<List<TestId>> chunks) {
+    synchronized (stripe(runId, null)) {
+      byte[][] records = new byte[chunks.size()][];
+      for (int i = 0; i < chunks.size(); i++) {
+        records[i] = plannedTestIdsRecord(runId, i, chunks.get(i));
+      }
+      append(records);
+      super.savePlannedTestIds(runId, chunks);
+    }
+  }
+
+  @Override
+  public void recordTestDurations(String suiteId, long runId,
+                                  Map<String, Long> classNamesToDurations) {
+    synchronized (stripe(runId, null)) {
+      append(durationsRecord(suiteId, runId, classNamesToDurations));
+      super.recordTestDurations(suiteId, runId, classNamesToDurations);
+    }
+  }
+
+  private Object stripe(long runId, String testId) {
+    int hash = (int) (runId ^ (runId >>> 32)) * 31 + (testId == null ? 0 : testId.hashCode());
+    return stripes[(hash & 0x7fffffff) % stripes.length];
+  }
+
+  private void append(byte[]... records) {
+    synchronized (logLock) {
+      try {
+        for (byte[] record : records) {
+          // one write per record, so the OS has it even if we die right after
+          activeSegment.write(record);
+          activeSegmentLength += record.length;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(
+            "Unable to append to " + segmentFile(activeNumber, ACTIVE_SUFFIX), e);
+      }
+    }
+  }
+
+  // guarded by logLock
+  private void sync() {
+    try {
+      activeSegment.getFD().sync();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to sync " + segmentFile(activeNumber, ACTIVE_SUFFIX), e);
+    }
+  }
+
+  /**
+   * Seals the Runs that have finished since the last compaction and carries
+   * everything else over to a new carried segment, see the class comment.
+   * Writers only wait while we switch active segments.  Called on a
+   * background thread once the active segments get big, but it's safe to
+   * call at any time.
+   */
+  public void compact() {
+    synchronized (compactionLock) {
+      long start = System.currentTimeMillis();
+      long base = generation;
+      long next;
+      synchronized (logLock) {
+        next = activeNumber + 1;
+        try {
+          FileOutputStream newActive = new FileOutputStream(segmentFile(next, ACTIVE_SUFFIX), true);
+          activeSegment.close();
+          activeSegment = newActive;
+        } catch (IOException e) {
+          throw new RuntimeException("Unable to start a new active segment in " + dir, e);
+        }
+        activeNumber = next;
+        activeSegmentLength = 0;
+      }
+      // Runs that are gone from every sealed segment they're in don't need
+      // the segment anymore
+      SortedMap<Long, Set<Long>> kept = new TreeMap<Long, Set<Long>>();
+      Set<Long> alreadySealed = new HashSet<Long>();
+      for (Map.Entry<Long, Set<Long>> entry : sealedSegments.entrySet()) {
+        alreadySealed.addAll(entry.getValue());
+        for (long runId : entry.getValue()) {
+          if (getRunInfo(runId) != null) {
+            kept.put(entry.getKey(), entry.getValue());
+            break;
+          }
+        }
+      }
+      Set<Long> keptRunIds = new HashSet<Long>();
+      for (Set<Long> runIds : kept.values()) {
+        keptRunIds.addAll(runIds);
+      }
+      List<Long> toSeal = new ArrayList<Long>();
+      for (long runId : getRunIds()) {
+        if (hasCompletionRecord(runId) && !alreadySealed.contains(runId)) {
+          toSeal.add(runId);
+        }
+      }
+      File sealedTmp = segmentFile(next, SEALED_SUFFIX + TMP_SUFFIX);
+      File carriedTmp = segmentFile(next, CARRIED_SUFFIX + TMP_SUFFIX);
+      try {
+        Set<Long> sealedNow = new HashSet<Long>();
+        if (!toSeal.isEmpty()) {
+          writeSealedSegment(sealedTmp, toSeal, sealedNow);
+          rename(sealedTmp, segmentFile(next, SEALED_SUFFIX));
+          kept.put(next, sealedNow);
+        }
+        List<File> carried = new ArrayList<File>();
+        carried.add(segmentFile(base, CARRIED_SUFFIX));
+        for (long n = base; n < next; n++) {
+          carried.add(segmentFile(n, ACTIVE_SUFFIX));
+        }
+        writeCarriedSegment(carriedTmp, kept.keySet(), carried, keptRunIds, sealedNow);
+        // the carried segment is what makes a generation real, so it goes last
+        rename(carriedTmp, segmentFile(next, CARRIED_SUFFIX));
+        generation = next;
+        for (File file : carried) {
+          file.delete();
+        }
+        for (long n : sealedSegments.keySet()) {
+          if (!kept.containsKey(n)) {
+            segmentFile(n, SEALED_SUFFIX).delete();
+          }
+        }
+        sealedSegments.clear();
+        sealedSegments.putAll(kept);
+      } catch (IOException e) {
+        sealedTmp.delete();
+        carriedTmp.delete();
+        // the active segments we started on are still there for next time
+        segmentFile(next, SEALED_SUFFIX).delete();
+        throw new RuntimeException("Unable to compact " + dir, e);
+      }
+      logger.info("Compacted " + dir + " to generation " + generation + ", sealed "
+                  + toSeal.size() + " runs in " + (System.currentTimeMillis() - start) + "ms.");
+    }
+  }
+
+  /**
+   * Writes everything we have for the given Runs.  The Runs that are still
+   * around by the time we get to them are added to {@code sealed}.
+   */
+  private void writeSealedSegment(File file, List<Long> runIds, Set<Long> sealed)
+      throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try {
+      OutputStream out = new BufferedOutputStream(fileOut);
+      for (long runId : runIds) {
+        List<byte[]> records = snapshotRun(runId);
+        if (records == null) {
+          // deleted while we were looking
+          continue;
+        }
+        for (byte[] record : records) {
+          out.write(record);
+        }
+        sealed.add(runId);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+  }
+
+  /**
+   * Returns the records of everything we have for the given Run, or
+   * {@code null} if it's gone.  The records a Run had in the old segments
+   * don't make it to the carried segment once it's sealed, so a change
+   * that was appended before we switched segments has to be in memory by
+   * the time we look.  Changes to the Run are made with its stripe held and
+   * changes to a Test with the lock of the Test held, and we read the Run
+   * and each of its Tests with the same locks held.
+   */
+  private List<byte[]> snapshotRun(long runId) {
+    synchronized (stripe(runId, null)) {
+      RunInfo info = getRunInfo(runId);
+      Run run = getRunById(runId, true);
+      RunPlan plan = getRunPlan(runId);
+      if (info == null || run == null || plan == null) {
+        return null;
+      }
+      List<byte[]> records = new ArrayList<byte[]>();
+      records.add(runRecord(RUN, info));
+      records.add(planRecord(plan, run.getNumTests(), run.getNumTestEntities()));
+      records.add(testIdsRecord(runId, run.getTestIdsToTestCounts()));
+      List<TestId> testIds;
+      for (int chunk = 0; (testIds = getPlannedTestIds(runId, chunk)) != null; chunk++) {
+        records.add(plannedTestIdsRecord(runId, chunk, testIds));
+      }
+      for (Test test : getTestsForRun(runId)) {
+        records.add(testRecord(runId, test));
+      }
+      records.add(completionRecord(runId));
+      Map<String, Long> durations = getTestDurations(runId);
+      if (!durations.isEmpty()) {
+        records.add(durationsRecord(info.getSuiteId(), runId, durations));
+      }
+      return records;
+    }
+  }
+
+  /**
+   * Writes the list of sealed segments and whatever outlives the Runs it
+   * came from, followed by the records of the given segments that still
+   * matter: those of Runs that exist and weren't just sealed, and those of
+   * deleted Runs whose sealed segment is still around.
+   */
+  private void writeCarriedSegment(File file, Set<Long> sealedSegmentNumbers,
+                                   List<File> segments, final Set<Long> keptRunIds,
+                                   final Set<Long> sealedNow) throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try {
+      final OutputStream out = new BufferedOutputStream(fileOut);
+      out.write(sealedSegmentsRecord(sealedSegmentNumbers));
+      out.write(runIdsRecord(getNextRunId()));
+      // the latest durations of a suite outlive the Run they came from
+      for (Map.Entry<String, Long> entry : getLatestDurationsRunIds().entrySet()) {
+        if (getRunInfo(entry.getValue()) == null) {
+          out.write(durationsRecord(entry.getKey(), entry.getValue(),
+                                    getTestDurations(entry.getValue())));
+        }
+      }
+      RecordHandler carry = new RecordHandler() {
+        public void handle(byte[] payload) throws IOException {
+          DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+          byte type = in.readByte();
+          if (type == SEALED_SEGMENTS || type == RUN_IDS) {
+            // rewritten up top
+            return;
+          }
+          if (type == DURATIONS) {
+            readString(in);
+          }
+          long runId = in.readLong();
+          boolean keep;
+          if (getRunInfo(runId) != null) {
+            keep = !sealedNow.contains(runId);
+          } else {
+            // the durations we still need were rewritten up top
+            keep = type != DURATIONS && keptRunIds.contains(runId);
+          }
+          if (keep) {
+            out.write(frame(payload));
+          }
+        }
+      };
+      for (File segment : segments) {
+        if (segment.exists()) {
+          readRecords(segment, carry);
+        }
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    } finally {
+      fileOut.close();
+    }
+  }
+
+  private static void rename(File from, File to) throws IOException {
+    if (!from.renameTo(to)) {
+      throw new IOException("Unable to rename " + from + " to " + to);
+    }
+  }
+
+  private File segmentFile(long number, String suffix) {
+    return new File(dir, number + suffix);
+  }
+
+  private void open() throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Unable to create " + dir);
+    }
+    List<Long> carriedNumbers = findSegmentNumbers(CARRIED_SUFFIX);
+    if (carriedNumbers.isEmpty()) {
+      generation = 0;
+      new FileOutputStream(segmentFile(generation, CARRIED_SUFFIX)).close();
+    } else {
+      generation = carriedNumbers.get(carriedNumbers.size() - 1);
+    }
+    long start = System.currentTimeMillis();
+    File carried = segmentFile(generation, CARRIED_SUFFIX);
+    for (long n : readSealedSegmentNumbers(carried)) {
+      File sealed = segmentFile(n, SEALED_SUFFIX);
+      Set<Long> runIds = new HashSet<Long>();
+      if (replay(sealed, runIds) != sealed.length()) {
+        throw new IOException(sealed + " is corrupt");
+      }
+      sealedSegments.put(n, runIds);
+    }
+    if (replay(carried, null) != carried.length()) {
+      throw new IOException(carried + " is corrupt");
+    }
+    // more than one if a compaction died after starting a new active segment
+    activeNumber = generation;
+    long length = 0;
+    for (long n : findSegmentNumbers(ACTIVE_SUFFIX)) {
+      if (n < generation) {
+        continue;
+      }
+      File active = segmentFile(n, ACTIVE_SUFFIX);
+      long validLength = replay(active, null);
+      if (validLength < active.length()) {
+        logger.warning("Discarding " + (active.length() - validLength)
+                       + " bytes of torn records at the end of " + active);
+        RandomAccessFile raf = new RandomAccessFile(active, "rw");
+        try {
+          raf.setLength(validLength);
+        } finally {
+          raf.close();
+        }
+      }
+      activeNumber = n;
+      length += validLength;
+    }
+    deleteUnusedSegments();
+    activeSegment = new FileOutputStream(segmentFile(activeNumber, ACTIVE_SUFFIX), true);
+    activeSegmentLength = length;
+    logger.info("Replayed generation " + generation + " of " + dir + " in "
+                + (System.currentTimeMillis() - start) + "ms.");
+  }
+
+  /**
+   * @return the numbers of the segments with the given suffix, in order
+   */
+  private List<Long> findSegmentNumbers(String suffix) {
+    List<Long> numbers = new ArrayList<Long>();
+    for (String name : dir.list()) {
+      if (name.endsWith(suffix)) {
+        try {
+          numbers.add(Long.parseLong(name.substring(0, name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // not ours
+        }
+      }
+    }
+    Collections.sort(numbers);
+    return numbers;
+  }
+
+  private List<Long> readSealedSegmentNumbers(File carried) throws IOException {
+    final List<Long> numbers = new ArrayList<Long>();
+    if (carried.length() == 0) {
+      // nothing has been sealed yet
+      return numbers;
+    }
+    DataInputStream in = new DataInputStream(new FileInputStream(carried));
+    try {
+      // always the first record
+      byte[] payload = new byte[in.readInt()];
+      in.readInt();
+      in.readFully(payload);
+      DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+      if (record.readByte() != SEALED_SEGMENTS) {
+        throw new IOException(carried + " doesn't start with its sealed segments");
+      }
+      for (int i = record.readInt(); i > 0; i--) {
+        numbers.add(record.readLong());
+      }
+    } finally {
+      in.close();
+    }
+    return numbers;
+  }
+
+  private void deleteUnusedSegments() {
+    for (File file : dir.listFiles()) {
+      String name = file.getName();
+      boolean unused;
+      if (name.endsWith(TMP_SUFFIX)) {
+        unused = true;
+      } else if (name.endsWith(SEALED_SUFFIX)) {
+        unused = !sealedSegments.containsKey(parseSegmentNumber(name, SEALED_SUFFIX));
+      } else if (name.endsWith(CARRIED_SUFFIX)) {
+        unused = parseSegmentNumber(name, CARRIED_SUFFIX) != generation;
+      } else if (name.endsWith(ACTIVE_SUFFIX)) {
+        unused = parseSegmentNumber(name, ACTIVE_SUFFIX) < generation;
+      } else {
+        unused = false;
+      }
+      if (unused) {
+        // left behind by a compaction that died
+        file.delete();
+      }
+    }
+  }
+
+  private static long parseSegmentNumber(String name, String suffix) {
+    try {
+      return Long.parseLong(name.substring(0, name.length() - suffix.length()));
+    } catch (NumberFormatException e) {
+      // not ours, so leave it alone
+      return Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * Receives the payload of each intact record read by
+   * {@link FileTestHarnessDao#readRecords(File, RecordHandler)}.
+   */
+  private interface RecordHandler {
+    void handle(byte[] payload) throws IOException;
+  }
+
+  /**
+   * Applies the records in the given file.
+   *
+   * @param runIds Collects the ids of the Runs in the file, or {@code null}
+   * @return the length of the records that were intact
+   */
+  private long replay(File file, final Set<Long> runIds) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    return readRecords(file, new RecordHandler() {
+      public void handle(byte[] payload) throws IOException {
+        apply(new DataInputStream(new ByteArrayInputStream(payload)), runIds);
+      }
+    });
+  }
+
+  /**
+   * Hands the intact records in the given file to the handler, stopping at
+   * the first one that's torn.
+   *
+   * @return the length of the records that were intact
+   */
+  private static long readRecords(File file, RecordHandler handler) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    long validLength = 0;
+    try {
+      CRC32 crc = new CRC32();
+      while (true) {
+        byte[] payload;
+        try {
+          int length = in.readInt();
+          if (length <= 0 || length > MAX_RECORD_LENGTH) {
+            break;
+          }
+          long checksum = in.readInt() & 0xffffffffL;
+          payload = new byte[length];
+          in.readFully(payload);
+          crc.reset();
+          crc.update(payload);
+          if (crc.getValue() != checksum) {
+            break;
+          }
+          validLength += 8 + length;
+        } catch (EOFException e) {
+          break;
+        }
+        handler.handle(payload);
+      }
+    } finally {
+      in.close();
+    }
+    return validLength;
+  }
+
+  private void apply(DataInputStream in, Set<Long> runIds) throws IOException {
+    byte type = in.readByte();
+    long runId;
+    switch (type) {
+      case SEALED_SEGMENTS:
+        // already read, see open()
+        break;
+      case RUN_IDS:
+        reserveRunIds(in.readLong());
+        break;
+      case RUN:
+        RunInfo info = readRunInfo(in);
+        if (runIds != null) {
+          runIds.add(info.getRunId());
+        }
+        if (getRunInfo(info.getRunId()) == null) {
+          restoreRun(info);
+        } else {
+          super.recordRunCompletion(info.getRunId(), info.getStatus(), info.getStatusCounts());
+        }
+        break;
+      case PLAN:
+        RunPlan plan = new RunPlan(in.readLong(), readString(in), in.readLong(), in.readInt(),
+                                   in.readInt(), in.readInt(), in.readBoolean());
+        int numTests = in.readInt();
+        int numTestEntities = in.readInt();
+        if (getRunInfo(plan.getRunId()) != null) {
+          restoreRunPlan(plan, numTests, numTestEntities);
+        }
+        break;
+      case TEST_IDS:
+        runId = in.readLong();
+        Map<String, Integer> testIdsToTestCounts = new HashMap<String, Integer>();
+        for (int i = in.readInt(); i > 0; i--) {
+          testIdsToTestCounts.put(readString(in), in.readInt());
+        }
+        if (getRunInfo(runId) != null) {
+          super.addRunTestIdData(runId, testIdsToTestCounts);
+        }
+        break;
+      case TEST:
+        runId = in.readLong();
+        Test test = readTest(in, runId);
+        // writes can trail the deletion of their Run
+        if (getRunInfo(runId) != null) {
+          restoreTest(test);
+        }
+        break;
+      case COMPLETION:
+        super.createCompletionRecordIfNotAlreadyPresent(in.readLong());
+        break;
+      case DURATIONS:
+        String suiteId = readString(in);
+        runId = in.readLong();
+        Map<String, Long> durations = new HashMap<String, Long>();
+        for (int i = in.readInt(); i > 0; i--) {
+          durations.put(readString(in), in.readLong());
+        }
+        super.recordTestDurations(suiteId, runId, durations);
+        break;
+      case PLANNED_TEST_IDS:
+        runId = in.readLong();
+        int chunk = in.readInt();
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        if (getRunInfo(runId) != null) {
+          putPlannedTestIds(runId, chunk, TestIdCodec.decodeList(encoded));
+        }
+        break;
+      case DELETE:
+        super.deleteRun(readRunInfo(in), Long.MAX_VALUE);
+        break;
+      default:
+        throw new IOException("Unknown record type " + type);
+    }
+  }
+
+  private static RecordWriter newRecord(byte type) {
+    RecordWriter out = new RecordWriter();
+    out.writeByte(type);
+    return out;
+  }
+
+  private static byte[] sealedSegmentsRecord(Set<Long> numbers) {
+    RecordWriter out = newRecord(SEALED_SEGMENTS);
+    out.writeInt(numbers.size());
+    for (long number : numbers) {
+      out.writeLong(number);
+    }
+    return out.toRecord();
+  }
+
+  private static byte[] runIdsRecord(long nextRunId) {
+    RecordWriter out = newRecord(RUN_IDS);
+    out.writeLong(nextRunId);
+    return out.toRecord();
+  }
+
+  private static byte[] runRecord(byte type, RunInfo info) {
+    RecordWriter out = newRecord(type);
+    out.writeLong(info.getRunId());
+    out.writeString(info.getSuiteId());
+    out.writeLong(info.getCreated().getTime());
+    out.writeString(info.getStatus().name());
+    RunStatusCounts counts = info.getStatusCounts();
+    out.writeInt(counts.getNumTestsStarted());
+    out.writeInt(counts.getNumTestsPassed());
+    out.writeInt(counts.getNumTestsFailed());
+    out.writeInt(counts.getNumTestsTooSlow());
+    out.writeInt(counts.getNumSubtestsStarted());
+    out.writeInt(counts.getNumSubtestsPassed());
+    out.writeInt(counts.getNumSubtestsFailed());
+    out.writeInt(counts.getNumSubtestsTooSlow());
+    return out.toRecord();
+  }
+
+  private static RunInfo readRunInfo(DataInputStream in) throws IOException {
+    long runId = in.readLong();
+    String suiteId = readString(in);
+    Date created = new Date(in.readLong());
+    TestStatus status = TestStatus.valueOf(readString(in));
+    RunStatusCounts counts = new RunStatusCounts(in.readInt(), in.readInt(), in.readInt(),
+                                                 in.readInt(), in.readInt(), in.readInt(),
+                                                 in.readInt(), in.readInt());
+    return new RunInfo(runId, suiteId, created, status, counts);
+  }
+
+  private static byte[] planRecord(RunPlan plan, int numTests, int numTestEntities) {
+    RecordWriter out = newRecord(PLAN);
+    out.writeLong(plan.getRunId());
+    out.writeString(plan.getSuiteId());
+    out.writeLong(plan.getDurationsRunId());
+    out.writeInt(plan.getCursor());
+    out.writeInt(plan.getNumTests());
+    out.writeInt(plan.getNumTestEntities());
+    out.writeBoolean(plan.isFinished());
+    out.writeInt(numTests);
+    out.writeInt(numTestEntities);
+    return out.toRecord();
+  }
+
+  private static byte[] testIdsRecord(long runId, Map<String, Integer> testIdsToTestCounts) {
+    RecordWriter out = newRecord(TEST_IDS);
+    out.writeLong(runId);
+    out.writeInt(testIdsToTestCounts.size());
+    for (Map.Entry<String, Integer> entry : testIdsToTestCounts.entrySet()) {
+      out.writeString(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+    return out.toRecord();
+  }
+
+  private static byte[] testRecord(long runId, Test test) {
+    RecordWriter out = newRecord(TEST);
+    out.writeLong(runId);
+    out.writeString(test.getName());
+    out.writeLong(test.getNumTests());
+    out.writeDate(test.getStartTime());
+    out.writeDate(test.getEndTime());
+    out.writeString(test.getStatus().name());
+    out.writeInt(test.getNumContinuations());
+    out.writeInt(test.getAttempt());
+    out.writeDate(test.getLeaseExpiry());
+    out.writeInt(test.getSuccesses().size());
+    for (String success : test.getSuccesses()) {
+      out.writeString(success);
+    }
+    out.writeInt(test.getFailures().size());
+    for (Failure f : test.getFailures()) {
+      out.writeString(f.getId());
+      out.writeString(f.getFailureMsg());
+      out.writeString(f.getFailureData());
+    }
+    return out.toRecord();
+  }
+
+  private static Test readTest(DataInputStream in, long runId) throws IOException {
+    Test test = new Test(readString(in), new Run(runId, null, null, null), in.readLong());
+    test.setStartTime(readDate(in));
+    test.setEndTime(readDate(in));
+    test.setStatus(TestStatus.valueOf(readString(in)));
+    test.setNumContinuations(in.readInt());
+    test.setAttempt(in.readInt());
+    test.setLeaseExpiry(readDate(in));
+    for (int i = in.readInt(); i > 0; i--) {
+      test.getSuccesses().add(readString(in));
+    }
+    for (int i = in.readInt(); i > 0; i--) {
+      test.getFailures().add(new Failure(readString(in), readString(in), readString(in)));
+    }
+    return test;
+  }
+
+  private static byte[] plannedTestIdsRecord(long runId, int chunk, List<TestId> testIds) {
+    RecordWriter out = newRecord(PLANNED_TEST_IDS);
+    out.writeLong(runId);
+    out.writeInt(chunk);
+    out.writeBytes(TestIdCodec.encode(testIds));
+    return out.toRecord();
+  }
+
+  private static byte[] completionRecord(long runId) {
+    RecordWriter out = newRecord(COMPLETION);
+    out.writeLong(runId);
+    return out.toRecord();
+  }
+
+  private static byte[] durationsRecord(String suiteId, long runId, Map<String, Long> durations) {
+    RecordWriter out = newRecord(DURATIONS);
+    out.writeString(suiteId);
+    out.writeLong(runId);
+    out.writeInt(durations.size());
+    for (Map.Entry<String, Long> entry : durations.entrySet()) {
+      out.writeString(entry.getKey());
+      out.writeLong(entry.getValue());
+    }
+    return out.toRecord();
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  private static Date readDate(DataInputStream in) throws IOException {
+    return in.readBoolean() ? new Date(in.readLong()) : null;
+  }
+
+  /**
+   * Builds the payload of a record and frames it with its length and
+   * checksum.  Strings can be longer than {@link DataOutputStream#writeUTF}
+   * allows so we write them ourselves.
+   */
+  private static final class RecordWriter {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    private void writeByte(int b) {
+      try {
+        out.writeByte(b);
+      } catch (IOException e) {
+        // can't happen with a ByteArrayOutputStream
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeInt(int i) {
+      try {
+        out.writeInt(i);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeLong(long l) {
+      try {
+        out.writeLong(l);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeBoolean(boolean b) {
+      try {
+        out.writeBoolean(b);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeString(String s) {
+      try {
+        if (s == null) {
+          out.writeInt(-1);
+        } else {
+          byte[] utf8 = s.getBytes("UTF-8");
+          out.writeInt(utf8.length);
+          out.write(utf8);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeBytes(byte[] b) {
+      try {
+        out.writeInt(b.length);
+        out.write(b);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private void writeDate(Date date) {
+      writeBoolean(date != null);
+      if (date != null) {
+        writeLong(date.getTime());
+      }
+    }
+
+    private byte[] toRecord() {
+      return frame(bytes.toByteArray());
+    }
+  }
+
+  /**
+   * Puts the length and the checksum of a record in front of its payload.
+   */
+  private static byte[] frame(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 8);
+    DataOutputStream recordOut = new DataOutputStream(record);
+    try {
+      recordOut.writeInt(payload.length);
+      recordOut.writeInt((int) crc.getValue());
+      recordOut.write(payload);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return record.toByteArray();
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Helpers for {@link Future Futures}.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class Futures {
+
+  private Futures() {}
+
+  /**
+   * Returns a Future that is already done, for async methods that have
+   * nothing left to wait for.
+   */
+  static Future<Void> done() {
+    FutureTask<Void> done = new FutureTask<Void>(new Runnable() {
+      public void run() {
+      }
+    }, null);
+    done.run();
+    return done;
+  }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
+import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
+import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
+import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
+import com.google.appengine.testing.cloudcover.spi.TestHarnessConfig;
+import com.google.appengine.testing.cloudcover.spi.TestId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A {@link TestHarnessDao} that keeps everything in memory, for local
+ * developer runs and smoke runs where datastore round trips are pure
+ * overhead.  Everything is lost when the instance goes away, and since
+ * tasks can only see the runs of the instance they land on, this is only
+ * useful when a single instance does all the work.
+ * <p>
+ * Each Run keeps its Tests in a concurrent map of its own and each Test is
+ * guarded by its own lock, so Tests never wait for each other.  The Run
+ * counts its finished Tests as they finish, so checking whether a Run is
+ * complete doesn't look at its Tests.  Tests are copied on the way in and
+ * on the way out, so callers can't change what's stored behind our back.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class InMemoryTestHarnessDao implements TestHarnessDao {
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final String testRunnerConfigClass;
+  private final AtomicLong nextRunId = new AtomicLong(1);
+  private final ConcurrentMap<Long, RunRecord> runs = new ConcurrentHashMap<Long, RunRecord>();
+  // run list entries keyed like the datastore run index: suite id, inverted
+  // creation time, run id
+  private final ConcurrentNavigableMap<String, RunInfo> runsBySuite =
+      new ConcurrentSkipListMap<String, RunInfo>();
+  // the same entries without the suite id in front
+  private final ConcurrentNavigableMap<String, RunInfo> allRuns =
+      new ConcurrentSkipListMap<String, RunInfo>();
+  private final ConcurrentMap<Long, Boolean> completionRecords =
+      new ConcurrentHashMap<Long, Boolean>();
+  private final ConcurrentMap<String, Long> latestDurationsRunIds =
+      new ConcurrentHashMap<String, Long>();
+  private final ConcurrentMap<Long, Map<String, Long>> testDurations =
+      new ConcurrentHashMap<Long, Map<String, Long>>();
+
+  public InMemoryTestHarnessDao() {
+    this.testRunnerConfigClass = null;
+  }
+
+  public InMemoryTestHarnessDao(TestHarnessConfig config) {
+    this.testRunnerConfigClass = config.getTestHarness().getClass().getName();
+  }
+
+  public Run newRun(String suiteId) {
+    long runId = nextRunId.getAndIncrement();
+    Date created = new Date();
+    long durationsRunId = suiteId == null ? 0 : getLatestDurationsRunId(suiteId);
+    RunRecord runRecord = new RunRecord(runId, suiteId, created, durationsRunId);
+    runs.put(runId, runRecord);
+    putRunInfo(runRecord, new RunInfo(runId, suiteId, created, TestStatus.IN_PROGRESS,
+                                      new RunStatusCounts()));
+    return new Run(runId, testRunnerConfigClass, created, null);
+  }
+
+  public void updateRun(Run run) {
+    RunRecord runRecord = getRunRecord(run.getId());
+    synchronized (runRecord) {
+      runRecord.numTests = run.getNumTests();
+      runRecord.numTestEntities = run.getNumTestEntities();
+    }
+  }
+
+  public void recordRunCompletion(long runId, TestStatus status, RunStatusCounts counts) {
+    RunRecord runRecord = getRunRecord(runId);
+    putRunInfo(runRecord,
+               new RunInfo(runId, runRecord.suiteId, runRecord.created, status, counts));
+  }
+
+  public RunList getRuns(String suiteId, String cursor, int limit) {
+    NavigableMap<String, RunInfo> range = allRuns;
+    if (suiteId != null) {
+      range = runsBySuite.subMap(suiteId + ":", true, suiteId + ";", false);
+    }
+    if (cursor != null) {
+      range = range.tailMap(cursor, false);
+    }
+    List<RunInfo> result = new ArrayList<RunInfo>();
+    String lastKey = null;
+    for (Map.Entry<String, RunInfo> entry : range.entrySet()) {
+      if (result.size() == limit) {
+        break;
+      }
+      result.add(entry.getValue());
+      lastKey = entry.getKey();
+    }
+    return new RunList(result, result.size() == limit ? lastKey : null);
+  }
+
+  public boolean deleteRun(RunInfo run, long stopAt) {
+    long runId = run.getRunId();
+    runs.remove(runId);
+    completionRecords.remove(runId);
+    if (run.getSuiteId() == null || getLatestDurationsRunId(run.getSuiteId()) != runId) {
+      testDurations.remove(runId);
+    }
+    runsBySuite.remove(buildRunIndexKey(run));
+    allRuns.remove(buildAllRunsKey(run));
+    return true;
+  }
+
+  private void putRunInfo(RunRecord runRecord, RunInfo info) {
+    runRecord.info = info;
+    runsBySuite.put(buildRunIndexKey(info), info);
+    allRuns.put(buildAllRunsKey(info), info);
+  }
+
+  private static String buildRunIndexKey(RunInfo info) {
+    return (info.getSuiteId() == null ? "" : info.getSuiteId()) + ":" + buildAllRunsKey(info);
+  }
+
+  private static String buildAllRunsKey(RunInfo info) {
+    long invertedCreated = Long.MAX_VALUE - info.getCreated().getTime();
+    // zero-padded so the string order of the keys is the numeric order
+    return String.format("%019d", invertedCreated) + ":" + String.format("%019d", info.getRunId());
+  }
+
+  public Run getRunById(long runId, boolean loadTestIdData) {
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord == null) {
+      return null;
+    }
+    Map<String, Integer> testIdsToTestCounts = null;
+    if (loadTestIdData) {
+      testIdsToTestCounts = new HashMap<String, Integer>(runRecord.testIdData);
+    }
+    Run run = new Run(runId, testRunnerConfigClass, runRecord.created, testIdsToTestCounts);
+    synchronized (runRecord) {
+      run.setNumTests(runRecord.numTests);
+      run.setNumTestEntities(runRecord.numTestEntities);
+    }
+    return run;
+  }
+
+  public Test claimTest(Run run, TestId testId, int continuation, long leaseMillis)
+      throws TestAlreadyExistsException {
+    RunRecord runRecord = getRunRecord(run.getId());
+    TestRecord testRecord = getOrCreateTestRecord(runRecord, testId.getTestId());
+    Date now = new Date();
+    synchronized (testRecord) {
+      Test test;
+      boolean created = testRecord.test == null;
+      if (created && continuation >= 0) {
+        // a continuation of a Test that is gone, most likely with its Run
+        return null;
+      }
+      if (created) {
+        test = new Test(testId.getTestId(), run, testId.getNumSubtests());
+      } else {
+        test = testRecord.copyTest();
+        if (test.getStatus() != TestStatus.IN_PROGRESS
+            || (continuation >= 0 && test.getNumContinuations() != continuation)
+            || (test.getLeaseExpiry() != null && test.getLeaseExpiry().after(now))) {
+          // finished, or somebody else is running it
+          throw new TestAlreadyExistsException(test);
+        }
+      }
+      test.setAttempt(test.getAttempt() + 1);
+      test.setLeaseExpiry(new Date(now.getTime() + leaseMillis));
+      beforeTestWrite(test);
+      if (created) {
+        runRecord.addCounts(RunStatusCounts.forStartedTest(test));
+      }
+      testRecord.write(test);
+      return test;
+    }
+  }
+
+  public void updateTest(Test test) {
+    RunRecord runRecord = getRunRecord(test.getRun().getId());
+    TestRecord testRecord = getOrCreateTestRecord(runRecord, test.getName());
+    synchronized (testRecord) {
+      if (testRecord.test != null && testRecord.test.getAttempt() > test.getAttempt()) {
+        logger.warning("Dropping results of attempt " + test.getAttempt() + " of test "
+                       + test.getName() + " in run " + runRecord.id + ", attempt "
+                       + testRecord.test.getAttempt() + " has taken over");
+        return;
+      }
+      beforeTestWrite(test);
+      write(runRecord, testRecord, test);
+    }
+  }
+
+  // guarded by the TestRecord
+  private static void write(RunRecord runRecord, TestRecord testRecord, Test test) {
+    boolean wasInProgress =
+        testRecord.test == null || testRecord.test.getStatus() == TestStatus.IN_PROGRESS;
+    testRecord.write(test);
+    if (wasInProgress && test.getStatus() != TestStatus.IN_PROGRESS) {
+      runRecord.addCounts(RunStatusCounts.forFinishedTest(test));
+      runRecord.numTestsFinished.incrementAndGet();
+    }
+  }
+
+  public Future<Void> updateTestAsync(Test test) {
+    updateTest(test);
+    // there's nothing to wait for
+    return Futures.done();
+  }
+
+  public void flush() {
+    // everything is written right away
+  }
+
+  public void updateTests(List<Test> tests) {
+    for (Test test : tests) {
+      updateTest(test);
+    }
+  }
+
+  public List<Test> getTestsForRun(long runId) {
+    List<Test> result = new ArrayList<Test>();
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord != null) {
+      for (TestRecord testRecord : runRecord.tests.values()) {
+        Test test = testRecord.copyTestIfPresent();
+        if (test != null) {
+          result.add(test);
+        }
+      }
+    }
+    return result;
+  }
+
+  public Iterable<TestSummary> getTestSummariesForRun(long runId) {
+    List<TestSummary> result = new ArrayList<TestSummary>();
+    for (Test test : getTestsForRun(runId)) {
+      result.add(TestSummary.forTest(test));
+    }
+    return result;
+  }
+
+  public List<TestSummary> getTestsChangedSince(long runId, long sinceVersion) {
+    List<TestSummary> result = new ArrayList<TestSummary>();
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord != null) {
+      for (TestRecord testRecord : runRecord.tests.values()) {
+        synchronized (testRecord) {
+          if (testRecord.test != null && testRecord.statusVersion > sinceVersion) {
+            result.add(TestSummary.forTest(testRecord.test));
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  public List<Test> getTestShards(long runId, String className) {
+    String prefix = className + TestShards.SHARD_SEPARATOR;
+    List<Test> result = new ArrayList<Test>();
+    for (Test test : getTestsForRun(runId)) {
+      if (test.getName().startsWith(prefix)) {
+        result.add(test);
+      }
+    }
+    return result;
+  }
+
+  public boolean createCompletionRecordIfNotAlreadyPresent(long runId) {
+    return completionRecords.putIfAbsent(runId, Boolean.TRUE) == null;
+  }
+
+  public Failure getFailure(long runId, String testId, String failureId) {
+    TestRecord testRecord = getTestRecord(runId, testId);
+    if (testRecord == null) {
+      return null;
+    }
+    synchronized (testRecord) {
+      return testRecord.failures.get(failureId);
+    }
+  }
+
+  public List<FailureCluster> getFailureClusters(long runId, int maxExamplesPerCluster) {
+    Map<String, FailureCluster> clusters = new HashMap<String, FailureCluster>();
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord != null) {
+      // in test id order, like the datastore
+      Map<String, TestRecord> sorted = new TreeMap<String, TestRecord>(runRecord.tests);
+      for (Map.Entry<String, TestRecord> entry : sorted.entrySet()) {
+        TestRecord testRecord = entry.getValue();
+        synchronized (testRecord) {
+          for (Failure f : testRecord.failures.values()) {
+            String fingerprint = testRecord.fingerprints.get(f.getId());
+            FailureCluster cluster = clusters.get(fingerprint);
+            if (cluster == null) {
+              cluster = new FailureCluster(fingerprint);
+              cluster.setSummary(FailureFingerprints.summarize(f));
+              clusters.put(fingerprint, cluster);
+            }
+            cluster.addFailure(entry.getKey(), f.getId(), maxExamplesPerCluster);
+          }
+        }
+      }
+    }
+    List<FailureCluster> result = new ArrayList<FailureCluster>(clusters.values());
+    Collections.sort(result, FailureFingerprints.LARGEST_CLUSTER_FIRST);
+    return result;
+  }
+
+  public Test getTestById(long runId, String testId) {
+    TestRecord testRecord = getTestRecord(runId, testId);
+    return testRecord == null ? null : testRecord.copyTestIfPresent();
+  }
+
+  public boolean runIsComplete(long runId) {
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord == null) {
+      return false;
+    }
+    synchronized (runRecord) {
+      // -1 until planning has finished
+      return runRecord.numTestEntities >= 0
+             && runRecord.numTestsFinished.get() >= runRecord.numTestEntities;
+    }
+  }
+
+  public RunStatusCounts getRunStatusCounts(long runId) {
+    RunStatusCounts counts = new RunStatusCounts();
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord != null) {
+      synchronized (runRecord.counts) {
+        counts.add(runRecord.counts);
+      }
+    }
+    return counts;
+  }
+
+  public void addRunTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
+    getRunRecord(runId).testIdData.putAll(testIdsToTestCounts);
+  }
+
+  public RunPlan getRunPlan(long runId) {
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord == null) {
+      return null;
+    }
+    synchronized (runRecord) {
+      return runRecord.plan;
+    }
+  }
+
+  public boolean checkpointRunPlan(RunPlan current, RunPlan next,
+                                   Map<String, Integer> testIdsToTestCounts) {
+    RunRecord runRecord = getRunRecord(current.getRunId());
+    synchronized (runRecord) {
+      if (runRecord.plan.getCursor() != current.getCursor()) {
+        return false;
+      }
+      runRecord.testIdData.putAll(testIdsToTestCounts);
+      runRecord.plan = next;
+      if (next.isFinished()) {
+        // now that we know how many tests there are we can publish the totals
+        runRecord.numTests = next.getNumTests();
+        runRecord.numTestEntities = next.getNumTestEntities();
+      }
+      return true;
+    }
+  }
+
+  public void savePlannedTestIds(long runId, List<List<TestId>> chunks) {
+    for (int i = 0; i < chunks.size(); i++) {
+      putPlannedTestIds(runId, i, chunks.get(i));
+    }
+  }
+
+  public List<TestId> getPlannedTestIds(long runId, int chunk) {
+    RunRecord runRecord = runs.get(runId);
+    return runRecord == null ? null : runRecord.plannedTestIds.get(chunk);
+  }
+
+  void putPlannedTestIds(long runId, int chunk, List<TestId> testIds) {
+    getRunRecord(runId).plannedTestIds.put(
+        chunk, Collections.unmodifiableList(new ArrayList<TestId>(testIds)));
+  }
+
+  public long getLatestDurationsRunId(String suiteId) {
+    Long runId = latestDurationsRunIds.get(suiteId);
+    return runId == null ? 0 : runId;
+  }
+
+  public Map<String, Long> getTestDurations(long runId) {
+    Map<String, Long> durations = testDurations.get(runId);
+    return durations == null ?
+           new HashMap<String, Long>() : new HashMap<String, Long>(durations);
+  }
+
+  public void recordTestDurations(String suiteId, long runId,
+                                  Map<String, Long> classNamesToDurations) {
+    testDurations.put(runId, new HashMap<String, Long>(classNamesToDurations));
+    while (true) {
+      Long latest = latestDurationsRunIds.putIfAbsent(suiteId, runId);
+      if (latest == null || latest >= runId
+          || latestDurationsRunIds.replace(suiteId, latest, runId)) {
+        // a later run may already have recorded its durations
+        return;
+      }
+    }
+  }
+
+  /**
+   * Called with the lock of the Test held right before a claim or an update
+   * changes it, with what the Test is about to look like.  If this throws
+   * the Test is left as it was.  A subclass that persists changes writes
+   * the Test here, see {@link FileTestHarnessDao}.
+   */
+  void beforeTestWrite(Test test) {
+  }
+
+  /**
+   * The methods below let a subclass snapshot everything we have and put it
+   * back later, see {@link FileTestHarnessDao}.
+   */
+  long getNextRunId() {
+    return nextRunId.get();
+  }
+
+  void reserveRunIds(long next) {
+    while (true) {
+      long current = nextRunId.get();
+      if (current >= next || nextRunId.compareAndSet(current, next)) {
+        return;
+      }
+    }
+  }
+
+  List<Long> getRunIds() {
+    List<Long> runIds = new ArrayList<Long>(runs.keySet());
+    Collections.sort(runIds);
+    return runIds;
+  }
+
+  RunInfo getRunInfo(long runId) {
+    RunRecord runRecord = runs.get(runId);
+    return runRecord == null ? null : runRecord.info;
+  }
+
+  public boolean hasCompletionRecord(long runId) {
+    return completionRecords.containsKey(runId);
+  }
+
+  Map<String, Long> getLatestDurationsRunIds() {
+    return new HashMap<String, Long>(latestDurationsRunIds);
+  }
+
+  void restoreRun(RunInfo info) {
+    RunRecord runRecord = new RunRecord(info.getRunId(), info.getSuiteId(), info.getCreated(), 0);
+    runs.put(info.getRunId(), runRecord);
+    putRunInfo(runRecord, info);
+    reserveRunIds(info.getRunId() + 1);
+  }
+
+  void restoreRunPlan(RunPlan plan, int numTests, int numTestEntities) {
+    RunRecord runRecord = getRunRecord(plan.getRunId());
+    synchronized (runRecord) {
+      runRecord.plan = plan;
+      runRecord.numTests = numTests;
+      runRecord.numTestEntities = numTestEntities;
+    }
+  }
+
+  /**
+   * Writes the Test no matter which attempt it belongs to, counting it as
+   * started if we haven't seen it before.
+   */
+  void restoreTest(Test test) {
+    RunRecord runRecord = getRunRecord(test.getRun().getId());
+    TestRecord testRecord = getOrCreateTestRecord(runRecord, test.getName());
+    synchronized (testRecord) {
+      if (testRecord.test == null) {
+        runRecord.addCounts(RunStatusCounts.forStartedTest(test));
+      }
+      write(runRecord, testRecord, test);
+    }
+  }
+
+  private RunRecord getRunRecord(long runId) {
+    RunRecord runRecord = runs.get(runId);
+    if (runRecord == null) {
+      throw new IllegalArgumentException("No run with id " + runId);
+    }
+    return runRecord;
+  }
+
+  private TestRecord getTestRecord(long runId, String testId) {
+    RunRecord runRecord = runs.get(runId);
+    return runRecord == null ? null : runRecord.tests.get(testId);
+  }
+
+  private static TestRecord getOrCreateTestRecord(RunRecord runRecord, String testId) {
+    TestRecord testRecord = new TestRecord(runRecord.id);
+    TestRecord existing = runRecord.tests.putIfAbsent(testId, testRecord);
+    return existing == null ? testRecord : existing;
+  }
+
+  private static final class RunRecord {
+    private final long id;
+    private final String suiteId;
+    private final Date created;
+    private final ConcurrentMap<String, Integer> testIdData =
+        new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, TestRecord> tests =
+        new ConcurrentHashMap<String, TestRecord>();
+    private final ConcurrentMap<Integer, List<TestId>> plannedTestIds =
+        new ConcurrentHashMap<Integer, List<TestId>>();
+    private final AtomicInteger numTestsFinished = new AtomicInteger();
+    // guarded by itself
+    private final RunStatusCounts counts = new RunStatusCounts();
+    // the latest entry in the run list
+    private volatile RunInfo info;
+    // the rest is guarded by the RunRecord
+    private RunPlan plan;
+    // -1 until planning has finished
+    private int numTests = -1;
+    private int numTestEntities = -1;
+
+    private RunRecord(long id, String suiteId, Date created, long durationsRunId) {
+      this.id = id;
+      this.suiteId = suiteId;
+      this.created = created;
+      this.plan = new RunPlan(id, suiteId, durationsRunId, 0, 0, 0, false);
+    }
+
+    private void addCounts(RunStatusCounts delta) {
+      synchronized (counts) {
+        counts.add(delta);
+      }
+    }
+  }
+
+  /**
+   * Everything is guarded by the TestRecord.  The Test is {@code null} until
+   * the Test has been claimed or written.
+   */
+  private static final class TestRecord {
+    private final long runId;
+    private Test test;
+    private final Map<String, Failure> failures = new LinkedHashMap<String, Failure>();
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+    // when the Test was last written, see getTestsChangedSince()
+    private long statusVersion;
+
+    private TestRecord(long runId) {
+      this.runId = runId;
+    }
+
+    private void write(Test newTest) {
+      for (Failure f : newTest.getFailures()) {
+        // stubs of failures we already have don't replace them
+        if (!f.isStub()) {
+          failures.put(f.getId(), f);
+          fingerprints.put(f.getId(), FailureFingerprints.fingerprint(f));
+        }
+      }
+      test = copy(newTest, runId, failures);
+      statusVersion = System.currentTimeMillis();
+    }
+
+    private Test copyTest() {
+      return copy(test, runId, failures);
+    }
+
+    private synchronized Test copyTestIfPresent() {
+      return test == null ? null : copyTest();
+    }
+
+    private static Test copy(Test test, long runId, Map<String, Failure> failures) {
+      Test copy = new Test(test.getName(), new Run(runId, null, null, null), test.getNumTests());
+      copy.setStartTime(test.getStartTime());
+      copy.setEndTime(test.getEndTime());
+      copy.setStatus(test.getStatus());
+      copy.setNumContinuations(test.getNumContinuations());
+      copy.setAttempt(test.getAttempt());
+      copy.setLeaseExpiry(test.getLeaseExpiry());
+      copy.getSuccesses().addAll(test.getSuccesses());
+      for (Failure f : test.getFailures()) {
+        Failure full = failures.get(f.getId());
+        copy.getFailures().add(full == null ? f : full);
+      }
+      return copy;
+    }
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link RunChangeNotifier} that only knows about changes made by the
+ * instance it lives in.  Good enough for the dev appserver and tests, not
+ * for production where tasks run on whatever instance is available.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class InProcessRunChangeNotifier implements RunChangeNotifier {
+
+  private final Map<Long, Long> changeVersions = new HashMap<Long, Long>();
+
+  public synchronized void runChanged(long runId) {
+    changeVersions.put(runId, getChangeVersion(runId) + 1);
+    notifyAll();
+  }
+
+  public synchronized long getChangeVersion(long runId) {
+    Long changeVersion = changeVersions.get(runId);
+    return changeVersion == null ? 0 : changeVersion;
+  }
+
+  public synchronized long awaitChange(long runId, long changeVersion, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long current = getChangeVersion(runId);
+    while (current == changeVersion) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      wait(remaining);
+      current = getChangeVersion(runId);
+    }
+    return current;
+  }
+}
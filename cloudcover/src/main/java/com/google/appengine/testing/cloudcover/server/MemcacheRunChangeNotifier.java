@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * A {@link RunChangeNotifier} that keeps the change version of each Run in
+ * memcache so that changes made on any instance wake up waiters on every
+ * other instance.  There's no way to block on memcache so waiters poll the
+ * version.  They start out checking twice a second and back off to once
+ * every few seconds, so a twenty second wait costs about ten memcache reads
+ * and a change that follows a quiet spell is seen a few seconds late.  If
+ * memcache evicts a change version it starts over at 0, which waiters see as
+ * a change like any other.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class MemcacheRunChangeNotifier implements RunChangeNotifier {
+
+  private static final String KEY_PREFIX = "CloudCoverRunChange:";
+
+  private static final long MIN_CHECK_INTERVAL_MILLIS = 500;
+
+  private static final long MAX_CHECK_INTERVAL_MILLIS = 4000;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  public void runChanged(long runId) {
+    memcache.increment(KEY_PREFIX + runId, 1, 0L);
+  }
+
+  public long getChangeVersion(long runId) {
+    Long changeVersion = (Long) memcache.get(KEY_PREFIX + runId);
+    return changeVersion == null ? 0 : changeVersion;
+  }
+
+  public long awaitChange(long runId, long changeVersion, long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long current = getChangeVersion(runId);
+    long interval = MIN_CHECK_INTERVAL_MILLIS;
+    while (current == changeVersion) {
+      long remaining = deadline - System.currentTimeMillis();
+      if (remaining <= 0) {
+        break;
+      }
+      Thread.sleep(Math.min(remaining, interval));
+      interval = Math.min(interval * 2, MAX_CHECK_INTERVAL_MILLIS);
+      current = getChangeVersion(runId);
+    }
+    return current;
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+/**
+ * Lets requests wait for something about a Run to change instead of polling
+ * for it.  Every change bumps the change version of the Run, and waiters
+ * wake up as soon as the version differs from the one they last saw.  The
+ * change version says nothing about what changed, only that something did.
+ * <br>
+ * Implementations must have a public no-arg constructor so they can be
+ * selected with the {@code cloudcover.notifier.class} init parameter of
+ * {@link CloudCoverServiceImpl}.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public interface RunChangeNotifier {
+
+  /**
+   * Records that something about the Run uniquely identified by the given
+   * runId changed and wakes up anybody waiting for it.
+   */
+  void runChanged(long runId);
+
+  /**
+   * Returns the current change version of the Run uniquely identified by the
+   * given runId.
+   */
+  long getChangeVersion(long runId);
+
+  /**
+   * Blocks until the change version of the Run uniquely identified by the
+   * given runId differs from the given version or the timeout passes.
+   *
+   * @return the change version of the Run when we stopped waiting
+   */
+  long awaitChange(long runId, long changeVersion, long timeoutMillis)
+      throws InterruptedException;
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+
+/**
+ * The outcome of waiting for a Run to complete: the summary of the Run as
+ * of the end of the wait and whether or not the Run turned out to be
+ * complete.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public final class RunCompletion {
+
+  private final RunSummary summary;
+  private final boolean complete;
+
+  public RunCompletion(RunSummary summary, boolean complete) {
+    this.summary = summary;
+    this.complete = complete;
+  }
+
+  public RunSummary getSummary() {
+    return summary;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+}
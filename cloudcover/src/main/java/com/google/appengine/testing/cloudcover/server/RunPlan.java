@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+/**
+ * The checkpointed progress of the background task that schedules the tests
+ * belonging to a {@link com.google.appengine.testing.cloudcover.client.model.Run}.
+ * Planning happens in bounded chunks and the cursor is the number of test ids
+ * that have already been scheduled.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public final class RunPlan {
+
+  private final long runId;
+  private final String suiteId;
+  // the run whose test durations determine the order in which tests are
+  // scheduled, 0 if there is no such run
+  private final long durationsRunId;
+  private final int cursor;
+  // number of tests and test entities scheduled so far
+  private final int numTests;
+  private final int numTestEntities;
+  private final boolean finished;
+
+  public RunPlan(long runId, String suiteId, long durationsRunId, int cursor, int numTests,
+                 int numTestEntities, boolean finished) {
+    this.runId = runId;
+    this.suiteId = suiteId;
+    this.durationsRunId = durationsRunId;
+    this.cursor = cursor;
+    this.numTests = numTests;
+    this.numTestEntities = numTestEntities;
+    this.finished = finished;
+  }
+
+  /**
+   * Returns a new RunPlan that reflects the scheduling of another chunk.
+   */
+  public RunPlan advance(int numTestIdsInChunk, int numTestsInChunk, int numTestEntitiesInChunk,
+                         boolean lastChunk) {
+    return new RunPlan(runId, suiteId, durationsRunId, cursor + numTestIdsInChunk,
+                       numTests + numTestsInChunk, numTestEntities + numTestEntitiesInChunk,
+                       lastChunk);
+  }
+
+  public long getRunId() {
+    return runId;
+  }
+
+  public String getSuiteId() {
+    return suiteId;
+  }
+
+  public long getDurationsRunId() {
+    return durationsRunId;
+  }
+
+  public int getCursor() {
+    return cursor;
+  }
+
+  public int getNumTests() {
+    return numTests;
+  }
+
+  public int getNumTestEntities() {
+    return numTestEntities;
+  }
+
+  public boolean isFinished() {
+    return finished;
+  }
+}
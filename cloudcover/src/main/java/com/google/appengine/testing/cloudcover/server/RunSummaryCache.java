@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
+import com.google.appengine.testing.cloudcover.client.model.RunSummary;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches full RunSummaries so that everybody watching the same Run doesn't
+ * trigger a scan of all its Tests.  Summaries of Runs that are still going
+ * are keyed by the status aggregate of the Run, so a Test starting or
+ * finishing makes the cached summary unreachable.  The aggregate is only a
+ * hint though, so these summaries also expire after a little while.
+ * Summaries of complete Runs never change and are kept in memory as well as
+ * in memcache until they expire or the Run is evicted (see
+ * {@link #evict(long)}).
+ * <br>
+ * Concurrent misses for the same summary are coalesced: within an instance
+ * only one thread does the scan, and across instances whoever adds the load
+ * lock to memcache first does the scan while the others wait a little for
+ * the result to show up.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class RunSummaryCache {
+
+  private static final String KEY_PREFIX = "CloudCoverRunSummary:";
+
+  private static final int IN_PROGRESS_EXPIRATION_MILLIS = 30 * 1000;
+
+  private static final int COMPLETE_EXPIRATION_MILLIS = 24 * 60 * 60 * 1000;
+
+  // how long an eviction can take to reach the memory of other instances
+  private static final int COMPLETE_IN_MEMORY_EXPIRATION_MILLIS = 10 * 60 * 1000;
+
+  // how long a load lock keeps other instances waiting if its owner dies
+  private static final int LOAD_LOCK_EXPIRATION_MILLIS = 10 * 1000;
+
+  private static final int LOAD_WAIT_ATTEMPTS = 10;
+
+  private static final long LOAD_WAIT_INTERVAL_MILLIS = 250;
+
+  private static final int MAX_COMPLETE_SUMMARIES_IN_MEMORY = 50;
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
+
+  private final ConcurrentMap<String, FutureTask<RunSummary>> loadsInFlight =
+      new ConcurrentHashMap<String, FutureTask<RunSummary>>();
+
+  private final Map<String, CompleteSummary> completeSummaries = Collections.synchronizedMap(
+      new LinkedHashMap<String, CompleteSummary>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompleteSummary> eldest) {
+          return size() > MAX_COMPLETE_SUMMARIES_IN_MEMORY;
+        }
+      });
+
+  private static final class CompleteSummary {
+    private final RunSummary summary;
+    private final long expiresAt;
+
+    private CompleteSummary(RunSummary summary, long expiresAt) {
+      this.summary = summary;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Returns the cached summary of a complete Run, or {@code null} if the Run
+   * isn't known to be complete.
+   */
+  RunSummary getComplete(long runId, boolean loadTestIdData) {
+    String key = buildCompleteKey(runId, loadTestIdData);
+    CompleteSummary complete = completeSummaries.get(key);
+    if (complete != null && complete.expiresAt > System.currentTimeMillis()) {
+      return complete.summary;
+    }
+    RunSummary summary = (RunSummary) memcache.get(key);
+    if (summary != null) {
+      remember(key, summary);
+    } else if (complete != null) {
+      completeSummaries.remove(key);
+    }
+    return summary;
+  }
+
+  /**
+   * Caches the summary of a Run that is complete until it expires or the Run
+   * is evicted.
+   */
+  void putComplete(long runId, boolean loadTestIdData, RunSummary summary) {
+    String key = buildCompleteKey(runId, loadTestIdData);
+    remember(key, summary);
+    putInMemcache(key, summary, COMPLETE_EXPIRATION_MILLIS);
+  }
+
+  private void remember(String key, RunSummary summary) {
+    long expiresAt = System.currentTimeMillis() + COMPLETE_IN_MEMORY_EXPIRATION_MILLIS;
+    completeSummaries.put(key, new CompleteSummary(summary, expiresAt));
+  }
+
+  /**
+   * The summary of a big Run, especially one with test id data, can be
+   * bigger than memcache allows.  We'd rather not cache it than fail the
+   * request that loaded it.
+   */
+  private void putInMemcache(String key, RunSummary summary, int expirationMillis) {
+    try {
+      memcache.put(key, summary, Expiration.byDeltaMillis(expirationMillis));
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Unable to cache " + key, e);
+    }
+  }
+
+  /**
+   * Drops the cached summaries of a complete Run, on this instance and in
+   * memcache.  Other instances drop their in-memory copy within ten minutes.
+   * Summaries of a Run that is still going expire on their own soon enough.
+   */
+  void evict(long runId) {
+    for (boolean loadTestIdData : new boolean[] {false, true}) {
+      String key = buildCompleteKey(runId, loadTestIdData);
+      completeSummaries.remove(key);
+      memcache.delete(key);
+    }
+  }
+
+  /**
+   * Returns the cached summary of a Run with the given status aggregate,
+   * using the loader to build the summary if it isn't cached.
+   */
+  RunSummary get(long runId, boolean loadTestIdData, RunStatusCounts counts,
+                 Callable<RunSummary> loader) {
+    final String key = buildKey(runId, loadTestIdData, counts);
+    RunSummary summary = (RunSummary) memcache.get(key);
+    if (summary != null) {
+      return summary;
+    }
+    FutureTask<RunSummary> load = new FutureTask<RunSummary>(newLoad(key, loader));
+    FutureTask<RunSummary> existing = loadsInFlight.putIfAbsent(key, load);
+    if (existing != null) {
+      // somebody on this instance is already loading it
+      load = existing;
+    } else {
+      try {
+        load.run();
+      } finally {
+        loadsInFlight.remove(key);
+      }
+    }
+    try {
+      return load.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private Callable<RunSummary> newLoad(final String key, final Callable<RunSummary> loader) {
+    return new Callable<RunSummary>() {
+      public RunSummary call() throws Exception {
+        String lockKey = key + ":loading";
+        boolean locked = memcache.put(lockKey, Boolean.TRUE,
+                                      Expiration.byDeltaMillis(LOAD_LOCK_EXPIRATION_MILLIS),
+                                      MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+        if (!locked) {
+          RunSummary summary = waitForLoad(key);
+          if (summary != null) {
+            return summary;
+          }
+          logger.fine("Gave up waiting for " + key + ", loading it ourselves");
+        }
+        try {
+          RunSummary summary = loader.call();
+          if (summary != null) {
+            putInMemcache(key, summary, IN_PROGRESS_EXPIRATION_MILLIS);
+          }
+          return summary;
+        } finally {
+          if (locked) {
+            memcache.delete(lockKey);
+          }
+        }
+      }
+    };
+  }
+
+  private RunSummary waitForLoad(String key) throws InterruptedException {
+    for (int attempt = 0; attempt < LOAD_WAIT_ATTEMPTS; attempt++) {
+      Thread.sleep(LOAD_WAIT_INTERVAL_MILLIS);
+      RunSummary summary = (RunSummary) memcache.get(key);
+      if (summary != null) {
+        return summary;
+      }
+    }
+    return null;
+  }
+
+  private static String buildKey(long runId, boolean loadTestIdData, RunStatusCounts counts) {
+    return KEY_PREFIX + runId + ":" + loadTestIdData + ":"
+           + counts.getNumTestsStarted() + ":" + counts.getNumTestsFinished() + ":"
+           + counts.getNumSubtestsStarted() + ":" + counts.getNumSubtestsFinished();
+  }
+
+  private static String buildCompleteKey(long runId, boolean loadTestIdData) {
+    return KEY_PREFIX + runId + ":" + loadTestIdData + ":complete";
+  }
+}
@@ -16,12 +16,19 @@
 package com.google.appengine.testing.cloudcover.server;
 
 import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
 import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
 import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
 import com.google.appengine.testing.cloudcover.spi.TestId;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * @author Max Ross <max.ross@gmail.com>
@@ -29,15 +36,53 @@ import java.util.Map;
 public interface TestHarnessDao {
 
   /**
-   * Creates a new Run in the datastore
+   * Creates a new Run in the datastore and adds it to the run list as in
+   * progress.  The Run has no tests until it has been planned.  The Run
+   * remembers the most recent test durations recorded for the suite (see
+   * {@link RunPlan#getDurationsRunId()}) so that every chunk of the plan
+   * orders the tests the same way.
+   *
+   * @param suiteId The id of the suite the Run belongs to
    */
-  Run newRun();
+  Run newRun(String suiteId);
 
   /**
    * Updates an existing Run in the datastore
    */
   void updateRun(Run run);
 
+  /**
+   * Records the final status and counts of a completed Run in the run list.
+   */
+  void recordRunCompletion(long runId, TestStatus status, RunStatusCounts counts);
+
+  /**
+   * Returns a page of the run list, most recent Run first.
+   *
+   * @param suiteId The suite whose Runs to list, or {@code null} to list the
+   * Runs of all suites.  Runs that don't belong to a suite are listed under
+   * the empty suite id.
+   * @param cursor Where the page starts, as returned with the previous page,
+   * or {@code null} for the first page
+   * @param limit The maximum number of Runs to return
+   */
+  RunList getRuns(String suiteId, String cursor, int limit);
+
+  /**
+   * Deletes a Run along with everything that belongs to it: its Tests,
+   * failures, test id data, planned test ids, status aggregate and
+   * completion record.  The
+   * Run is deleted last, so a deletion that runs out of time can be
+   * finished by calling this again.  The test durations recorded for the
+   * Run are kept if they're the most recent durations of its suite.
+   *
+   * @param run The entry of the Run in the run list
+   * @param stopAt The time in milliseconds at which to stop deleting
+   * @return {@code true} if the Run is gone, {@code false} if we ran out of
+   * time
+   */
+  boolean deleteRun(RunInfo run, long stopAt);
+
   /**
    * Loads a Run from the datastore with optional test id data
    *
@@ -50,39 +95,117 @@ public interface TestHarnessDao {
   Run getRunById(long runId, boolean loadTestIdData);
 
   /**
-   * Creates a new Test in the datastore
+   * Claims a Test for an attempt to run it.  The attempt holds a lease on
+   * the Test that keeps everybody else from running it until the lease
+   * expires.  If the Test doesn't exist yet it is created and counted as
+   * started in the status aggregate of its Run.  If it exists, is still in
+   * progress and its lease has expired, the attempt that held the lease is
+   * presumed dead and the new attempt takes over: the Test keeps the results
+   * it already has and its attempt number goes up, so that results the dead
+   * attempt writes after all are dropped (see {@link Test#getAttempt()}).
    *
    * @param run The Run to which the Test belongs
-   * @param testId The unique id of the Test to create
-   * @return The newly created Test
-   * @throws TestAlreadyExistsException If a Test with the provided id already
-   * exists
+   * @param testId The unique id of the Test to claim
+   * @param continuation The number of continuations the Test must have for
+   * the claim to succeed, or -1 if any number will do
+   * @param leaseMillis How long the lease lasts
+   * @return The claimed Test, or {@code null} if a number of continuations
+   * was requested and the Test doesn't exist, since only a Test that has
+   * been started can be continued
+   * @throws TestAlreadyExistsException If the Test exists and can't be
+   * claimed because it is finished, somebody else holds the lease, or it
+   * doesn't have the requested number of continuations
    */
-  Test newTest(Run run, TestId testId) throws TestAlreadyExistsException;
+  Test claimTest(Run run, TestId testId, int continuation, long leaseMillis)
+      throws TestAlreadyExistsException;
 
   /**
-   * Updates an existing Test in the datastore
+   * Updates an existing Test in the datastore.  If the update finishes the
+   * Test the status aggregate of its Run is updated.  Nothing is written if
+   * a later attempt has claimed the Test in the meantime.
    */
   void updateTest(Test test);
 
+  /**
+   * Starts updating an existing Test in the datastore and returns without
+   * waiting for the write, so the caller can do other work in the meantime.
+   * The update is only guaranteed to happen once the returned Future has
+   * been waited on.  Otherwise the same as {@link #updateTest(Test)}.
+   */
+  Future<Void> updateTestAsync(Test test);
+
+  /**
+   * Makes sure that every Test this thread passed to
+   * {@link #updateTest(Test)} or {@link #updateTests(List)} has been
+   * written.  DAOs that write right away have nothing to do.
+   */
+  void flush();
+
+  /**
+   * Updates a batch of existing Tests in the datastore.  Unlike
+   * {@link #updateTest(Test)} the batch is not written atomically, but the
+   * failures of every Test are written before the Test itself.
+   */
+  void updateTests(List<Test> tests);
+
   /**
    * Return all Tests associated with the Run uniquely identified by the given
    * runId.
    */
   List<Test> getTestsForRun(long runId);
 
+  /**
+   * Return summaries of all Tests associated with the Run uniquely identified
+   * by the given runId.  Much cheaper than {@link #getTestsForRun(long)}
+   * because only the status of each Test is read and the summaries are
+   * produced as the caller iterates, so use this whenever the status is all
+   * you need.
+   */
+  Iterable<TestSummary> getTestSummariesForRun(long runId);
+
+  /**
+   * Return summaries of all Tests of the Run uniquely identified by the given
+   * runId that were written after the given status version.  Every write of a Test
+   * stamps it with the current time in milliseconds, which is its status
+   * version.  Tests written before status versions were introduced are never
+   * returned.
+   */
+  List<TestSummary> getTestsChangedSince(long runId, long sinceVersion);
+
+  /**
+   * Return all the shards of the given class that have started in the Run
+   * uniquely identified by the given runId.
+   */
+  List<Test> getTestShards(long runId, String className);
+
   /**
    * @return {@code true} if the completion record was created, {@code false}
    * otherwise.
    */
   boolean createCompletionRecordIfNotAlreadyPresent(long runId);
 
+  /**
+   * @return {@code true} if the completion record of the Run uniquely
+   * identified by the given runId has been created, {@code false} otherwise.
+   */
+  boolean hasCompletionRecord(long runId);
+
   /**
    * Returns the Failure uniquely identified by the given runId, testId,
    * and failureId, or {@code null} if no such Failure exists.
    */
   Failure getFailure(long runId, String testId, String failureId);
 
+  /**
+   * Returns the failures of the Run uniquely identified by the given runId
+   * grouped by fingerprint (see {@link FailureFingerprints}), largest cluster
+   * first.
+   *
+   * @param maxExamplesPerCluster The maximum number of failures to return
+   * as examples of each cluster
+   */
+  List<FailureCluster> getFailureClusters(long runId, int maxExamplesPerCluster);
+
   /**
    * Returns the Test uniquely identified by the given runId and testId, or
    * {@code null} if no such Test exists.
@@ -95,7 +218,84 @@ public interface TestHarnessDao {
   boolean runIsComplete(long runId);
 
   /**
-   * Writes test id data to the datastore. 
+   * Returns the status aggregate of the Run uniquely identified by the given
+   * runId.  The aggregate is maintained as Tests start and finish, so reading
+   * it is cheap no matter how many Tests the Run has.  It is only a hint
+   * though: a Test whose aggregate update got lost is missing, and a Test
+   * that was finished more than once may be counted twice.  Use
+   * {@link #runIsComplete(long)} to be sure a Run is complete.
+   */
+  RunStatusCounts getRunStatusCounts(long runId);
+
+  /**
+   * Writes test id data to the datastore.  The provided test ids are added
+   * to any test id data that was previously written for the Run.  Writing
+   * the same test id data again, as a retried task does, replaces what was
+   * written the first time.  Planning writes test id data as part of
+   * {@link #checkpointRunPlan}, so this is only needed for test id data that
+   * arrives some other way.
    */
   void addRunTestIdData(long runId, Map<String, Integer> testIdsToTestCounts);
+
+  /**
+   * Returns the planning progress of the Run uniquely identified by the given
+   * runId, or {@code null} if no such Run exists.
+   */
+  RunPlan getRunPlan(long runId);
+
+  /**
+   * Transactionally replaces the planning progress of a Run and adds the
+   * test id data of the chunk that was just planned.  If planning is
+   * finished the number of tests and test entities of the Run are updated as
+   * well.  Test id data is split across as many entities as it takes, so
+   * there is no limit on the number of tests in a Run.
+   *
+   * @param current The planning progress on which {@code next} is based
+   * @param next The new planning progress
+   * @param testIdsToTestCounts The test id data of the planned chunk
+   * @return {@code true} if the checkpoint was written, {@code false} if the
+   * stored cursor no longer matches the cursor of {@code current}, which means
+   * somebody else already checkpointed this chunk.
+   */
+  boolean checkpointRunPlan(RunPlan current, RunPlan next,
+                            Map<String, Integer> testIdsToTestCounts);
+
+  /**
+   * Saves the order in which the tests of a Run are to be scheduled, split
+   * into the chunks that planning schedules one at a time, so that the test
+   * ids only have to be computed once per Run.  Saving the same order more
+   * than once is harmless.
+   *
+   * @param runId The unique id of the Run
+   * @param chunks The test ids of each chunk, in order
+   */
+  void savePlannedTestIds(long runId, List<List<TestId>> chunks);
+
+  /**
+   * Returns the test ids of the given chunk of the order saved with
+   * {@link #savePlannedTestIds(long, List)}, or {@code null} if no order has
+   * been saved for the Run or the order has fewer chunks.
+   */
+  List<TestId> getPlannedTestIds(long runId, int chunk);
+
+  /**
+   * Returns the id of the most recent Run of the given suite for which test
+   * durations were recorded, or 0 if no durations have been recorded.
+   */
+  long getLatestDurationsRunId(String suiteId);
+
+  /**
+   * Returns the estimated durations in milliseconds of the test classes of
+   * the suite as they were recorded when the Run uniquely identified by the
+   * given runId completed, keyed by class name.  Returns an empty map if no
+   * durations were recorded for the Run.
+   */
+  Map<String, Long> getTestDurations(long runId);
+
+  /**
+   * Records the estimated durations of the test classes of the suite upon
+   * completion of a Run and makes them the most recent durations of the
+   * suite unless durations of a later Run have already been recorded.
+   */
+  void recordTestDurations(String suiteId, long runId, Map<String, Long> classNamesToDurations);
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.spi.TestId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding for lists of {@link TestId TestIds}, used for the
+ * test id manifest of a Run and for the payloads of tasks that carry test
+ * ids.  The format is:
+ * <pre>
+ *   version     1 byte
+ *   count       varint
+ *   count times:
+ *     shared    varint  number of chars shared with the previous test id
+ *     length    varint  number of bytes in the rest of the test id
+ *     rest      utf-8 bytes
+ *     subtests  varint
+ * </pre>
+ * Test ids are mostly class names, so consecutive ids share their package
+ * and we only write the part that differs.  Maps are written in key order
+ * to get the most out of this.  Decoding works on a stream so the whole
+ * manifest never needs to be turned into objects at once.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class TestIdCodec {
+
+  static final int VERSION = 1;
+
+  private static final String CHARSET = "UTF-8";
+
+  private TestIdCodec() {}
+
+  /**
+   * Encodes the given test ids in iteration order.
+   */
+  static byte[] encode(Collection<TestId> testIds) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      out.write(VERSION);
+      writeVarint(out, testIds.size());
+      String previous = "";
+      for (TestId testId : testIds) {
+        String current = testId.getTestId();
+        int shared = sharedPrefixLength(previous, current);
+        byte[] rest = current.substring(shared).getBytes(CHARSET);
+        writeVarint(out, shared);
+        writeVarint(out, rest.length);
+        out.write(rest);
+        writeVarint(out, testId.getNumSubtests());
+        previous = current;
+      }
+    } catch (IOException e) {
+      // we're writing to memory
+      throw new RuntimeException(e);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Encodes the given map of test ids to test counts in key order.
+   */
+  static byte[] encode(Map<String, Integer> testIdsToTestCounts) {
+    List<TestId> testIds = new ArrayList<TestId>(testIdsToTestCounts.size());
+    Map<String, Integer> sorted = new TreeMap<String, Integer>(testIdsToTestCounts);
+    for (Map.Entry<String, Integer> entry : sorted.entrySet()) {
+      testIds.add(new TestId(entry.getKey(), entry.getValue()));
+    }
+    return encode(testIds);
+  }
+
+  static List<TestId> decodeList(InputStream in) throws IOException {
+    Reader reader = new Reader(in);
+    List<TestId> testIds = new ArrayList<TestId>(reader.size());
+    while (reader.hasNext()) {
+      testIds.add(reader.next());
+    }
+    return testIds;
+  }
+
+  static List<TestId> decodeList(byte[] bytes) {
+    try {
+      return decodeList(new ByteArrayInputStream(bytes));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static Map<String, Integer> decodeMap(InputStream in) throws IOException {
+    Reader reader = new Reader(in);
+    Map<String, Integer> testIdsToTestCounts = new HashMap<String, Integer>(reader.size() * 2);
+    while (reader.hasNext()) {
+      TestId testId = reader.next();
+      testIdsToTestCounts.put(testId.getTestId(), testId.getNumSubtests());
+    }
+    return testIdsToTestCounts;
+  }
+
+  static Map<String, Integer> decodeMap(byte[] bytes) {
+    try {
+      return decodeMap(new ByteArrayInputStream(bytes));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads encoded test ids from a stream one at a time.
+   */
+  static final class Reader {
+    private final InputStream in;
+    private final int size;
+    private int numRead;
+    private String previous = "";
+
+    Reader(InputStream in) throws IOException {
+      this.in = in;
+      int version = in.read();
+      if (version != VERSION) {
+        throw new IOException("Unsupported test id encoding version: " + version);
+      }
+      this.size = readVarint(in);
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean hasNext() {
+      return numRead < size;
+    }
+
+    TestId next() throws IOException {
+      int shared = readVarint(in);
+      byte[] rest = new byte[readVarint(in)];
+      readFully(in, rest);
+      int numSubtests = readVarint(in);
+      if (shared > previous.length()) {
+        throw new IOException("Corrupt test id encoding at entry " + numRead);
+      }
+      String current = previous.substring(0, shared) + new String(rest, CHARSET);
+      previous = current;
+      numRead++;
+      return new TestId(current, numSubtests);
+    }
+  }
+
+  private static int sharedPrefixLength(String s1, String s2) {
+    int max = Math.min(s1.length(), s2.length());
+    int i = 0;
+    while (i < max && s1.charAt(i) == s2.charAt(i)) {
+      i++;
+    }
+    // don't split a surrogate pair
+    if (i > 0 && Character.isHighSurrogate(s1.charAt(i - 1))) {
+      i--;
+    }
+    return i;
+  }
+
+  static void writeVarint(OutputStream out, int value) throws IOException {
+    if (value < 0) {
+      throw new IllegalArgumentException("Cannot encode negative value " + value);
+    }
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readVarint(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        throw new EOFException();
+      }
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private static void readFully(InputStream in, byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      int read = in.read(bytes, offset, bytes.length - offset);
+      if (read == -1) {
+        throw new EOFException();
+      }
+      offset += read;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureData;
+import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.spi.SubtestListener;
+import com.google.apphosting.api.DeadlineExceededException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@link SubtestListener} that adds the outcome of each subtest to a
+ * running {@link Test} and writes the Test so that partial results survive
+ * a task that gets killed and show up in the ui while the Test is still
+ * running.  Writes happen at most once per flush interval.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+final class ThrottledSubtestWriter implements SubtestListener {
+
+  private final Logger logger = Logger.getLogger(getClass().getName());
+
+  private final TestHarnessDao dao;
+  private final RunChangeNotifier runChangeNotifier;
+  private final Test test;
+  private final long flushInterval;
+  private long lastFlush;
+
+  ThrottledSubtestWriter(TestHarnessDao dao, RunChangeNotifier runChangeNotifier, Test test,
+                         long flushInterval) {
+    this.dao = dao;
+    this.runChangeNotifier = runChangeNotifier;
+    this.test = test;
+    this.flushInterval = flushInterval;
+    this.lastFlush = System.currentTimeMillis();
+  }
+
+  public void onSubtestSuccess(String subtestName) {
+    test.getSuccesses().add(subtestName);
+    maybeFlush();
+  }
+
+  public void onSubtestFailure(FailureData failureData) {
+    test.getFailures().add(new Failure(
+        failureData.getShortName(), failureData.getFailureMsg(), failureData.getData()));
+    maybeFlush();
+  }
+
+  private void maybeFlush() {
+    long now = System.currentTimeMillis();
+    if (now - lastFlush < flushInterval) {
+      return;
+    }
+    lastFlush = now;
+    try {
+      dao.updateTest(test);
+      runChangeNotifier.runChanged(test.getRun().getId());
+    } catch (DeadlineExceededException dee) {
+      throw dee;
+    } catch (RuntimeException e) {
+      // the results will be written when the test finishes
+      logger.log(Level.WARNING, "Unable to write partial results of test " + test.getName(), e);
+    }
+  }
+}
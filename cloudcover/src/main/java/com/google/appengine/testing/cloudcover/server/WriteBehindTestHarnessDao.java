@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.server;
+
+import com.google.appengine.testing.cloudcover.client.model.Failure;
+import com.google.appengine.testing.cloudcover.client.model.FailureCluster;
+import com.google.appengine.testing.cloudcover.client.model.Run;
+import com.google.appengine.testing.cloudcover.client.model.RunInfo;
+import com.google.appengine.testing.cloudcover.client.model.RunList;
+import com.google.appengine.testing.cloudcover.client.model.RunStatusCounts;
+import com.google.appengine.testing.cloudcover.client.model.Test;
+import com.google.appengine.testing.cloudcover.client.model.TestStatus;
+import com.google.appengine.testing.cloudcover.client.model.TestSummary;
+import com.google.appengine.testing.cloudcover.spi.TestId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+/**
+ * A {@link TestHarnessDao} that buffers finished Tests and writes them in
+ * batches.  Finished Tests from every request on the instance go into the
+ * same batch, and {@link #flush()} waits for the batch to fill up for a
+ * short window before the first request to flush writes the whole batch
+ * with {@link TestHarnessDao#updateTests(List)}.  The other requests wait
+ * for that write, so once {@link #flush()} returns the Tests of the calling
+ * thread are in the datastore, failures and all.  Tests that are still in
+ * progress are written right away.  Everything else goes straight to the
+ * delegate.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public class WriteBehindTestHarnessDao implements TestHarnessDao {
+
+  // Bounds how much a single write can hold up the requests waiting on it.
+  // A Test can have any number of failures, so it's up to the delegate to
+  // split the write into puts the datastore accepts.
+  private static final int MAX_TESTS_PER_BATCH = 100;
+
+  private final TestHarnessDao delegate;
+  private final long windowMillis;
+
+  // guards everything below
+  private final Object lock = new Object();
+  private Batch openBatch;
+
+  private final ThreadLocal<Set<Batch>> joinedBatches = new ThreadLocal<Set<Batch>>() {
+    @Override
+    protected Set<Batch> initialValue() {
+      return new LinkedHashSet<Batch>();
+    }
+  };
+
+  private static final class Batch {
+    private final long opened = System.currentTimeMillis();
+    // keyed by run and test so that the last write of a Test wins
+    private final Map<String, Test> tests = new LinkedHashMap<String, Test>();
+    // a writer has been chosen, nothing else can join
+    private boolean closed;
+    private boolean written;
+    private Throwable error;
+  }
+
+  /**
+   * @param delegate The DAO that does the actual writing
+   * @param windowMillis How long a batch stays open for other requests to
+   * join it
+   */
+  public WriteBehindTestHarnessDao(TestHarnessDao delegate, long windowMillis) {
+    this.delegate = delegate;
+    this.windowMillis = windowMillis;
+  }
+
+  public void updateTest(Test test) {
+    if (test.getStatus() == TestStatus.IN_PROGRESS) {
+      // partial results, nobody is waiting for these
+      delegate.updateTest(test);
+    } else {
+      buffer(Collections.singletonList(test));
+    }
+  }
+
+  public Future<Void> updateTestAsync(Test test) {
+    if (test.getStatus() == TestStatus.IN_PROGRESS) {
+      return delegate.updateTestAsync(test);
+    }
+    buffer(Collections.singletonList(test));
+    // flush() is what waits for the write
+    return Futures.done();
+  }
+
+  public void updateTests(List<Test> tests) {
+    buffer(tests);
+  }
+
+  private void buffer(List<Test> tests) {
+    synchronized (lock) {
+      for (Test test : tests) {
+        if (openBatch == null) {
+          openBatch = new Batch();
+        }
+        openBatch.tests.put(test.getRun().getId() + ":" + test.getName(), test);
+        joinedBatches.get().add(openBatch);
+        if (openBatch.tests.size() >= MAX_TESTS_PER_BATCH) {
+          // full, the next Test starts a new one
+          openBatch = null;
+        }
+      }
+    }
+  }
+
+  public void flush() {
+    Set<Batch> batches = joinedBatches.get();
+    try {
+      for (Batch batch : batches) {
+        awaitWrite(batch);
+      }
+    } finally {
+      batches.clear();
+    }
+  }
+
+  private void awaitWrite(Batch batch) {
+    synchronized (lock) {
+      try {
+        long remaining = batch.opened + windowMillis - System.currentTimeMillis();
+        while (!batch.closed && remaining > 0) {
+          lock.wait(remaining);
+          remaining = batch.opened + windowMillis - System.currentTimeMillis();
+        }
+        if (batch.closed) {
+          // somebody else is writing it
+          while (!batch.written) {
+            lock.wait();
+          }
+          if (batch.error != null) {
+            throw new RuntimeException("Unable to write batch of tests", batch.error);
+          }
+          return;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RuntimeException(e);
+      }
+      batch.closed = true;
+      if (openBatch == batch) {
+        openBatch = null;
+      }
+    }
+    Throwable error = null;
+    try {
+      delegate.updateTests(new ArrayList<Test>(batch.tests.values()));
+    } catch (RuntimeException e) {
+      error = e;
+      throw e;
+    } catch (Error e) {
+      error = e;
+      throw e;
+    } finally {
+      synchronized (lock) {
+        batch.written = true;
+        batch.error = error;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  public Run newRun(String suiteId) {
+    return delegate.newRun(suiteId);
+  }
+
+  public void updateRun(Run run) {
+    delegate.updateRun(run);
+  }
+
+  public void recordRunCompletion(long runId, TestStatus status, RunStatusCounts counts) {
+    delegate.recordRunCompletion(runId, status, counts);
+  }
+
+  public RunList getRuns(String suiteId, String cursor, int limit) {
+    return delegate.getRuns(suiteId, cursor, limit);
+  }
+
+  public boolean deleteRun(RunInfo run, long stopAt) {
+    return delegate.deleteRun(run, stopAt);
+  }
+
+  public Run getRunById(long runId, boolean loadTestIdData) {
+    return delegate.getRunById(runId, loadTestIdData);
+  }
+
+  public Test claimTest(Run run, TestId testId, int continuation, long leaseMillis)
+      throws TestAlreadyExistsException {
+    return delegate.claimTest(run, testId, continuation, leaseMillis);
+  }
+
+  public List<Test> getTestsForRun(long runId) {
+    return delegate.getTestsForRun(runId);
+  }
+
+  public Iterable<TestSummary> getTestSummariesForRun(long runId) {
+    return delegate.getTestSummariesForRun(runId);
+  }
+
+  public List<TestSummary> getTestsChangedSince(long runId, long sinceVersion) {
+    return delegate.getTestsChangedSince(runId, sinceVersion);
+  }
+
+  public List<Test> getTestShards(long runId, String className) {
+    return delegate.getTestShards(runId, className);
+  }
+
+  public boolean createCompletionRecordIfNotAlreadyPresent(long runId) {
+    return delegate.createCompletionRecordIfNotAlreadyPresent(runId);
+  }
+
+  public boolean hasCompletionRecord(long runId) {
+    return delegate.hasCompletionRecord(runId);
+  }
+
+  public Failure getFailure(long runId, String testId, String failureId) {
+    return delegate.getFailure(runId, testId, failureId);
+  }
+
+  public List<FailureCluster> getFailureClusters(long runId, int maxExamplesPerCluster) {
+    return delegate.getFailureClusters(runId, maxExamplesPerCluster);
+  }
+
+  public Test getTestById(long runId, String testId) {
+    return delegate.getTestById(runId, testId);
+  }
+
+  public boolean runIsComplete(long runId) {
+    return delegate.runIsComplete(runId);
+  }
+
+  public RunStatusCounts getRunStatusCounts(long runId) {
+    return delegate.getRunStatusCounts(runId);
+  }
+
+  public void addRunTestIdData(long runId, Map<String, Integer> testIdsToTestCounts) {
+    delegate.addRunTestIdData(runId, testIdsToTestCounts);
+  }
+
+  public RunPlan getRunPlan(long runId) {
+    return delegate.getRunPlan(runId);
+  }
+
+  public boolean checkpointRunPlan(RunPlan current, RunPlan next,
+                                   Map<String, Integer> testIdsToTestCounts) {
+    return delegate.checkpointRunPlan(current, next, testIdsToTestCounts);
+  }
+
+  public void savePlannedTestIds(long runId, List<List<TestId>> chunks) {
+    delegate.savePlannedTestIds(runId, chunks);
+  }
+
+  public List<TestId> getPlannedTestIds(long runId, int chunk) {
+    return delegate.getPlannedTestIds(runId, chunk);
+  }
+
+  public long getLatestDurationsRunId(String suiteId) {
+    return delegate.getLatestDurationsRunId(suiteId);
+  }
+
+  public Map<String, Long> getTestDurations(long runId) {
+    return delegate.getTestDurations(runId);
+  }
+
+  public void recordTestDurations(String suiteId, long runId,
+                                  Map<String, Long> classNamesToDurations) {
+    delegate.recordTestDurations(suiteId, runId, classNamesToDurations);
+  }
+}
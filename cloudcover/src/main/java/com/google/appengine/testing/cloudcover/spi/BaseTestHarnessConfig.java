@@ -15,8 +15,8 @@
  */
 package com.google.appengine.testing.cloudcover.spi;
 
-import com.google.appengine.api.labs.taskqueue.Queue;
-import com.google.appengine.api.labs.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
 
 import java.util.Arrays;
 import java.util.List;
@@ -44,6 +44,15 @@ public abstract class BaseTestHarnessConfig implements TestHarnessConfig {
     return "/cloudcover/queueAction/";
   }
 
+  /**
+   * Returns the default base URL for requests that wait for a run.  Subclass
+   * and override if you want to customize, but don't forget to adjust
+   * web.xml if you do!
+   */
+  public String getBaseWatchURL() {
+    return "/cloudcover/watch/";
+  }
+
   /**
    * Returns the default IsolationMechanism for Cloud Cover:
    * {@link IsolationMechanism#ONE_NAMESPACE_PER_TEST}.  Subclass and override
@@ -72,4 +81,65 @@ public abstract class BaseTestHarnessConfig implements TestHarnessConfig {
   public List<String> getAvailableSuiteIds() {
     return Arrays.asList("default");
   }
+
+  /**
+   * Returns the default maximum number of tests per task: 1, so every test
+   * gets a task of its own.  Subclass and override if you want small tests
+   * to share tasks.
+   */
+  public int getMaxTestsPerTask() {
+    return 1;
+  }
+
+  /**
+   * Returns the default target number of subtests per task: 20.  Only
+   * matters if {@link #getMaxTestsPerTask()} is more than 1.  Subclass and
+   * override if you want to use a different value.
+   */
+  public int getTargetSubtestsPerTask() {
+    return 20;
+  }
+
+  /**
+   * Returns the default maximum number of methods per shard: 0, so classes
+   * are never split.  Subclass and override if you want large classes to be
+   * split into shards.
+   */
+  public int getMaxMethodsPerShard() {
+    return 0;
+  }
+
+  /**
+   * Returns the default duration estimate for a subtest we've never seen run
+   * before: one second.  Subclass and override if you want to use a
+   * different value.
+   */
+  public long getDefaultSubtestDurationEstimate() {
+    return 1000;
+  }
+
+  /**
+   * Returns the default interval between writes of partial results: five
+   * seconds.  Subclass and override if you want to use a different value.
+   */
+  public long getPartialResultFlushInterval() {
+    return 5000;
+  }
+
+  /**
+   * Returns the default retention period for runs: forever.  Subclass and
+   * override if you want old runs to be deleted.
+   */
+  public long getRunRetentionPeriod() {
+    return 0;
+  }
+
+  /**
+   * Returns the default number of runs of each suite to keep no matter how
+   * old they are: 10.  Subclass and override if you want to use a different
+   * value.
+   */
+  public int getNumRunsToKeepPerSuite() {
+    return 10;
+  }
 }
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2010 Google Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.appengine.testing.cloudcover.spi;
+
+import com.google.appengine.testing.cloudcover.client.model.FailureData;
+
+/**
+ * Receives the outcome of each subtest as soon as it is known, while the
+ * rest of the test is still running.
+ *
+ * @author Max Ross <max.ross@gmail.com>
+ */
+public interface SubtestListener {
+
+  void onSubtestSuccess(String subtestName);
+
+  void onSubtestFailure(FailureData failureData);
+}
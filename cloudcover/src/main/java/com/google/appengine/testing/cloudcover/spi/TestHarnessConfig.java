@@ -15,7 +15,7 @@
  */
 package com.google.appengine.testing.cloudcover.spi;
 
-import com.google.appengine.api.labs.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.Queue;
 
 import java.util.List;
 
@@ -57,6 +57,12 @@ public interface TestHarnessConfig {
    */
   String getBaseQueueActionURL();
 
+  /**
+   * @return the base URL for requests that wait for a run to change or
+   * complete.  Must correspond to the servlet mapping in web.xml
+   */
+  String getBaseWatchURL();
+
   /**
    * @return the IsolationMechanism that will be used to isolate tests from one
    * another.
@@ -67,4 +73,56 @@ public interface TestHarnessConfig {
    * @return a listener that receives notifications of TestRun events.
    */
   TestRunListener getTestRunListener();
+
+  /**
+   * @return the maximum number of tests that will be run back to back in a
+   * single task.  Packing small tests into a single task avoids paying the
+   * per-task overhead for each one of them, so this is worth turning up for
+   * suites with lots of small tests.  Return 1 to run every test in its own
+   * task.
+   */
+  int getMaxTestsPerTask();
+
+  /**
+   * @return the number of subtests at which we stop adding tests to a task.
+   * A test with at least this many subtests always gets a task of its own.
+   */
+  int getTargetSubtestsPerTask();
+
+  /**
+   * @return the number of methods a test class can have before it is split
+   * into shards that run as separate tests.  Return 0 or less to run every
+   * class as a single test no matter how many methods it has.  Only applies
+   * to TestRuns created by the factory methods of the JUnit configs.
+   */
+  int getMaxMethodsPerShard();
+
+  /**
+   * @return the number of milliseconds we expect a single subtest to take
+   * when we've never seen its class run before.  Tests are scheduled longest
+   * first, so this determines where tests we know nothing about end up.
+   */
+  long getDefaultSubtestDurationEstimate();
+
+  /**
+   * @return the minimum number of milliseconds between two writes of the
+   * partial results of a running test.  Only applies to harnesses that
+   * implement {@link IncrementalTestHarness}.  Return 0 or less to only
+   * write results once the test has finished.
+   */
+  long getPartialResultFlushInterval();
+
+  /**
+   * @return the number of milliseconds we keep a run around after it was
+   * created.  Older runs are deleted along with their tests and failures by
+   * a purge that is scheduled at most once a day per suite as runs complete.
+   * Return 0 or less to keep runs forever.
+   */
+  long getRunRetentionPeriod();
+
+  /**
+   * @return the number of most recent runs of each suite that are kept no
+   * matter how old they are.
+   */
+  int getNumRunsToKeepPerSuite();
 }
@@ -15,6 +15,8 @@
  */
 package com.google.appengine.testing.cloudcover.spi;
 
+import com.google.appengine.testing.cloudcover.client.model.TestShards;
+
 import java.io.Serializable;
 
 /**
@@ -31,6 +33,15 @@ public final class TestId implements Serializable {
     this.numSubtests = numSubtests;
   }
 
+  /**
+   * Creates the id of a shard that runs a subset of the methods of a class.
+   *
+   * @see TestShards
+   */
+  public static TestId forShard(String className, int numSubtests, int shardIndex, int numShards) {
+    return new TestId(TestShards.buildShardId(className, shardIndex, numShards), numSubtests);
+  }
+
   public String getTestId() {
     return testId;
   }
@@ -39,6 +50,13 @@ public final class TestId implements Serializable {
     return numSubtests;
   }
 
+  /**
+   * @return the name of the class this test id refers to.
+   */
+  public String getClassName() {
+    return TestShards.getClassName(testId);
+  }
+
   @Override
   public String toString() {
     return testId;